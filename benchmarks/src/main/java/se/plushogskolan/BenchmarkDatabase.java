@@ -0,0 +1,234 @@
+package se.plushogskolan;
+
+import org.sqlite.SQLiteDataSource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Generated databases for the benchmarks and load tests, with the same schema as the real one (it is created by the
+// same migrations) but a lot more users, quizzes and questions in it.
+//
+// Generating the big datasets takes a while, so each one the benchmarks use is kept in target/datasets and reused by
+// later runs. The data comes from a random generator with a fixed seed, so the same settings always give the same
+// database. GenerateDataset writes one with any settings to a file of your choice, e.g. for running the server and
+// LoadDriver against.
+final class BenchmarkDatabase {
+    private static final Path MIGRATIONS_PATH = Path.of(System.getProperty("benchmark.migrations", "../migrations"));
+    private static final Path DATASET_FOLDER = Path.of(System.getProperty("benchmark.datasets", "target/datasets"));
+
+    // Words that quiz titles and questions are made from. Some topics are much more common than others, like in a real
+    // quiz site, so that searches and title ranges hit both crowded and sparse parts of the index.
+    private static final String[] TOPICS = {
+        "Capital", "Capital", "Capital", "Flag", "Flag", "Population", "River", "Mountain", "Language", "Currency",
+        "Island", "Lake", "Desert", "Border", "Anthem", "Coastline", "Volcano", "Kingdom", "Republic", "City"
+    };
+    private static final String[] REGIONS = {
+        "Europe", "Europe", "Asia", "Africa", "South America", "North America", "Oceania", "Scandinavia", "Balkans",
+        "Caribbean", "Middle East", "Baltic", "Alps", "Sahara", "Pacific", "World"
+    };
+    private static final String[] STYLES = {
+        "Quiz", "Quiz", "Quiz", "Challenge", "Trivia", "Basics", "Expert Edition", "for Kids", "Speed Round", "Mix"
+    };
+    private static final String[] PLACES = {
+        "Sweden", "Norway", "France", "Iran", "Poland", "USA", "Seychelles", "Germany", "Brazil", "Japan", "Kenya",
+        "Chile", "Canada", "India", "Egypt", "Peru", "Spain", "Italy", "Greece", "Finland", "Mexico", "Vietnam"
+    };
+    static final String[] FLAGS = {
+        "eu.svg", "france.svg", "iran.svg", "norway.svg", "poland.svg", "seychelles.svg", "sweden.svg", "usa.svg"
+    };
+
+    // How big a dataset is, and what it looks like.
+    static final class Settings {
+        // The number of users and quizzes, not counting the example ones from the first migration.
+        final int users;
+        final int quizzes;
+        // The typical number of questions per quiz. Most quizzes have somewhere between one and twice this many, and
+        // one in ten has a lot more.
+        final int questions;
+        // The password every generated user gets. The users are called user4, user5 and so on, after the three
+        // example users.
+        final String password;
+        // The PBKDF2 iteration count for the stored password, so that logging in costs the same as on the server.
+        final int iterations;
+        final long seed;
+
+        Settings(int users, int quizzes, int questions, String password, int iterations, long seed) {
+            this.users = users;
+            this.quizzes = quizzes;
+            this.questions = questions;
+            this.password = password;
+            this.iterations = iterations;
+            this.seed = seed;
+        }
+
+        // What the benchmarks use: one user for every ten quizzes, and about five questions per quiz.
+        static Settings forQuizzes(int quizzes) {
+            return new Settings(Math.max(1, quizzes / 10), quizzes, 5, "password", 1, quizzes);
+        }
+    }
+
+    private BenchmarkDatabase() {
+    }
+
+    // Get the database file with this number of quizzes, generating it first if needed.
+    static Path get(int quizzes) throws IOException, SQLException {
+        Path file = DATASET_FOLDER.resolve("quizzes-" + quizzes + ".db");
+        if (!Files.exists(file)) {
+            Files.createDirectories(DATASET_FOLDER);
+            // Generate into a temporary file first, so that an interrupted run doesn't leave half a dataset behind.
+            Path temporary = DATASET_FOLDER.resolve("quizzes-" + quizzes + ".db.tmp");
+            Files.deleteIfExists(temporary);
+            generate(temporary, Settings.forQuizzes(quizzes));
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file;
+    }
+
+    // Open a pool of read-only connections to a generated database, set up like the one the server reads through.
+    static ConnectionPool open(Path file, int connections) throws SQLException {
+        SQLiteDataSource source = new SQLiteDataSource();
+        source.setUrl("jdbc:sqlite:" + file);
+        source.setReadOnly(true);
+        // No slow query log, since printing it would be part of what gets measured.
+        return new ConnectionPool(source, connections, 32, 5000, new QueryMetrics(Long.MAX_VALUE, 60));
+    }
+
+    static void generate(Path file, Settings settings) throws IOException, SQLException {
+        System.out.println(
+            "Generating a database with " + settings.users + " users and " + settings.quizzes + " quizzes in " + file
+        );
+        SQLiteDataSource source = new SQLiteDataSource();
+        source.setUrl("jdbc:sqlite:" + file);
+        // Nobody else uses the file while it is generated, so there's no need to wait for the disk.
+        source.setJournalMode("OFF");
+        source.setSynchronous("OFF");
+
+        try (Connection c = source.getConnection()) {
+            c.setAutoCommit(false);
+
+            // Create the tables the same way the server does, which also adds the example data.
+            Migrations migrations = new Migrations(MIGRATIONS_PATH);
+            migrations.migrate(c);
+
+            Random random = new Random(settings.seed);
+
+            // Every user gets the same hash, since hashing the password once per user would take far too long with a
+            // real iteration count.
+            String passwordHash;
+            try (Credentials credentials = new Credentials(1, 1, settings.iterations)) {
+                passwordHash = credentials.hash(settings.password);
+            }
+            // The generated users come after the three example users.
+            int users = 3 + settings.users;
+            String userSql = "INSERT INTO user (id, username, password) VALUES (?, ?, ?)";
+            try (PreparedStatement s = c.prepareStatement(userSql)) {
+                for (int id = 4; id <= users; id++) {
+                    s.setInt(1, id);
+                    s.setString(2, "user" + id);
+                    s.setString(3, passwordHash);
+                    s.addBatch();
+                }
+                s.executeBatch();
+            }
+
+            PreparedStatement quizStatement = c.prepareStatement(
+                "INSERT INTO quiz (id, user_id, title, datetime, public) VALUES (?, ?, ?, ?, ?)"
+            );
+            PreparedStatement questionStatement = c.prepareStatement(
+                "INSERT INTO question " +
+                "(quiz_id, number, prompt, option_1, option_2, option_3, option_4, correct_option, image_path) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)"
+            );
+            PreparedStatement searchStatement = c.prepareStatement(
+                "INSERT INTO quiz_search (rowid, title, questions) VALUES (?, ?, ?)"
+            );
+
+            // The example data already uses quiz IDs 1-5.
+            for (int id = 6; id < settings.quizzes + 6; id++) {
+                String title = pick(random, TOPICS) + "s of " + pick(random, REGIONS) + " " + pick(random, STYLES);
+                quizStatement.setInt(1, id);
+                quizStatement.setInt(2, author(random, users));
+                quizStatement.setString(3, title);
+                quizStatement.setString(4, "2020-01-01T12:00:00");
+                // Most quizzes are public.
+                quizStatement.setBoolean(5, random.nextInt(10) != 0);
+                quizStatement.addBatch();
+
+                // Most quizzes are short, but a few are long.
+                int questionCount = random.nextInt(10) == 0
+                    ? 2 * settings.questions + random.nextInt(8 * settings.questions)
+                    : 1 + random.nextInt(Math.max(1, 2 * settings.questions - 2));
+                List<Question> questions = new ArrayList<>(questionCount);
+                for (int number = 1; number <= questionCount; number++) {
+                    questions.add(new Question(
+                        number,
+                        "What is the " + pick(random, TOPICS).toLowerCase() + " of " + pick(random, PLACES) + "?",
+                        pick(random, PLACES),
+                        pick(random, PLACES),
+                        pick(random, PLACES),
+                        pick(random, PLACES),
+                        1 + random.nextInt(4),
+                        pick(random, FLAGS)
+                    ));
+                }
+                for (Question question : questions) {
+                    questionStatement.setInt(1, id);
+                    questionStatement.setInt(2, question.number);
+                    questionStatement.setString(3, question.prompt);
+                    questionStatement.setString(4, question.option1);
+                    questionStatement.setString(5, question.option2);
+                    questionStatement.setString(6, question.option3);
+                    questionStatement.setString(7, question.option4);
+                    questionStatement.setInt(8, question.correctOption);
+                    questionStatement.setString(9, question.imagePath);
+                    questionStatement.addBatch();
+                }
+
+                searchStatement.setInt(1, id);
+                searchStatement.setString(2, title);
+                searchStatement.setString(3, AssignmentTwoServer.searchText(questions));
+                searchStatement.addBatch();
+
+                // The quizzes have to be inserted before their questions, since the question count triggers update
+                // the quiz rows.
+                if (id % 1000 == 0) {
+                    quizStatement.executeBatch();
+                    questionStatement.executeBatch();
+                    searchStatement.executeBatch();
+                }
+            }
+            quizStatement.executeBatch();
+            questionStatement.executeBatch();
+            searchStatement.executeBatch();
+
+            // The server would build these in the background, but the benchmarks shouldn't measure a database that is
+            // still missing some. Building them after the data is in is faster than keeping them up to date throughout.
+            migrations.createIndexes(c);
+            try (Statement s = c.createStatement()) {
+                s.executeUpdate("ANALYZE");
+            }
+            c.commit();
+        }
+    }
+
+    // Pick the author of a quiz. Like on most sites where people make things, a few users make most of the quizzes:
+    // squaring a uniform number makes the users with low IDs far more likely, so that the first tenth of them make
+    // about a third of all quizzes, while most of the rest only have one or two.
+    private static int author(Random random, int users) {
+        double x = random.nextDouble();
+        return 1 + (int) (x * x * users);
+    }
+
+    private static String pick(Random random, String[] words) {
+        return words[random.nextInt(words.length)];
+    }
+}
@@ -0,0 +1,46 @@
+package se.plushogskolan;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+
+// Write a generated database to a file, for running the server against something the size of the real site:
+//
+//     java -Ddataset.quizzes=100000 -cp target/benchmarks.jar se.plushogskolan.GenerateDataset ../load.db
+//
+// and then start the server with `-Ddb.path=load.db`. The settings, with their defaults:
+//
+//     dataset.users      10000     users, called user4, user5 and so on
+//     dataset.quizzes    100000    quizzes
+//     dataset.questions  5         typical number of questions per quiz
+//     dataset.password   password  the password of every user
+//     dataset.iterations 310000    the PBKDF2 iteration count, which should match the server's auth.iterations
+//     dataset.seed       1         the same seed and settings always give the same database
+//
+// The file must not exist already, so that a real database is never overwritten by mistake.
+public class GenerateDataset {
+    public static void main(String[] args) throws IOException, SQLException {
+        if (args.length != 1) {
+            System.err.println("Usage: GenerateDataset <database file>");
+            System.exit(2);
+        }
+        Path file = Path.of(args[0]);
+        if (Files.exists(file)) {
+            System.err.println(file + " already exists.");
+            System.exit(1);
+        }
+
+        BenchmarkDatabase.Settings settings = new BenchmarkDatabase.Settings(
+            Integer.getInteger("dataset.users", 10000),
+            Integer.getInteger("dataset.quizzes", 100000),
+            Integer.getInteger("dataset.questions", 5),
+            System.getProperty("dataset.password", "password"),
+            Integer.getInteger("dataset.iterations", 310000),
+            Long.getLong("dataset.seed", 1)
+        );
+        long start = System.nanoTime();
+        BenchmarkDatabase.generate(file, settings);
+        System.out.printf("Done in %.1f s%n", (System.nanoTime() - start) / 1e9);
+    }
+}
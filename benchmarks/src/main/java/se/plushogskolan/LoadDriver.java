@@ -0,0 +1,310 @@
+package se.plushogskolan;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// A closed-loop load test against a server running on this machine. Each virtual user is a thread that goes through a
+// whole visit to the site, one request at a time, and then starts over:
+//
+//     log in, look through a few pages of /play, open a few of the quizzes on them (their JSON and their flags),
+//     sometimes create a quiz, and log out.
+//
+// Since every user waits for each response before sending the next request, a slower server means fewer requests
+// rather than a growing backlog, which is how real browsers behave too. At the end, it prints the throughput and the
+// p50, p99 and p99.9 latency of every route. Generate a database with GenerateDataset first, start the server on it,
+// and then run e.g.
+//
+//     java -Dload.users=32 -Dload.seconds=120 -cp target/benchmarks.jar se.plushogskolan.LoadDriver
+//
+// The settings, with their defaults:
+//
+//     load.url       http://localhost:8000
+//     load.users     16        virtual users running at once
+//     load.accounts  100       how many of the generated users (user4, user5 and so on) they log in as
+//     load.password  password  the password of those users, like dataset.password
+//     load.seconds   60        how long to measure for
+//     load.warmup    10        how long to run before starting to measure, so that the server's JIT and caches are warm
+//     load.pages     3         /play pages to look through per visit
+//     load.quizzes   2         quizzes to open per visit
+//     load.create    0.05      the share of visits that create a quiz
+//     load.think     0         milliseconds to wait between requests
+//     load.seed      1         the same seed and settings always make the same sequence of visits
+public class LoadDriver {
+    private static final String URL = System.getProperty("load.url", "http://localhost:8000");
+    private static final int USERS = Integer.getInteger("load.users", 16);
+    private static final int ACCOUNTS = Integer.getInteger("load.accounts", 100);
+    private static final String PASSWORD = System.getProperty("load.password", "password");
+    private static final long SECONDS = Long.getLong("load.seconds", 60);
+    private static final long WARMUP_SECONDS = Long.getLong("load.warmup", 10);
+    private static final int PAGES = Integer.getInteger("load.pages", 3);
+    private static final int QUIZZES = Integer.getInteger("load.quizzes", 2);
+    private static final double CREATE_SHARE = Double.parseDouble(System.getProperty("load.create", "0.05"));
+    private static final long THINK_MILLIS = Long.getLong("load.think", 0);
+    private static final long SEED = Long.getLong("load.seed", 1);
+
+    private static final Pattern QUIZ_LINK = Pattern.compile("href='/play/(\\d+)'");
+    private static final Pattern NEXT_PAGE_LINK = Pattern.compile("href='(/play\\?after=\\d+&amp;size=\\d+)'");
+    private static final Pattern SESSION_COOKIE = Pattern.compile("session=([^;]*)");
+
+    // Everything measured for one route.
+    private static final class Route {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        // Responses with another status than the expected one, and requests that failed without a response (counted
+        // as status 0), by status.
+        final Map<Integer, LongAdder> errors = new ConcurrentHashMap<>();
+    }
+
+    private static final Map<String, Route> routes = new ConcurrentHashMap<>();
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final HttpClient client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(Duration.ofSeconds(10))
+        .build();
+
+    private static volatile long measureFrom;
+    private static volatile long measureUntil;
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println(
+            "Running " + USERS + " virtual users against " + URL + " for " + WARMUP_SECONDS + " s of warmup and " +
+            SECONDS + " s of measurement"
+        );
+        long now = System.nanoTime();
+        measureFrom = now + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(SECONDS);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            VirtualUser user = new VirtualUser(4 + i % ACCOUNTS, new SplittableRandom(SEED * 1_000_003 + i));
+            Thread thread = new Thread(user, "virtual-user-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        report();
+    }
+
+    // One user going through visits to the site until the time is up.
+    private static final class VirtualUser implements Runnable {
+        private final String username;
+        private final SplittableRandom random;
+        private String cookie = "";
+        private int created;
+
+        VirtualUser(int userId, SplittableRandom random) {
+            this.username = "user" + userId;
+            this.random = random;
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < measureUntil) {
+                try {
+                    visit();
+                }
+                catch (IOException e) {
+                    // Most likely the server isn't running or has stopped answering, so don't hammer it.
+                    sleep(1000);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void visit() throws IOException, InterruptedException {
+            cookie = "";
+            HttpResponse<String> login = send(
+                "POST /login", 302, form("/login", "username=" + encode(username) + "&password=" + encode(PASSWORD))
+            );
+            Matcher session = SESSION_COOKIE.matcher(String.join(";", login.headers().allValues("Set-Cookie")));
+            if (login.statusCode() != 302 || !session.find() || session.group(1).isEmpty()) {
+                // Wrong password or an overloaded server. Try again after a moment, like a person would.
+                sleep(1000);
+                return;
+            }
+            cookie = "session=" + session.group(1);
+
+            // Look through the quiz list, remembering the quizzes on it.
+            List<String> quizIds = new ArrayList<>();
+            String path = "/play";
+            for (int page = 0; page < PAGES && path != null; page++) {
+                HttpResponse<String> response = send("GET /play", 200, get(path));
+                Matcher quizLinks = QUIZ_LINK.matcher(response.body());
+                while (quizLinks.find()) {
+                    quizIds.add(quizLinks.group(1));
+                }
+                Matcher next = NEXT_PAGE_LINK.matcher(response.body());
+                path = next.find() ? next.group(1).replace("&amp;", "&") : null;
+            }
+
+            // Open some of them, the way the quiz page's JavaScript does.
+            for (int i = 0; i < QUIZZES && !quizIds.isEmpty(); i++) {
+                String quizId = quizIds.get(random.nextInt(quizIds.size()));
+                HttpResponse<String> quiz = send("GET /quiz/:quiz_id", 200, get("/quiz/" + quizId));
+                if (quiz.statusCode() != 200) {
+                    continue;
+                }
+                Set<String> flags = new LinkedHashSet<>();
+                for (JsonNode imagePath : mapper.readTree(quiz.body()).findValues("image_path")) {
+                    flags.add(imagePath.asText());
+                }
+                for (String flag : flags) {
+                    send("GET /flag", 200, get("/flag?name=" + encode(flag)));
+                }
+            }
+
+            if (random.nextDouble() < CREATE_SHARE) {
+                send("POST /create", 200, form("/create", newQuiz()));
+            }
+
+            send("POST /logout", 302, form("/logout", ""));
+        }
+
+        // The form for a new quiz with a few questions.
+        private String newQuiz() {
+            created += 1;
+            StringBuilder form = new StringBuilder()
+                .append("quiz-title=").append(encode("Load test " + username + " " + created));
+            if (random.nextInt(10) != 0) {
+                form.append("&quiz-public=true");
+            }
+            int questions = 1 + random.nextInt(8);
+            for (int number = 1; number <= questions; number++) {
+                String prefix = "&question-" + number + "-";
+                form
+                    .append(prefix).append("prompt=").append(encode("Question " + number + "?"))
+                    .append(prefix).append("option-1=A")
+                    .append(prefix).append("option-2=B")
+                    .append(prefix).append("option-3=C")
+                    .append(prefix).append("option-4=D")
+                    .append(prefix).append("answer=").append(1 + random.nextInt(4))
+                    .append(prefix).append("flag=")
+                    .append(BenchmarkDatabase.FLAGS[random.nextInt(BenchmarkDatabase.FLAGS.length)]);
+            }
+            return form.toString();
+        }
+
+        private HttpRequest get(String path) {
+            return request(path).GET().build();
+        }
+
+        private HttpRequest form(String path, String body) {
+            return request(path)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        }
+
+        private HttpRequest.Builder request(String path) {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(URL + path))
+                .timeout(Duration.ofSeconds(60));
+            if (!cookie.isEmpty()) {
+                builder.header("Cookie", cookie);
+            }
+            return builder;
+        }
+
+        // Send a request and record how long it took under the route's name, if it is inside the measured time.
+        private HttpResponse<String> send(
+            String route, int expectedStatus, HttpRequest request
+        ) throws IOException, InterruptedException {
+            if (THINK_MILLIS > 0) {
+                sleep(THINK_MILLIS);
+            }
+            long start = System.nanoTime();
+            HttpResponse<String> response;
+            try {
+                response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            }
+            catch (IOException e) {
+                record(route, start, System.nanoTime(), 0, expectedStatus);
+                throw e;
+            }
+            record(route, start, System.nanoTime(), response.statusCode(), expectedStatus);
+            return response;
+        }
+    }
+
+    private static void record(String name, long start, long end, int status, int expectedStatus) {
+        if (start < measureFrom || end > measureUntil) {
+            return;
+        }
+        Route route = routes.computeIfAbsent(name, key -> new Route());
+        if (status == expectedStatus) {
+            route.latencies.record(end - start);
+        }
+        else {
+            route.errors.computeIfAbsent(status, key -> new LongAdder()).increment();
+        }
+    }
+
+    private static void report() {
+        System.out.println();
+        System.out.printf(
+            "%-20s %10s %10s %8s %8s %8s %8s  %s%n",
+            "route", "requests", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "errors (by status)"
+        );
+        long totalRequests = 0;
+        Histogram total = new Histogram(1, TimeUnit.MINUTES.toMicros(1), 2);
+        for (Map.Entry<String, Route> entry : new TreeMap<>(routes).entrySet()) {
+            Histogram latencies = entry.getValue().latencies.snapshot();
+            Map<Integer, Long> errors = new TreeMap<>();
+            entry.getValue().errors.forEach((status, count) -> errors.put(status, count.sum()));
+            printRow(entry.getKey(), latencies, errors.isEmpty() ? "" : errors.toString());
+            totalRequests += latencies.getTotalCount();
+            total.add(latencies);
+        }
+        printRow("all", total, "");
+        System.out.printf(
+            "%nSuccessful requests: %d, %.1f per second%n", totalRequests, totalRequests / (double) SECONDS
+        );
+    }
+
+    private static void printRow(String name, Histogram latencies, String errors) {
+        System.out.printf(
+            "%-20s %10d %10.1f %8.1f %8.1f %8.1f %8.1f  %s%n",
+            name, latencies.getTotalCount(), latencies.getTotalCount() / (double) SECONDS,
+            latencies.getValueAtPercentile(50) / 1000.0, latencies.getValueAtPercentile(99) / 1000.0,
+            latencies.getValueAtPercentile(99.9) / 1000.0, latencies.getMaxValue() / 1000.0, errors
+        );
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
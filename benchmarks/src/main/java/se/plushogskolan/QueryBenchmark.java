@@ -0,0 +1,191 @@
+package se.plushogskolan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// The queries behind /play, /search and /quiz/:quiz_id, run against generated datasets of different sizes to show how
+// they scale. Each benchmark goes through the same connection pool and statement cache as the server.
+//
+// The list* benchmarks run the SQL query the quiz list used before the catalog, and the catalogList* ones do the same
+// thing with the in-memory QuizCatalog that /play uses now, so the two can be compared directly.
+//
+// SampleTime reports percentiles (p50, p99, p99.9 and so on) for each benchmark, next to the throughput.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBenchmark {
+    private static final int PAGE_SIZE = 50;
+    private static final int CURSORS = 1024;
+    // The generated quizzes come after the five example quizzes from the first migration.
+    private static final int FIRST_QUIZ_ID = 6;
+
+    @Param({"1000", "100000", "1000000"})
+    int quizzes;
+
+    private ConnectionPool db;
+    private QuizCatalog catalog;
+    // Positions in the quiz list to continue from, looked up before the benchmark starts the same way the /play page
+    // looks up its `after` parameter.
+    private final String[] cursorTitles = new String[CURSORS];
+    private final String[] cursorUsernames = new String[CURSORS];
+    private final int[] cursorIds = new int[CURSORS];
+
+    // Random quiz IDs, with the same sequence for every run.
+    @State(Scope.Thread)
+    public static class Ids {
+        private final SplittableRandom random = new SplittableRandom(42);
+
+        int next(int bound) {
+            return random.nextInt(bound);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        db = BenchmarkDatabase.open(BenchmarkDatabase.get(quizzes), 8);
+
+        SplittableRandom random = new SplittableRandom(7);
+        try (Connection c = db.getConnection()) {
+            PreparedStatement s = c.prepareStatement(
+                "SELECT title, username FROM quiz JOIN user ON quiz.user_id = user.id WHERE quiz.id = ?"
+            );
+            for (int i = 0; i < CURSORS; i++) {
+                int id = FIRST_QUIZ_ID + random.nextInt(quizzes);
+                s.setInt(1, id);
+                try (ResultSet rows = s.executeQuery()) {
+                    rows.next();
+                    cursorTitles[i] = rows.getString("title");
+                    cursorUsernames[i] = rows.getString("username");
+                }
+                cursorIds[i] = id;
+            }
+            catalog = QuizCatalog.load(c);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        db.close();
+    }
+
+    @Benchmark
+    public void listFirstPage(Blackhole blackhole) throws SQLException {
+        try (Connection c = db.getConnection()) {
+            consume(AssignmentTwoServer.findQuizzes(c, 1, 1, Integer.MAX_VALUE, "", "", 0, PAGE_SIZE + 1), blackhole);
+        }
+    }
+
+    @Benchmark
+    public void listAfterCursor(Ids ids, Blackhole blackhole) throws SQLException {
+        int i = ids.next(CURSORS);
+        try (Connection c = db.getConnection()) {
+            consume(
+                AssignmentTwoServer.findQuizzes(
+                    c, 1, 1, Integer.MAX_VALUE, cursorTitles[i], cursorUsernames[i], cursorIds[i], PAGE_SIZE + 1
+                ),
+                blackhole
+            );
+        }
+    }
+
+    // The "exactly 3 questions" filter.
+    @Benchmark
+    public void listFiltered(Blackhole blackhole) throws SQLException {
+        try (Connection c = db.getConnection()) {
+            consume(AssignmentTwoServer.findQuizzes(c, 1, 3, 3, "", "", 0, PAGE_SIZE + 1), blackhole);
+        }
+    }
+
+    @Benchmark
+    public int[] catalogListFirstPage() {
+        return catalog.snapshot().list(1, 1, Integer.MAX_VALUE, 0, PAGE_SIZE + 1);
+    }
+
+    @Benchmark
+    public int[] catalogListAfterCursor(Ids ids) {
+        return catalog.snapshot().list(1, 1, Integer.MAX_VALUE, cursorIds[ids.next(CURSORS)], PAGE_SIZE + 1);
+    }
+
+    @Benchmark
+    public int[] catalogListFiltered() {
+        return catalog.snapshot().list(1, 3, 3, 0, PAGE_SIZE + 1);
+    }
+
+    // The whole /play page except for Javalin: the catalog lookup, and the quizzes written as HTML.
+    @Benchmark
+    public void quizListPage() {
+        QuizCatalog.Snapshot quizzes = catalog.snapshot();
+        int[] found = quizzes.list(1, 1, Integer.MAX_VALUE, 0, PAGE_SIZE + 1);
+        // end() closes the stream, so each page needs its own.
+        HtmlPage page = new HtmlPage(OutputStream.nullOutputStream(), "Play", true);
+        AssignmentTwoServer.writeQuizList(page, quizzes, found, PAGE_SIZE);
+        page.end();
+    }
+
+    // A word that is in a large part of the quizzes.
+    @Benchmark
+    public int[] searchCommonWord() throws SQLException {
+        try (Connection c = db.getConnection()) {
+            String query = AssignmentTwoServer.searchQuery("capital");
+            return AssignmentTwoServer.searchQuizzes(c, catalog.snapshot(), 1, query, PAGE_SIZE);
+        }
+    }
+
+    // A short prefix that matches several different words.
+    @Benchmark
+    public int[] searchPrefix() throws SQLException {
+        try (Connection c = db.getConnection()) {
+            String query = AssignmentTwoServer.searchQuery("vo");
+            return AssignmentTwoServer.searchQuizzes(c, catalog.snapshot(), 1, query, PAGE_SIZE);
+        }
+    }
+
+    // Two words that both have to match.
+    @Benchmark
+    public int[] searchTwoWords() throws SQLException {
+        try (Connection c = db.getConnection()) {
+            String query = AssignmentTwoServer.searchQuery("river kenya");
+            return AssignmentTwoServer.searchQuizzes(c, catalog.snapshot(), 1, query, PAGE_SIZE);
+        }
+    }
+
+    // Building the JSON for /quiz/:quiz_id, without the cache in front of it.
+    @Benchmark
+    public QuizCache.Entry singleQuizData(Ids ids) throws SQLException, IOException {
+        try (Connection c = db.getConnection()) {
+            return AssignmentTwoServer.loadQuizData(c, FIRST_QUIZ_ID + ids.next(quizzes));
+        }
+    }
+
+    private static void consume(ResultSet rows, Blackhole blackhole) throws SQLException {
+        try (rows) {
+            while (rows.next()) {
+                blackhole.consume(rows.getInt("quiz_id"));
+            }
+        }
+    }
+}
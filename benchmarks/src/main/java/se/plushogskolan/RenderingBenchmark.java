@@ -0,0 +1,114 @@
+package se.plushogskolan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.owasp.encoder.Encode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+// Compares rendering the quiz list with HtmlPage against the way pages used to be built, by gluing strings together
+// with template(). Both write the same quizzes from the catalog of the smallest dataset, so the difference between
+// them is the cost of the rendering itself. Run with `-prof gc` to see how many bytes each page allocates.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderingBenchmark {
+    @Param({"50", "500"})
+    int pageSize;
+
+    private QuizCatalog catalog;
+    private final OutputStream out = OutputStream.nullOutputStream();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        try (ConnectionPool db = BenchmarkDatabase.open(BenchmarkDatabase.get(1000), 1);
+             Connection c = db.getConnection()) {
+            catalog = QuizCatalog.load(c);
+        }
+    }
+
+    @Benchmark
+    public void htmlPage() {
+        QuizCatalog.Snapshot quizzes = catalog.snapshot();
+        int[] found = quizzes.list(1, 1, Integer.MAX_VALUE, 0, pageSize + 1);
+        // end() closes the stream, so each page needs its own.
+        HtmlPage page = new HtmlPage(OutputStream.nullOutputStream(), "Play", true).html("<div class='quiz-index'>");
+        AssignmentTwoServer.writeQuizList(page, quizzes, found, pageSize);
+        page.html("</div>").end();
+    }
+
+    @Benchmark
+    public void legacyTemplate() throws IOException {
+        QuizCatalog.Snapshot quizzes = catalog.snapshot();
+        int[] found = quizzes.list(1, 1, Integer.MAX_VALUE, 0, pageSize + 1);
+        String content = "<div class='quiz-index'><ul>";
+        for (int i = 0; i < Math.min(found.length, pageSize); i++) {
+            int position = found[i];
+            content +=
+                "<li>" +
+                    "<a href='/play/" + quizzes.id(position) + "'>" +
+                        Encode.forHtml(quizzes.title(position)) + " by " +
+                        Encode.forHtml(quizzes.username(position)) +
+                        (quizzes.isPublic(position) ? "" : " [private]") +
+                        " (" + quizzes.questionCount(position) + " questions)" +
+                    "</a>" +
+                "</li>";
+        }
+        content += "</ul></div>";
+        out.write(template("Play", content).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // The template() method as it was before HtmlPage, kept here as the baseline.
+    private static String template(String title, String content) {
+        return
+            "<!DOCTYPE html>" +
+            "<html lang='en'>" +
+                "<head>" +
+                    "<meta charset='UTF-8'>" +
+                    "<meta name='viewport' content='width=device-width, initial-scale=1.0'>" +
+                    "<title>" + title + "</title>" +
+                    "<script src='/main.js' defer></script>" +
+                    "<link rel='stylesheet' href='/main.css'>" +
+                    "<link rel='stylesheet' href='https://fonts.googleapis.com/css2?family=Open+Sans:wght@800&display=swap'>" +
+                "</head>" +
+                "<body>" +
+                    "<header>" +
+                        "<nav>" +
+                            "<ul>" +
+                                "<li><a href='/create'>✏️ Create</a></li>" +
+                                "<li><a href='/play'>🎲 Play</a></li>" +
+                                "<li><a href='/search'>🔍 Search</a></li>" +
+                                "<li><a href='/flags'>🎌 Flags</a></li>" +
+                            "</ul>" +
+                        "</nav>" +
+                    "</header>" +
+                    "<main>" +
+                        content +
+                    "</main>" +
+                    "<footer>" +
+                        "<form method='post' action='/logout'>" +
+                            "<button type='submit'>Log Out</button>" +
+                        "</form>" +
+                    "</footer>" +
+                "</body>" +
+            "</html>";
+    }
+}
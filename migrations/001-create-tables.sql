@@ -1,13 +1,13 @@
-DROP TABLE IF EXISTS user;
+-- The tables the site started out with, and the example users and quizzes.
 
 CREATE TABLE user (
     id INTEGER PRIMARY KEY,
     username TEXT UNIQUE,
+    -- A salted hash of the password (see Credentials). The example users below start out with plain passwords, which
+    -- are replaced by hashes the first time they log in.
     password TEXT
 );
 
-DROP TABLE IF EXISTS quiz;
-
 CREATE TABLE quiz (
     id INTEGER PRIMARY KEY,
     user_id INTEGER,
@@ -18,8 +18,6 @@ CREATE TABLE quiz (
     FOREIGN KEY(user_id) REFERENCES user(id)
 );
 
-DROP TABLE IF EXISTS question;
-
 CREATE TABLE question (
     id INTEGER PRIMARY KEY,
     quiz_id INTEGER,
@@ -67,4 +65,4 @@ INSERT INTO question(quiz_id, number, prompt, option_1, option_2, option_3, opti
 (4, 4, 'Who is president of Seychelles?', 'James Michel', 'France-Albert Rene', 'Danny Faure', 'James Mancham', 3, 'seychelles.svg'),
 (5, 1, 'Where is my secret summer house?', 'Marseille', 'Paris', 'Cannes', 'Lyon', 1, 'france.svg'),
 (5, 2, 'Where is the top-secret real-world Men in Black headquarters located?', 'New York', 'California', 'Nevada', 'Idaho', 3, 'usa.svg'),
-(5, 3, 'Where is the actual mothership from Independence Day being kept?', 'England', 'France', 'Russia', 'Sweden', 4, 'eu.svg');
\ No newline at end of file
+(5, 3, 'Where is the actual mothership from Independence Day being kept?', 'England', 'France', 'Russia', 'Sweden', 4, 'eu.svg');
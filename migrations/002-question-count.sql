@@ -0,0 +1,20 @@
+-- Store the number of questions on each quiz, so the quiz list doesn't need to count the questions of every quiz each
+-- time it is shown. The triggers keep it up to date from here on.
+
+ALTER TABLE quiz ADD COLUMN question_count INTEGER NOT NULL DEFAULT 0;
+
+-- Used for getting the questions of a single quiz in order. It is created here rather than in the background, since
+-- counting the questions below needs it too.
+CREATE INDEX IF NOT EXISTS question_quiz_id_number ON question(quiz_id, number);
+
+UPDATE quiz SET question_count = (SELECT count(*) FROM question WHERE question.quiz_id = quiz.id);
+
+CREATE TRIGGER question_count_insert AFTER INSERT ON question
+BEGIN
+    UPDATE quiz SET question_count = question_count + 1 WHERE id = NEW.quiz_id;
+END;
+
+CREATE TRIGGER question_count_delete AFTER DELETE ON question
+BEGIN
+    UPDATE quiz SET question_count = question_count - 1 WHERE id = OLD.quiz_id;
+END;
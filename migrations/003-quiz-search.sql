@@ -0,0 +1,11 @@
+-- Full-text index over the quiz titles and the text of their questions, used by the search page. The rowid of each row
+-- is the ID of the quiz. The prefix option adds extra index entries for 2 and 3 character prefixes, which makes the
+-- prefix searches (e.g. "cap*") that the search page uses faster.
+CREATE VIRTUAL TABLE quiz_search USING fts5(title, questions, prefix='2 3');
+
+-- Index the quizzes that are already there. New quizzes are added by the server when they are created.
+INSERT INTO quiz_search(rowid, title, questions)
+SELECT quiz.id, quiz.title, group_concat(prompt || ' ' || option_1 || ' ' || option_2 || ' ' || option_3 || ' ' || option_4, ' ')
+FROM quiz
+JOIN question ON quiz.id = question.quiz_id
+GROUP BY quiz.id;
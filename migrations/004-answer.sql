@@ -0,0 +1,15 @@
+-- Every answer given to a question. These are written in batches in the background (see AnswerLog), so the newest
+-- answers may take a moment to show up here.
+CREATE TABLE answer (
+    id INTEGER PRIMARY KEY,
+    user_id INTEGER,
+    quiz_id INTEGER,
+    -- The number of the question within the quiz, like question.number.
+    question_number INTEGER,
+    chosen_option INTEGER,
+    -- 1 if the chosen option was the correct one.
+    correct INTEGER,
+    answered_at TEXT,
+    FOREIGN KEY(user_id) REFERENCES user(id),
+    FOREIGN KEY(quiz_id) REFERENCES quiz(id)
+);
@@ -0,0 +1,15 @@
+-- The best score of each user on each quiz, for the leaderboards.
+CREATE TABLE score (
+    quiz_id INTEGER,
+    user_id INTEGER,
+    -- The number of correct answers, out of question_count.
+    score INTEGER,
+    question_count INTEGER,
+    scored_at TEXT,
+    PRIMARY KEY(quiz_id, user_id),
+    FOREIGN KEY(quiz_id) REFERENCES quiz(id),
+    FOREIGN KEY(user_id) REFERENCES user(id)
+);
+
+-- Used for loading the top scores of a quiz in order.
+CREATE INDEX score_quiz_id_score ON score(quiz_id, score DESC, scored_at);
@@ -0,0 +1,12 @@
+-- Login sessions, when they are kept in the database (see SqliteSessionStore). Only a hash of each token is stored, so
+-- that reading this table doesn't let anyone log in as someone else.
+CREATE TABLE session (
+    token_hash TEXT PRIMARY KEY,
+    user_id INTEGER NOT NULL,
+    -- When the session expires unless it is used again, in milliseconds since 1970.
+    expires_at INTEGER NOT NULL,
+    FOREIGN KEY(user_id) REFERENCES user(id)
+) WITHOUT ROWID;
+
+-- Used for deleting the expired sessions.
+CREATE INDEX session_expires_at ON session(expires_at);
@@ -0,0 +1,11 @@
+-- Indexes that only make queries faster, and that the server works without. They are built in the background after
+-- the server has started (see Migrations), one at a time, so that adding one to a large table doesn't hold up startup.
+-- Each statement must end with a semicolon at the end of a line, and must be safe to run again.
+
+-- Used for listing the quizzes that are public or belong to the current user, filtered by the number of questions.
+CREATE INDEX IF NOT EXISTS quiz_public_question_count ON quiz(public, question_count);
+
+CREATE INDEX IF NOT EXISTS quiz_user_id_question_count ON quiz(user_id, question_count);
+
+-- Used for paging through the quiz list in title order.
+CREATE INDEX IF NOT EXISTS quiz_title ON quiz(title);
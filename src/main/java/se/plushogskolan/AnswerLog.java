@@ -0,0 +1,204 @@
+package se.plushogskolan;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Records every answer given in a quiz, without making the player wait for the database.
+//
+// Answers are put in a fixed-size ring buffer in memory, and the request returns straight away. A background thread
+// takes whatever has collected in the buffer every little while and writes it to the "answer" table, many rows per
+// transaction, through the database writer. That way a thousand answers cost one commit instead of a thousand.
+//
+// The buffer has a hard limit. If the flusher can't keep up (for example because the writer is busy) and the buffer
+// fills up, new answers are rejected with a FullException, which the server turns into a 503, instead of using more
+// and more memory.
+class AnswerLog implements AutoCloseable {
+    // A single answer to a single question.
+    static final class Answer {
+        final int userId;
+        final int quizId;
+        final int questionNumber;
+        final int chosenOption;
+        final boolean correct;
+        final long answeredAt;
+
+        Answer(int userId, int quizId, int questionNumber, int chosenOption, boolean correct, long answeredAt) {
+            this.userId = userId;
+            this.quizId = quizId;
+            this.questionNumber = questionNumber;
+            this.chosenOption = chosenOption;
+            this.correct = correct;
+            this.answeredAt = answeredAt;
+        }
+    }
+
+    // Thrown when the buffer is full.
+    static class FullException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        FullException(String message) {
+            super(message);
+        }
+    }
+
+    private final DatabaseWriter writer;
+    private final ArrayBlockingQueue<Answer> buffer;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    // Metrics.
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong maxBatch = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+
+    AnswerLog(DatabaseWriter writer, int capacity, int batchSize, long flushIntervalMillis) {
+        this.writer = writer;
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.flusher = new Thread(this::flushLoop, "answer-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    // Add an answer to the buffer. This never waits: if the buffer is full, it throws a FullException.
+    void record(Answer answer) {
+        if (!buffer.offer(answer)) {
+            rejected.incrementAndGet();
+            throw new FullException("Too many answers are waiting to be saved, please try again in a moment.");
+        }
+        accepted.incrementAndGet();
+    }
+
+    private void flushLoop() {
+        List<Answer> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(flushIntervalMillis);
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+
+            // Keep going without sleeping for as long as there are full batches waiting.
+            do {
+                buffer.drainTo(batch, batchSize - batch.size());
+            }
+            while (flush(batch) && batch.size() == 0 && buffer.size() >= batchSize);
+        }
+
+        // Write what's left before stopping.
+        buffer.drainTo(batch);
+        flush(batch);
+    }
+
+    // Write a batch of answers in one transaction. Returns false if the writer was too busy to take it, in which case
+    // the batch is left as it is and tried again next time.
+    private boolean flush(List<Answer> batch) {
+        if (batch.isEmpty()) {
+            return true;
+        }
+
+        long start = System.nanoTime();
+        try {
+            writer.executeInTransaction(c -> {
+                // Prepared again for each batch, so it has to be closed. Preparing it is cheap next to the batch
+                // itself.
+                try (PreparedStatement s = c.prepareStatement(
+                    "INSERT INTO answer (user_id, quiz_id, question_number, chosen_option, correct, answered_at) " +
+                    "VALUES (?, ?, ?, ?, ?, ?)"
+                )) {
+                    for (Answer answer : batch) {
+                        s.setInt(1, answer.userId);
+                        s.setInt(2, answer.quizId);
+                        s.setInt(3, answer.questionNumber);
+                        s.setInt(4, answer.chosenOption);
+                        s.setBoolean(5, answer.correct);
+                        s.setString(6, Instant.ofEpochMilli(answer.answeredAt).toString());
+                        s.addBatch();
+                    }
+                    s.executeBatch();
+                    return null;
+                }
+            });
+            written.addAndGet(batch.size());
+            batches.incrementAndGet();
+            maxBatch.accumulateAndGet(batch.size(), Math::max);
+        }
+        catch (DatabaseWriter.BusyException e) {
+            return false;
+        }
+        catch (SQLException e) {
+            // Retrying something that failed for another reason than the queue being full would most likely just fail
+            // again, and keep the buffer from ever emptying.
+            System.err.println("Could not save " + batch.size() + " answers: " + e);
+            dropped.addAndGet(batch.size());
+        }
+        finally {
+            totalFlushNanos.addAndGet(System.nanoTime() - start);
+        }
+        batch.clear();
+        return true;
+    }
+
+    // Stop the flusher, after writing everything that is still in the buffer. The flusher isn't interrupted, since that
+    // would also interrupt a write in progress; it notices on its own within one flush interval.
+    @Override
+    public void close() {
+        running = false;
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    int buffered() {
+        return buffer.size();
+    }
+
+    int capacity() {
+        return buffer.size() + buffer.remainingCapacity();
+    }
+
+    long acceptedCount() {
+        return accepted.get();
+    }
+
+    long rejectedCount() {
+        return rejected.get();
+    }
+
+    long writtenCount() {
+        return written.get();
+    }
+
+    long droppedCount() {
+        return dropped.get();
+    }
+
+    long batchCount() {
+        return batches.get();
+    }
+
+    long maxBatchSize() {
+        return maxBatch.get();
+    }
+
+    long totalFlushNanos() {
+        return totalFlushNanos.get();
+    }
+}
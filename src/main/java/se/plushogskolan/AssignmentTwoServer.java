@@ -1,62 +1,329 @@
 package se.plushogskolan;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import io.javalin.Javalin;
 import io.javalin.http.Context;
-import io.javalin.http.staticfiles.Location;
-import org.owasp.encoder.Encode;
+import io.javalin.http.Handler;
 import org.sqlite.SQLiteDataSource;
 
-import java.io.File;
+import javax.xml.stream.XMLStreamException;
+
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.sql.*;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class AssignmentTwoServer {
-    private static final Path DB_PATH = Path.of("app.db");
-    private static final Path DB_SCRIPT_PATH = Path.of("create.sql");
-    private static SQLiteDataSource db;
+    // The database file. Can be pointed somewhere else, e.g. at a generated dataset for load testing (see the
+    // benchmarks).
+    private static final Path DB_PATH = Path.of(System.getProperty("db.path", "app.db"));
+    // The port to listen on. Several servers can share one database file (and so one set of logins) on the same host,
+    // as long as each gets a port of its own, e.g. `-Dserver.port=8001`.
+    private static final int SERVER_PORT = Integer.getInteger("server.port", 8000);
+    // The schema changes, applied at startup (see Migrations).
+    private static final Path MIGRATIONS_PATH = Path.of("migrations");
+    private static Migrations migrations;
+    // Connection pool settings. These can be changed when starting the server, e.g. `-Ddb.pool.size=16`.
+    private static final int DB_POOL_SIZE = Integer.getInteger("db.pool.size", 8);
+    private static final int DB_STATEMENT_CACHE_SIZE = Integer.getInteger("db.pool.statements", 32);
+    private static final long DB_POOL_TIMEOUT_MILLIS = Long.getLong("db.pool.timeout", 5000);
+    // Write-ahead logging lets readers keep going while the writer is busy. Set `-Ddb.wal=false` to go back to
+    // SQLite's default rollback journal.
+    private static final boolean DB_WAL = Boolean.parseBoolean(System.getProperty("db.wal", "true"));
+    private static final int DB_WRITE_QUEUE_SIZE = Integer.getInteger("db.writer.queue", 256);
+    // How long a write waits for its turn before the request gives up with a 503, e.g. while an index is being built.
+    private static final long DB_WRITE_WAIT_MILLIS = Long.getLong("db.writer.wait", 10000);
+    private static final long DB_CHECKPOINT_SECONDS = Long.getLong("db.writer.checkpoint", 30);
+    private static final int DB_BUSY_TIMEOUT_MILLIS = 5000;
+    // The number of quizzes shown per page on /play, unless the `size` parameter asks for another number.
+    private static final int QUIZ_PAGE_SIZE = 50;
+    private static final int QUIZ_PAGE_SIZE_MAX = 500;
+    // The maximum number of search results shown.
+    private static final int SEARCH_RESULT_LIMIT = 50;
+    // How many times as many matches to ask the search index for as there are results to show.
+    private static final int SEARCH_OVERFETCH = 4;
+    private static final Path FLAGS_PATH = Path.of("flags");
+    private static final Path STATIC_PATH = Path.of("static");
+    private static StaticAssets assets;
+    private static ConnectionPool db;
+    private static DatabaseWriter writer;
+    private static FlagAssets flags;
+    // The maximum total size of the transformed flags kept in memory (see FlagVariantCache).
+    private static final long FLAG_VARIANT_CACHE_BYTES = Long.getLong("flag.variants.bytes", 8 * 1024 * 1024);
+    private static FlagVariantCache flagVariants;
+    // The maximum total size of the quiz JSON kept in memory, e.g. `-Dquiz.cache.bytes=67108864` for 64 MB.
+    private static final long QUIZ_CACHE_BYTES = Long.getLong("quiz.cache.bytes", 16 * 1024 * 1024);
+    private static final JsonFactory JSON = new JsonFactory();
+    private static QuizCache quizCache;
+    // The title, author, visibility and question count of every quiz, in memory (see QuizCatalog).
+    private static QuizCatalog catalog;
+    // Password hashing. By default it gets half of the CPU cores, so that a lot of logins at once still leave the other
+    // half for everything else. The iteration count follows the OWASP recommendation for PBKDF2-HMAC-SHA256; raising
+    // it makes existing hashes get upgraded the next time their users log in.
+    private static final int AUTH_THREADS =
+        Integer.getInteger("auth.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int AUTH_QUEUE_SIZE = Integer.getInteger("auth.queue", 32);
+    private static final int AUTH_ITERATIONS = Integer.getInteger("auth.iterations", 310000);
+    private static Credentials credentials;
+    // Login sessions are kept in the database by default, so that they survive restarts and can be shared by two
+    // servers using the same database. Set `-Dsessions.store=memory` to keep them in memory only instead. Either way,
+    // at most `sessions.max` sessions are held in memory, and a session ends after `sessions.idle` seconds unused.
+    private static final String SESSION_STORE = System.getProperty("sessions.store", "sqlite");
+    private static final int SESSION_MAX = Integer.getInteger("sessions.max", 100000);
+    private static final long SESSION_IDLE_SECONDS = Long.getLong("sessions.idle", 7 * 24 * 60 * 60);
+    // How long a session read from the database is trusted before it is read again (in case another server has logged
+    // it out), and how often expiry extensions are saved, in seconds.
+    private static final long SESSION_RECHECK_SECONDS = Long.getLong("sessions.recheck", 5);
+    private static final long SESSION_FLUSH_SECONDS = Long.getLong("sessions.flush", 10);
+    private static final String SESSION_COOKIE = "session";
+    private static final String CATALOG_ATTRIBUTE = "catalog";
+    private static SessionStore sessions;
+    // Answers are saved in the background (see AnswerLog). At most this many can be waiting to be saved, and they are
+    // written at most this many per transaction, every this many milliseconds.
+    private static final int ANSWER_BUFFER_SIZE = Integer.getInteger("answers.buffer", 65536);
+    private static final int ANSWER_BATCH_SIZE = Integer.getInteger("answers.batch", 4096);
+    private static final long ANSWER_FLUSH_MILLIS = Long.getLong("answers.flush", 200);
+    private static AnswerLog answers;
+    // The number of places on each leaderboard, and the number of quizzes to keep leaderboards in memory for.
+    private static final int LEADERBOARD_SIZE = Integer.getInteger("leaderboard.size", 10);
+    private static final int LEADERBOARD_QUIZZES = Integer.getInteger("leaderboard.quizzes", 10000);
+    private static Leaderboards leaderboards;
+    // Quizzes are imported this many per transaction (see QuizTransfer).
+    private static final int IMPORT_CHUNK_SIZE = Integer.getInteger("import.chunk", 500);
+    private static QuizTransfer transfer;
+    // With `-Dasync=true`, the handlers that wait on the database run on a separate executor instead of on Jetty's
+    // request threads (see AsyncHandlers), with at most `async.route.limit` requests per route running or waiting at
+    // once, and requests turned away after waiting `async.timeout` milliseconds for a thread.
+    private static final boolean ASYNC = Boolean.getBoolean("async");
+    private static final int ASYNC_THREADS = Integer.getInteger("async.threads", DB_POOL_SIZE * 2);
+    private static final int ASYNC_QUEUE_SIZE = Integer.getInteger("async.queue", 256);
+    private static final int ASYNC_ROUTE_LIMIT = Integer.getInteger("async.route.limit", DB_POOL_SIZE);
+    private static final long ASYNC_TIMEOUT_MILLIS = Long.getLong("async.timeout", 2000);
+    private static AsyncHandlers asyncHandlers;
+    // Pages and quiz JSON of at least `compression.min` bytes are gzipped for clients that accept it (see
+    // ResponseCompression), at `compression.level` (1 is fastest, 9 is smallest), with up to `compression.pool`
+    // Deflaters kept for reuse.
+    private static final int COMPRESSION_MIN_BYTES = Integer.getInteger("compression.min", 1024);
+    private static final int COMPRESSION_LEVEL = Integer.getInteger("compression.level", 6);
+    private static final int COMPRESSION_POOL_SIZE =
+        Integer.getInteger("compression.pool", Runtime.getRuntime().availableProcessors() * 2);
+    private static ResponseCompression compression;
+    // Part of the ETag of every page that is checked with conditional requests (see `conditional`). The version
+    // counters those ETags are made from start over when the server restarts, and the assets the pages link to may
+    // have changed, so ETags from before a restart must never match.
+    private static final String VALIDATOR_EPOCH = Long.toString(System.currentTimeMillis(), 36);
+    // Dev logging prints every request and response in full, which is useful when developing but far too slow and
+    // noisy in production. Start the server with `-Dapp.dev=true` to turn it on.
+    private static final boolean DEV_MODE = Boolean.getBoolean("app.dev");
+    private static final RequestMetrics requestMetrics = new RequestMetrics();
+    // Statements slower than this are logged along with their query plan, which is looked up at most once per statement
+    // every this many seconds. The aggregates for each statement are at /metrics/queries.
+    private static final long DB_SLOW_MILLIS = Long.getLong("db.slow.millis", 100);
+    private static final long DB_EXPLAIN_SECONDS = Long.getLong("db.slow.explain", 60);
+    private static final QueryMetrics queryMetrics = new QueryMetrics(DB_SLOW_MILLIS, DB_EXPLAIN_SECONDS);
+    // What the server is doing while it starts up, for /health/ready. Everything but the health checks is turned away
+    // with a 503 until `ready` is set. /health/ready also waits for the indexes (see readinessPage).
+    private static volatile String startupStep = "Starting";
+    private static volatile boolean ready;
+
+    // Thrown for requests that arrive before the server is ready.
+    private static class StartingException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        StartingException(String message) {
+            super(message);
+        }
+    }
 
     public static void main(String[] args) throws IOException, SQLException {
-        db = new SQLiteDataSource();
-        db.setUrl("jdbc:sqlite:" + DB_PATH);
-        if (!Files.exists(DB_PATH)) {
-            createDatabase();
+        // The HTTP server is started first, so that /health/live answers straight away and a load balancer can see
+        // that the server is on its way up. The database and everything loaded from it comes after that, and the
+        // other routes only start answering when it is done.
+        migrations = new Migrations(MIGRATIONS_PATH);
+
+        // All writes go through a single writer connection. It is opened first, since it is also the one that
+        // creates the database file and switches it to WAL mode (which is then remembered in the file itself).
+        SQLiteDataSource writerSource = new SQLiteDataSource();
+        writerSource.setUrl("jdbc:sqlite:" + DB_PATH);
+        writerSource.getConfig().setBusyTimeout(DB_BUSY_TIMEOUT_MILLIS);
+        if (DB_WAL) {
+            writerSource.setJournalMode("WAL");
+            // In WAL mode NORMAL is still safe against corruption, it just syncs at checkpoints instead of commits.
+            writerSource.setSynchronous("NORMAL");
+        }
+        writer = new DatabaseWriter(
+            queryMetrics.timed(writerSource.getConnection()), DB_WRITE_QUEUE_SIZE, DB_WRITE_WAIT_MILLIS,
+            DB_WAL ? DB_CHECKPOINT_SECONDS : 0
+        );
+
+        // Read, fingerprint and compress the JavaScript, CSS and images once, and link them from every page.
+        assets = new StaticAssets(STATIC_PATH);
+        HtmlPage.useAssets(assets);
+        compression = new ResponseCompression(COMPRESSION_MIN_BYTES, COMPRESSION_LEVEL, COMPRESSION_POOL_SIZE);
+        if (ASYNC) {
+            asyncHandlers = new AsyncHandlers(ASYNC_THREADS, ASYNC_QUEUE_SIZE, ASYNC_ROUTE_LIMIT, ASYNC_TIMEOUT_MILLIS);
         }
 
         Javalin app = Javalin.create(config -> {
-            config.enableDevLogging();
-            config.addStaticFiles("static", Location.EXTERNAL);
-        }).start("localhost", 8000);
+            if (DEV_MODE) {
+                config.enableDevLogging();
+            }
+        }).start("localhost", SERVER_PORT);
+        addRoutes(app);
+
+        try {
+            startUp();
+        }
+        catch (IOException | SQLException | RuntimeException e) {
+            // Leave the database as it is, so that nothing is lost. Migrations are all-or-nothing, so it is either
+            // still at the old version or fully at the new one.
+            app.stop();
+            writer.close();
+            throw e;
+        }
+        ready = true;
+        startupStep = "Building indexes";
+        System.out.println("Taking traffic");
+
+        // Nothing has to wait for these, so they are done after the server has started answering. Until the indexes
+        // are built /health/ready still says it isn't ready, since writes have to wait for them.
+        migrations.buildIndexesInBackground(writer).thenRun(() -> {
+            startupStep = "Ready";
+            System.out.println("Ready to take traffic");
+        });
+        CompletableFuture.runAsync(() -> {
+            try {
+                leaderboards.loadAll();
+            }
+            catch (SQLException e) {
+                // The boards are loaded when they are first needed instead.
+                System.err.println("Could not preload the leaderboards: " + e);
+            }
+        });
+    }
+
+    // Bring the database up to date and load everything the routes need from it.
+    private static void startUp() throws IOException, SQLException {
+        startupStep = "Migrating the database";
+        long start = System.nanoTime();
+        int applied = migrations.migrate(writer);
+        System.out.printf(
+            "Database at version %d, %d migrations applied in %.1f s%n",
+            migrations.version(), applied, (System.nanoTime() - start) / 1e9
+        );
+
+        // The pooled connections are only used for reading, so open them read-only to make sure nothing writes
+        // behind the writer's back.
+        SQLiteDataSource readerSource = new SQLiteDataSource();
+        readerSource.setUrl("jdbc:sqlite:" + DB_PATH);
+        readerSource.setReadOnly(true);
+        readerSource.getConfig().setBusyTimeout(DB_BUSY_TIMEOUT_MILLIS);
+        db = new ConnectionPool(
+            readerSource, DB_POOL_SIZE, DB_STATEMENT_CACHE_SIZE, DB_POOL_TIMEOUT_MILLIS, queryMetrics
+        );
+        // Slow statements are explained on a read-only connection of their own, away from the pool and the writer.
+        queryMetrics.explainWith(readerSource);
+
+        // Load all the flags into memory, and reload them whenever the folder changes.
+        flags = new FlagAssets(FLAGS_PATH);
+        flags.watch();
+        flagVariants = new FlagVariantCache(FLAG_VARIANT_CACHE_BYTES);
+
+        quizCache = new QuizCache(QUIZ_CACHE_BYTES);
+        startupStep = "Loading the quiz catalog";
+        try (Connection c = db.getConnection()) {
+            catalog = QuizCatalog.load(c);
+        }
+        credentials = new Credentials(AUTH_THREADS, AUTH_QUEUE_SIZE, AUTH_ITERATIONS);
+        if (SESSION_STORE.equals("memory")) {
+            sessions = new MemorySessionStore(SESSION_MAX, TimeUnit.SECONDS.toMillis(SESSION_IDLE_SECONDS));
+        }
+        else {
+            sessions = new SqliteSessionStore(
+                writer, db, SESSION_MAX, TimeUnit.SECONDS.toMillis(SESSION_IDLE_SECONDS),
+                TimeUnit.SECONDS.toMillis(SESSION_RECHECK_SECONDS), TimeUnit.SECONDS.toMillis(SESSION_FLUSH_SECONDS)
+            );
+        }
+        answers = new AnswerLog(writer, ANSWER_BUFFER_SIZE, ANSWER_BATCH_SIZE, ANSWER_FLUSH_MILLIS);
+        // The leaderboards are filled in the background once the server is ready, and loaded on demand until then.
+        leaderboards = new Leaderboards(db, LEADERBOARD_SIZE, LEADERBOARD_QUIZZES);
+        transfer = new QuizTransfer(writer, db, flags, quizCache, catalog, IMPORT_CHUNK_SIZE);
+    }
 
+    private static void addRoutes(Javalin app) {
+        // If the write queue, the password hashing queue or the answer buffer is full, tell the client to come back
+        // later instead of making it wait.
+        app.exception(DatabaseWriter.BusyException.class, AssignmentTwoServer::serviceUnavailable);
+        app.exception(Credentials.QueueFullException.class, AssignmentTwoServer::serviceUnavailable);
+        app.exception(AnswerLog.FullException.class, AssignmentTwoServer::serviceUnavailable);
+        app.exception(QuizTransfer.ImportRunningException.class, AssignmentTwoServer::serviceUnavailable);
+        app.exception(AsyncHandlers.RejectedException.class, AssignmentTwoServer::serviceUnavailable);
+        app.exception(StartingException.class, AssignmentTwoServer::serviceUnavailable);
+
+        // Health checks, for a load balancer or an orchestrator. They don't need a login. Live means the process is up
+        // and answering; ready means it can take traffic.
+        app.get("/health/live", context -> context.contentType("text/plain; charset=UTF-8").result("Live"));
+        app.get("/health/ready", context -> readinessPage(context));
         app.before(context -> {
-            context.contentType("text/html; charset=UTF-8");
+            if (!ready && !context.path().startsWith("/health/")) {
+                throw new StartingException("The server is starting up, please try again in a moment.");
+            }
         });
 
         // Main HTML handlers.
-        app.get("/", context -> mainPage(context));
-        app.get("/create", context -> createQuizPage(context));
-        app.post("/create", context -> createQuiz(context));
-        app.get("/play", context -> quizListPage(context));
-        app.get("/play/:quiz_id", context -> singleQuizPage(context));
-        app.get("/search", context -> searchPage(context));
-        app.get("/flags", context -> flagListPage(context));
-        app.get("/flag", context -> singleFlagPage(context));
-
-        // JSON handlers.
-        app.get("/quiz/:quiz_id", context -> singleQuizData(context));
+        get(app, "/", context -> mainPage(context));
+        get(app, "/create", context -> createQuizPage(context));
+        post(app, "/create", offloaded(context -> createQuiz(context)));
+        get(app, "/play", conditional(
+            context -> quizListEtag(context), offloaded(context -> quizListPage(context))
+        ));
+        get(app, "/play/:quiz_id", context -> singleQuizPage(context));
+        get(app, "/play/:quiz_id/leaderboard", offloaded(context -> leaderboardPage(context)));
+        get(app, "/search", conditional(context -> searchEtag(context), offloaded(context -> searchPage(context))));
+        get(app, "/flags", conditional(context -> flagListEtag(context), context -> flagListPage(context)));
+        get(app, "/flag", context -> singleFlagPage(context));
+        get(app, "/flags/:sprite", context -> flagSprite(context));
+
+        // JSON handlers. The NDJSON ones come first, so that "export" isn't taken for a quiz ID.
+        get(app, "/quiz/export", offloaded(context -> exportQuizzes(context)));
+        post(app, "/quiz/import", offloaded(context -> importQuizzes(context)));
+        get(app, "/quiz/:quiz_id", conditional(
+            context -> quizEtag(context), offloaded(context -> singleQuizData(context))
+        ));
+        post(app, "/quiz/:quiz_id/answer", context -> answerQuestion(context));
+        post(app, "/quiz/:quiz_id/score", offloaded(context -> submitScore(context)));
 
         // Authentication handlers.
         app.before(context -> {
-            if (context.path().endsWith(".css") || context.path().endsWith(".js") || context.path().endsWith("jpg")) {
+            if (context.path().startsWith("/assets/") || assets.byName(context.path().substring(1)) != null) {
+                return;
+            }
+            if (context.path().equals("/metrics") || context.path().startsWith("/metrics/")) {
+                return;
+            }
+            if (context.path().startsWith("/health/")) {
                 return;
             }
 
+            // Look up the session once, for the handlers to use.
+            String token = context.cookie(SESSION_COOKIE);
+            if (token != null) {
+                context.attribute(SESSION_COOKIE, sessions.get(token));
+            }
+
             boolean authPath = context.path().equals("/login") || context.path().equals("/register");
             // If already logged in and trying to login or register, just redirect to main page.
             if (userIsLoggedIn(context) && authPath) {
@@ -68,567 +335,1385 @@ public class AssignmentTwoServer {
             }
         });
 
-        app.get("/login", context -> loginPage(context));
-        app.post("/login", context -> login(context));
-        app.get("/register", context -> registerPage(context));
-        app.post("/register", context -> register(context));
-        app.post("/logout", context -> {
-            context.req.getSession().invalidate();
+        get(app, "/login", context -> loginPage(context));
+        post(app, "/login", offloaded(context -> login(context)));
+        get(app, "/register", context -> registerPage(context));
+        post(app, "/register", offloaded(context -> register(context)));
+        post(app, "/logout", context -> {
+            sessions.delete(session(context).token);
+            setSessionCookie(context, "", 0);
             context.redirect("/");
         });
+
+        // Static files, by their fingerprinted URLs and by their plain names.
+        get(app, "/assets/*", context -> fingerprintedAsset(context));
+        for (StaticAssets.Asset asset : assets.all()) {
+            get(app, "/" + asset.name, context -> plainAsset(context, asset));
+        }
+
+        // Metrics in the Prometheus text format. The server only listens on localhost, so this is not reachable from
+        // outside, and it is left out of the login check so that Prometheus can read it without logging in.
+        app.get("/metrics", context -> metricsPage(context));
+        app.get("/metrics/queries", context -> queryMetricsPage(context));
+    }
+
+    // Register a handler, with its requests measured by requestMetrics.
+    private static void get(Javalin app, String path, Handler handler) {
+        app.get(path, requestMetrics.timed("GET", path, handler));
+    }
+
+    private static void post(Javalin app, String path, Handler handler) {
+        app.post(path, requestMetrics.timed("POST", path, handler));
+    }
+
+    // Mark a handler as one that waits on the database, to be run on the async executor if it is turned on. That
+    // includes the import and the export, which can hold a thread for as long as the upload or download takes, and the
+    // import also while it waits for the writer; the route limit keeps them from taking more than their share.
+    private static Handler offloaded(Handler handler) {
+        return ASYNC ? asyncHandlers.offload(handler) : handler;
+    }
+
+    // Let browsers check whether the page they have is still up to date, and answer "304 Not Modified" if it is. The
+    // ETag comes from the version counters of the data the page is made from, so it is known before the page is made,
+    // and a 304 is sent from the request thread without going near the database or the async executor. If the ETag
+    // function returns null (e.g. for a quiz the user may not see), the handler answers as usual.
+    //
+    // The ETags are weak, since the same ETag is used for the gzipped and the plain page. The handler may see newer
+    // data than the ETag was made from, if something changes in between; the browser then just gets the page again
+    // next time. Browsers must always check with the server before reusing one of these pages, and only the user who
+    // asked for it may keep it.
+    private static Handler conditional(Function<Context, String> etag, Handler handler) {
+        return context -> {
+            String tag = etag.apply(context);
+            if (tag != null) {
+                context.header("Cache-Control", "private, no-cache");
+                context.header("Vary", "Accept-Encoding");
+                if (HttpCaching.notModified(context, tag)) {
+                    return;
+                }
+            }
+            handler.handle(context);
+        };
+    }
+
+    // The list depends on the quizzes, on who is looking at it (their private quizzes and the footer) and on its
+    // filter and cursor.
+    private static String quizListEtag(Context context) {
+        return validator("play", requestCatalog(context).version(), session(context).userId, context.queryString());
+    }
+
+    // The search results come from the full-text index, which only changes when quizzes are added, just like the
+    // catalog. A match that isn't in the catalog snapshot is left out of the results, so they only depend on the
+    // snapshot, even if the index already has a newer quiz in it.
+    private static String searchEtag(Context context) {
+        return validator("search", requestCatalog(context).version(), session(context).userId, context.queryString());
+    }
+
+    // The catalog snapshot to make this request's page from. The ETag and the page must come from the same snapshot:
+    // if a quiz was added in between, a page made from the newer one would be sent with the older one's ETag, and the
+    // client would keep using it after it had gone stale.
+    private static QuizCatalog.Snapshot requestCatalog(Context context) {
+        QuizCatalog.Snapshot quizzes = context.attribute(CATALOG_ATTRIBUTE);
+        if (quizzes == null) {
+            quizzes = catalog.snapshot();
+            context.attribute(CATALOG_ATTRIBUTE, quizzes);
+        }
+        return quizzes;
+    }
+
+    private static String flagListEtag(Context context) {
+        return validator("flags", flags.version(), 0, null);
+    }
+
+    // Quizzes are never changed after they have been created, so the JSON for a quiz stays the same for as long as
+    // the server runs. Quizzes the user may not see get no ETag, and are left to the handler to turn away, and so are
+    // quizzes that couldn't be looked up.
+    private static String quizEtag(Context context) {
+        int quizId = parseId(context.pathParam("quiz_id"));
+        QuizCatalog.Snapshot quizzes;
+        try {
+            quizzes = catalogWith(quizId);
+        }
+        catch (SQLException e) {
+            return null;
+        }
+        int position = quizzes.position(quizId);
+        if (position < 0 || !quizzes.isVisibleTo(position, session(context).userId)) {
+            return null;
+        }
+        return validator("quiz", quizId, 0, null);
+    }
+
+    // A weak ETag like W/"kq3x1ab2-play-17-4-3f2a9c1b04d7e655", from the server's start time, the page, a version
+    // number, the user and a hash of the query string, if there is one.
+    private static String validator(String page, long version, int userId, String query) {
+        StringBuilder etag = new StringBuilder("W/\"")
+            .append(VALIDATOR_EPOCH).append('-').append(page).append('-').append(version).append('-').append(userId);
+        if (query != null && !query.isEmpty()) {
+            etag.append('-').append(HttpCaching.hash(query));
+        }
+        return etag.append('"').toString();
+    }
+
+    // Whether the server can take traffic, with what it is doing if it can't yet. The server answers requests while the
+    // indexes are built in the background, but it isn't ready until they are done: building one holds up every write,
+    // so a load balancer should send the traffic elsewhere if it can.
+    private static void readinessPage(Context context) {
+        StringBuilder out = new StringBuilder(startupStep).append('\n');
+        if (migrations.version() >= 0) {
+            out
+                .append("Schema version ").append(migrations.version())
+                .append(", with ").append(migrations.appliedCount()).append(" migrations applied at startup\n");
+        }
+        if (migrations.indexError() != null) {
+            out.append("Building an index failed: ").append(migrations.indexError()).append('\n');
+        }
+        else if (ready && !migrations.indexesDone()) {
+            out
+                .append("Building indexes: ").append(migrations.indexesBuilt())
+                .append(" of ").append(migrations.indexCount()).append(" done");
+            if (migrations.buildingIndex() != null) {
+                out.append(", now building ").append(migrations.buildingIndex());
+            }
+            out.append('\n');
+            if (writer.slowTask() != null) {
+                out.append("Writes wait until it is done\n");
+            }
+        }
+        context.status(ready && migrations.indexesDone() ? 200 : 503);
+        context.contentType("text/plain; charset=UTF-8");
+        context.result(out.toString());
+    }
+
+    private static void metricsPage(Context context) {
+        Prometheus out = new Prometheus();
+        requestMetrics.writeTo(out);
+        queryMetrics.writeTo(out);
+
+        out
+            .gauge("db_schema_version", "The version the database schema is at.", migrations.version())
+            .gauge(
+                "db_indexes_pending", "Indexes still to be built in the background.",
+                migrations.indexCount() - migrations.indexesBuilt()
+            );
+
+        out
+            .gauge("db_pool_connections", "Connections in the read pool.", db.size())
+            .gauge("db_pool_active", "Connections currently borrowed from the pool.", db.activeCount())
+            .counter("db_pool_acquisitions_total", "Connections borrowed from the pool.", db.acquisitionCount())
+            .counter("db_pool_timeouts_total", "Requests that gave up waiting for a connection.", db.timeoutCount())
+            .counter("db_pool_wait_seconds_total", "Time spent waiting for a connection.", db.totalWaitNanos() / 1e9)
+            .gauge("db_pool_max_wait_seconds", "Longest wait for a connection.", db.maxWaitNanos() / 1e9);
+
+        out
+            .gauge("db_writer_queue_depth", "Writes waiting for the writer.", writer.queueDepth())
+            .gauge("db_writer_queue_capacity", "Maximum number of waiting writes.", writer.queueCapacity())
+            .gauge("db_writer_max_queue_depth", "Most writes ever waiting at once.", writer.maxQueueDepth())
+            .counter("db_writer_completed_total", "Writes that succeeded.", writer.completedCount())
+            .counter("db_writer_failed_total", "Writes that failed.", writer.failedCount())
+            .counter("db_writer_rejected_total", "Writes rejected because the queue was full.", writer.rejectedCount())
+            .counter("db_writer_timed_out_total", "Writes that gave up waiting for their turn.", writer.timedOutCount())
+            .counter(
+                "db_writer_queue_wait_seconds_total", "Time writes spent in the queue.",
+                writer.totalQueueWaitNanos() / 1e9
+            )
+            .counter("db_writer_run_seconds_total", "Time spent running writes.", writer.totalRunNanos() / 1e9)
+            .counter("db_writer_checkpoints_total", "WAL checkpoints run.", writer.checkpointCount());
+
+        out
+            .gauge("quiz_catalog_entries", "Quizzes in the catalog.", catalog.size())
+            .counter("quiz_catalog_copies_total", "Times the catalog was copied to add quizzes.", catalog.copyCount())
+            .counter(
+                "quiz_catalog_copy_seconds_total", "Time spent copying the catalog.", catalog.totalCopyNanos() / 1e9
+            )
+            .counter(
+                "quiz_catalog_misses_total", "Quizzes looked up in the database because they weren't in the catalog.",
+                catalog.missCount()
+            );
+
+        out
+            .gauge("quiz_cache_entries", "Quizzes in the quiz cache.", quizCache.size())
+            .gauge("quiz_cache_bytes", "Size of the quizzes in the quiz cache.", quizCache.sizeInBytes())
+            .counter("quiz_cache_hits_total", "Quiz cache hits.", quizCache.hitCount())
+            .counter("quiz_cache_misses_total", "Quiz cache misses.", quizCache.missCount())
+            .counter("quiz_cache_evictions_total", "Quizzes evicted from the quiz cache.", quizCache.evictionCount());
+
+        out.gauge("static_assets_bytes", "Size of the static files held in memory.", assets.sizeInBytes());
+
+        out
+            .counter("compression_responses_total", "Pages and JSON sent gzipped.", compression.compressedCount())
+            .counter(
+                "compression_skipped_total", "Pages and JSON sent as they are, too small or without gzip support.",
+                compression.uncompressedCount()
+            )
+            .counter("compression_bytes_in_total", "Size of gzipped responses before gzipping.", compression.bytesIn())
+            .counter("compression_bytes_out_total", "Size of the gzipped responses.", compression.bytesOut())
+            .counter("compression_deflaters_total", "Deflaters made for the pool.", compression.createdCount());
+
+        out
+            .gauge("flag_variants", "Transformed flags in the variant cache.", flagVariants.size())
+            .gauge("flag_variants_bytes", "Size of the transformed flags in the cache.", flagVariants.sizeInBytes())
+            .counter("flag_variants_hits_total", "Flag variant cache hits.", flagVariants.hitCount())
+            .counter("flag_variants_misses_total", "Flag variant cache misses.", flagVariants.missCount())
+            .counter("flag_variants_evictions_total", "Flag variants evicted.", flagVariants.evictionCount())
+            .counter(
+                "flag_variants_transform_seconds_total", "Time spent transforming flags.",
+                flagVariants.totalTransformNanos() / 1e9
+            );
+
+        out
+            .gauge("auth_queue_depth", "Password hashes waiting for a thread.", credentials.queueDepth())
+            .counter("auth_hashes_total", "Passwords hashed.", credentials.hashCount())
+            .counter("auth_hash_seconds_total", "Time spent hashing passwords.", credentials.totalHashNanos() / 1e9)
+            .gauge("auth_max_hash_seconds", "Longest time spent on one hash.", credentials.maxHashNanos() / 1e9)
+            .counter(
+                "auth_queue_wait_seconds_total", "Time spent waiting for a hashing thread.",
+                credentials.totalQueueWaitNanos() / 1e9
+            )
+            .gauge(
+                "auth_max_queue_wait_seconds", "Longest wait for a hashing thread.",
+                credentials.maxQueueWaitNanos() / 1e9
+            )
+            .counter("auth_rejected_total", "Logins rejected because the queue was full.", credentials.rejectedCount())
+            .counter("auth_upgrades_total", "Stored passwords upgraded to a new hash.", credentials.upgradeCount());
+
+        out
+            .gauge("answers_buffered", "Answers waiting to be saved.", answers.buffered())
+            .counter("answers_accepted_total", "Answers accepted.", answers.acceptedCount())
+            .counter("answers_rejected_total", "Answers rejected because the buffer was full.", answers.rejectedCount())
+            .counter("answers_written_total", "Answers saved.", answers.writtenCount())
+            .counter("answers_dropped_total", "Answers that could not be saved.", answers.droppedCount())
+            .counter("answers_batches_total", "Transactions used to save answers.", answers.batchCount());
+
+        out
+            .gauge("leaderboard_quizzes", "Leaderboards held in memory.", leaderboards.quizCount())
+            .counter("leaderboard_loads_total", "Leaderboards loaded from the database.", leaderboards.loadCount())
+            .counter("leaderboard_evictions_total", "Leaderboards dropped from memory.", leaderboards.evictionCount())
+            .counter("leaderboard_updates_total", "Scores that changed a leaderboard.", leaderboards.updateCount());
+
+        if (ASYNC) {
+            out
+                .gauge("async_threads", "Threads running database handlers.", asyncHandlers.threadCount())
+                .gauge("async_active", "Database handlers running.", asyncHandlers.activeCount())
+                .gauge("async_queue_depth", "Database handlers waiting for a thread.", asyncHandlers.queueDepth())
+                .counter("async_completed_total", "Database handlers finished.", asyncHandlers.completedCount())
+                .counter(
+                    "async_route_rejected_total", "Requests turned away by their route's limit.",
+                    asyncHandlers.routeRejectedCount()
+                )
+                .counter(
+                    "async_queue_rejected_total", "Requests turned away because the queue was full.",
+                    asyncHandlers.queueRejectedCount()
+                )
+                .counter(
+                    "async_timeouts_total", "Requests turned away after waiting too long.",
+                    asyncHandlers.timedOutCount()
+                )
+                .counter(
+                    "async_queue_wait_seconds_total", "Time spent waiting for a thread.",
+                    asyncHandlers.totalQueueWaitNanos() / 1e9
+                )
+                .gauge(
+                    "async_max_queue_wait_seconds", "Longest wait for a thread.",
+                    asyncHandlers.maxQueueWaitNanos() / 1e9
+                );
+        }
+
+        out.gauge("sessions_cached", "Login sessions held in memory.", sessions.size());
+        if (sessions instanceof SqliteSessionStore) {
+            SqliteSessionStore stored = (SqliteSessionStore) sessions;
+            out
+                .gauge("sessions_pending", "Session expiries waiting to be saved.", stored.pendingCount())
+                .gauge("sessions_unsaved", "New sessions and logouts waiting to be saved.", stored.unsavedCount())
+                .counter("sessions_loads_total", "Sessions read from the database.", stored.loadCount())
+                .counter("sessions_saved_total", "Session expiries saved.", stored.savedCount())
+                .counter("sessions_purged_total", "Expired sessions deleted.", stored.purgedCount());
+        }
+        else if (sessions instanceof MemorySessionStore) {
+            MemorySessionStore memory = (MemorySessionStore) sessions;
+            out
+                .counter("sessions_created_total", "Sessions started.", memory.createdCount())
+                .counter("sessions_expired_total", "Sessions that expired.", memory.expiredCount())
+                .counter("sessions_evicted_total", "Sessions thrown out to make room.", memory.evictionCount());
+        }
+
+        out
+            .gauge("import_running", "Whether an import is running.", transfer.isImporting() ? 1 : 0)
+            .counter("import_lines_total", "Lines read from imports.", transfer.linesReadCount())
+            .counter("import_quizzes_total", "Quizzes imported.", transfer.importedCount())
+            .counter("import_failed_total", "Imported lines that were not valid quizzes.", transfer.failedCount())
+            .counter("import_chunks_total", "Transactions used to save imports.", transfer.chunkCount())
+            .counter("export_quizzes_total", "Quizzes exported.", transfer.exportedCount());
+
+        context.contentType("text/plain; version=0.0.4; charset=UTF-8");
+        context.result(out.toString());
+    }
+
+    // Everything known about each SQL statement, including the query plan of the slow ones, as JSON.
+    private static void queryMetricsPage(Context context) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JsonGenerator json = JSON.createGenerator(bytes)) {
+            json.useDefaultPrettyPrinter();
+            queryMetrics.writeJson(json);
+        }
+        context.contentType("application/json");
+        context.result(bytes.toByteArray());
     }
 
     // The main page just contains links to the other pages.
-    private static void mainPage(Context context) {
-        String content =
-            "<div class='index'>" +
-                "<h1>\uD83C\uDF0E Welcome to GloboQuiz!</h1>" +
-                "<ul>" +
-                    "<li><a href='/create'>✏️ Create</a></li>" +
-                    "<li><a href='/play'>\uD83C\uDFB2 Play</a></li>" +
-                    "<li><a href='/search'>\uD83D\uDD0D Search</a></li>" +
-                    "<li><a href='/flags'>\uD83C\uDF8C Flags</a></li>" +
-                "</ul>" +
-            "</div>";
-        String html = template(context, "GloboQuiz", content);
-        context.result(html);
+    private static void mainPage(Context context) throws IOException {
+        page(context, "GloboQuiz").html(MAIN_PAGE_HTML).end();
     }
 
+    private static final byte[] MAIN_PAGE_HTML = HtmlPage.fragment(
+        "<div class='index'>" +
+            "<h1>\uD83C\uDF0E Welcome to GloboQuiz!</h1>" +
+            "<ul>" +
+                "<li><a href='/create'>✏️ Create</a></li>" +
+                "<li><a href='/play'>\uD83C\uDFB2 Play</a></li>" +
+                "<li><a href='/search'>\uD83D\uDD0D Search</a></li>" +
+                "<li><a href='/flags'>\uD83C\uDF8C Flags</a></li>" +
+            "</ul>" +
+        "</div>"
+    );
+
     // Show the page for creating a new quiz.
-    private static void createQuizPage(Context context) {
+    private static void createQuizPage(Context context) throws IOException {
         if (!userIsLoggedIn(context)) {
-            String content = "<div class='result'>You must be logged in to create a quiz.</div>";
-            context.result(template(context, "Please log in", content));
-            context.status(403);
+            mustLogInPage(context);
             return;
         }
 
-        // Create one <option> tag for each image in the "flags" folder.
-        String flagHtml = "";
-        for (File f : new File("flags").listFiles()) {
-            flagHtml += "<option>" + f.getName() + "</option>";
-        }
+        HtmlPage page = page(context, "Create").html(CREATE_PAGE_START_HTML);
+
+        // One <option> tag for each image in the "flags" folder. These are made once whenever the folder changes.
+        page.html(flags.optionsHtml());
 
-        String optionsHtml = "";
+        page.html(CREATE_PAGE_MIDDLE_HTML);
         for (int i = 1; i <= 4; i++) {
-            optionsHtml +=
-                "<li>" +
-                    "<input type='text' required name='question-1-option-" + i + "' placeholder='Option #" + i + "'>" +
-                    "<label>" +
-                        "<input type='radio' " + (i == 1 ? "checked " : "") +
-                        "name='question-1-answer' value='" + i + "'>" +
-                        "<span> Correct</span>" +
-                    "</label>" +
-                "</li>";
-        }
-
-        String content =
-            "<div class='create'>" +
-                "<h1>✏️ Create</h1>" +
-                // We create a single question form here, then the JavaScript on the page will allow the user to add
-                // more.
-                "<form method='post' action='/create'>" +
-                    "<input type='text' required name='quiz-title' class='quiz-title' placeholder='Title of Quiz'>" +
-                    "<label class='quiz-public'>" +
-                        "<input type='checkbox' checked name='quiz-public' value='true'>" +
-                        "<span> This quiz should be public</span>" +
+            page
+                .html("<li>")
+                    .html("<input type='text' required name='question-1-option-").number(i)
+                    .html("' placeholder='Option #").number(i).html("'>")
+                    .html("<label>")
+                        .html(i == 1 ? "<input type='radio' checked " : "<input type='radio' ")
+                        .html("name='question-1-answer' value='").number(i).html("'>")
+                        .html("<span> Correct</span>")
+                    .html("</label>")
+                .html("</li>");
+        }
+        page.html(CREATE_PAGE_END_HTML).end();
+    }
+
+    private static final byte[] CREATE_PAGE_START_HTML = HtmlPage.fragment(
+        "<div class='create'>" +
+            "<h1>✏️ Create</h1>" +
+            // We create a single question form here, then the JavaScript on the page will allow the user to add more.
+            "<form method='post' action='/create'>" +
+                "<input type='text' required name='quiz-title' class='quiz-title' placeholder='Title of Quiz'>" +
+                "<label class='quiz-public'>" +
+                    "<input type='checkbox' checked name='quiz-public' value='true'>" +
+                    "<span> This quiz should be public</span>" +
+                "</label>" +
+                // Each question will be contained in a fieldset, that will then be cloned by the JavaScript when
+                // adding more questions.
+                "<fieldset>" +
+                    "<input type='text' required name='question-1-prompt' class='question-prompt' " +
+                        "placeholder='Question #1'>" +
+                    "<label class='question-flag'>" +
+                        "<span>Flag: </span>" +
+                        "<select name='question-1-flag'>"
+    );
+    private static final byte[] CREATE_PAGE_MIDDLE_HTML = HtmlPage.fragment(
+                        "</select>" +
                     "</label>" +
-                    // Each question will be contained in a fieldset, that will then be cloned by the JavaScript when
-                    // adding more questions.
-                    "<fieldset>" +
-                        "<input type='text' required name='question-1-prompt' class='question-prompt' " +
-                            "placeholder='Question #1'>" +
-                        "<label class='question-flag'>" +
-                            "<span>Flag: </span>" +
-                            "<select name='question-1-flag'>" +
-                                flagHtml +
-                            "</select>" +
-                        "</label>" +
-                        "<ul class='create-options'>" +
-                            optionsHtml +
-                        "</ul>" +
-                    "</fieldset>" +
-                    "<button type='button' class='secondary' id='add-question'>Add Question</button>" +
-                    "<button type='submit'>Create Quiz</button>" +
-                "</form>" +
-            "</div>";
-        String html = template(context, "Create", content);
-        context.result(html);
+                    "<ul class='create-options'>"
+    );
+    private static final byte[] CREATE_PAGE_END_HTML = HtmlPage.fragment(
+                    "</ul>" +
+                "</fieldset>" +
+                "<button type='button' class='secondary' id='add-question'>Add Question</button>" +
+                "<button type='submit'>Create Quiz</button>" +
+            "</form>" +
+        "</div>"
+    );
+
+    // Shown instead of pages that need a logged in user.
+    private static void mustLogInPage(Context context) throws IOException {
+        context.status(403);
+        page(context, "Please log in")
+            .html("<div class='result'>You must be logged in to create a quiz.</div>")
+            .end();
     }
 
     // Handle the form submission from the "Create Quiz" page.
-    private static void createQuiz(Context context) throws SQLException {
+    private static void createQuiz(Context context) throws SQLException, IOException {
         if (!userIsLoggedIn(context)) {
-            String content = "<div class='result'>You must be logged in to create a quiz.</div>";
-            context.result(template(context, "Please log in", content));
-            context.status(403);
+            mustLogInPage(context);
             return;
         }
 
-        try (Connection c = db.getConnection()) {
+        // Read everything from the form before handing it over to the writer thread.
+        int userId = session(context).userId;
+        String title = context.formParam("quiz-title");
+        boolean isPublic = context.formParam("quiz-public") != null;
+        List<Question> questions = readQuestions(context);
+
+        // The quiz and all of its questions are saved in a single transaction on the writer thread, so the whole quiz
+        // costs one commit, and a failure halfway through doesn't leave a quiz with only some of its questions.
+        int quizId = writer.executeInTransaction(c -> {
             // Save the quiz itself.
-            String title = context.formParam("quiz-title");
-            boolean isPublic = context.formParam("quiz-public") != null;
-            PreparedStatement s1 = c.prepareStatement(
+            int newQuizId;
+            try (PreparedStatement s1 = c.prepareStatement(
                 "INSERT INTO quiz (user_id, title, datetime, public) VALUES (?, ?, ?, ?)",
                 Statement.RETURN_GENERATED_KEYS
-            );
-            s1.setInt(1, context.sessionAttribute("userId"));
-            s1.setString(2, title);
-            s1.setString(3, LocalDateTime.now().toString());
-            s1.setBoolean(4, isPublic);
-            s1.executeUpdate();
-
-            ResultSet keys = s1.getGeneratedKeys();
-            keys.next();
-            int quizId = keys.getInt(1);
-
-            // Loop from 1 and up until there are no more questions in the form, and save each question. We check if
-            // there are more questions by looking for the "question-x-prompt" field, where x is the current number.
-            int questionNumber = 1;
-            while (context.formParam("question-" + questionNumber + "-prompt") != null) {
-                // All the params from here will start with the prefix "question-x-", where x is the number, so
-                // create it here.
-                String prefix = "question-" + questionNumber + "-";
-
-                PreparedStatement s2 = c.prepareStatement(
-                    "INSERT INTO question " +
-                    "(quiz_id, number, prompt, option_1, option_2, option_3, option_4, correct_option, image_path) " +
-                    "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)"
-                );
-                s2.setInt(1, quizId);
-                s2.setInt(2, questionNumber);
-                s2.setString(3, context.formParam(prefix + "prompt"));
-                s2.setString(4, context.formParam(prefix + "option-1"));
-                s2.setString(5, context.formParam(prefix + "option-2"));
-                s2.setString(6, context.formParam(prefix + "option-3"));
-                s2.setString(7, context.formParam(prefix + "option-4"));
-                s2.setInt(8, Integer.parseInt(context.formParam(prefix + "answer")));
-                s2.setString(9, context.formParam(prefix + "flag"));
-                s2.executeUpdate();
-
-                // Increase the question number so that the next iteration continues with the next question.
-                questionNumber += 1;
-
-                // Finally, show a link to to the new quiz.
-                String quizUrl = "/play/" + quizId;
-                String content =
-                    "<div class='result'>" +
-                        "<p>Your quiz has been created.</p>" +
-                        "<a href='" + quizUrl + "'>Play it now</a>" +
-                    "</div>";
-                String html = template(context, "Quiz created", content);
-                context.result(html);
-            }
-        }
-    }
-
-    // Show a list of all the quizzes.
-    private static void quizListPage(Context context) throws SQLException {
-        String  content =
-            "<div class='quiz-index'>" +
-                "<h1>\uD83C\uDFB2 Play</h1>" +
-                "<form method='get' action='/play'>" +
-                    "<label>With " +
-                        "<select name='operator'>" +
-                            "<option value='&gt;='>at least</option>" +
-                            "<option value='&lt;='>at most</option>" +
-                            "<option value='='>exactly</option>" +
-                        "</select>" +
-                    "</label>" +
-                    "<label>" +
-                        "<input type='number' name='questions' value='0'> questions" +
-                    "</label>" +
-                    "<button type='submit' class='secondary'>Filter</button>" +
-                "</form>";
+            )) {
+                s1.setInt(1, userId);
+                s1.setString(2, title);
+                s1.setString(3, LocalDateTime.now().toString());
+                s1.setBoolean(4, isPublic);
+                s1.executeUpdate();
+
+                try (ResultSet keys = s1.getGeneratedKeys()) {
+                    keys.next();
+                    newQuizId = keys.getInt(1);
+                }
+            }
+
+            // Prepare the question insert once, and send all the questions to the database as one batch.
+            try (PreparedStatement s2 = c.prepareStatement(
+                "INSERT INTO question " +
+                "(quiz_id, number, prompt, option_1, option_2, option_3, option_4, correct_option, image_path) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)"
+            )) {
+                for (Question question : questions) {
+                    s2.setInt(1, newQuizId);
+                    s2.setInt(2, question.number);
+                    s2.setString(3, question.prompt);
+                    s2.setString(4, question.option1);
+                    s2.setString(5, question.option2);
+                    s2.setString(6, question.option3);
+                    s2.setString(7, question.option4);
+                    s2.setInt(8, question.correctOption);
+                    s2.setString(9, question.imagePath);
+                    s2.addBatch();
+                }
+                s2.executeBatch();
+            }
+
+            // Add the quiz to the search index in the same transaction.
+            try (PreparedStatement s3 = c.prepareStatement(
+                "INSERT INTO quiz_search (rowid, title, questions) VALUES (?, ?, ?)"
+            )) {
+                s3.setInt(1, newQuizId);
+                s3.setString(2, title);
+                s3.setString(3, searchText(questions));
+                s3.executeUpdate();
+            }
+
+            return newQuizId;
+        });
+
+        // A brand new quiz can't be cached yet, but every write that touches a quiz invalidates it, so that nobody has
+        // to work out when it is safe to skip.
+        quizCache.invalidate(quizId);
+        catalog.add(new QuizCatalog.Quiz(quizId, userId, title, session(context).username, isPublic, questions.size()));
+
+        // Finally, show a link to to the new quiz.
+        page(context, "Quiz created")
+            .html("<div class='result'>")
+                .html("<p>Your quiz has been created.</p>")
+                .html("<a href='/play/").number(quizId).html("'>Play it now</a>")
+            .html("</div>")
+            .end();
+    }
+
+    // All the text in the questions of a quiz, for the search index.
+    static String searchText(List<Question> questions) {
+        StringBuilder text = new StringBuilder();
+        for (Question question : questions) {
+            text.append(question.prompt).append(' ')
+                .append(question.option1).append(' ')
+                .append(question.option2).append(' ')
+                .append(question.option3).append(' ')
+                .append(question.option4).append(' ');
+        }
+        return text.toString();
+    }
+
+    // Loop from 1 and up until there are no more questions in the form, and read each question. We check if there are
+    // more questions by looking for the "question-x-prompt" field, where x is the current number.
+    private static List<Question> readQuestions(Context context) {
+        List<Question> questions = new ArrayList<>();
+        int questionNumber = 1;
+        while (context.formParam("question-" + questionNumber + "-prompt") != null) {
+            // All the params from here will start with the prefix "question-x-", where x is the number, so create it
+            // here.
+            String prefix = "question-" + questionNumber + "-";
+            questions.add(new Question(
+                questionNumber,
+                context.formParam(prefix + "prompt"),
+                context.formParam(prefix + "option-1"),
+                context.formParam(prefix + "option-2"),
+                context.formParam(prefix + "option-3"),
+                context.formParam(prefix + "option-4"),
+                Integer.parseInt(context.formParam(prefix + "answer")),
+                context.formParam(prefix + "flag")
+            ));
+
+            // Increase the question number so that the next iteration continues with the next question.
+            questionNumber += 1;
+        }
+        return questions;
+    }
+
+    // Show a list of all the quizzes, one page at a time. Pages are found with a "keyset" cursor: the `after` parameter
+    // is the ID of the last quiz on the previous page, and the next page continues from that quiz's position in the
+    // (title, username, id) ordering. The list comes from the catalog in memory, so this doesn't use the database.
+    private static void quizListPage(Context context) throws IOException {
+        // Quizzes without any questions are never listed. If the user has entered a min/max/exact number of
+        // questions, narrow the range down further.
+        int minQuestions = 1;
+        int maxQuestions = Integer.MAX_VALUE;
+        if (context.queryParam("questions") != null) {
+            int questions = Integer.parseInt(context.queryParam("questions"));
+            switch (context.queryParam("operator", ">=")) {
+                case ">=":
+                    minQuestions = Math.max(questions, 1);
+                    break;
+                case "<=":
+                    maxQuestions = questions;
+                    break;
+                default:
+                    minQuestions = Math.max(questions, 1);
+                    maxQuestions = questions;
+            }
+        }
+
+        int pageSize = QUIZ_PAGE_SIZE;
+        if (context.queryParam("size") != null) {
+            pageSize = Math.max(1, Math.min(Integer.parseInt(context.queryParam("size")), QUIZ_PAGE_SIZE_MAX));
+        }
+
+        // The first page starts before everything.
+        int afterId = context.queryParam("after") != null ? parseId(context.queryParam("after")) : 0;
+
+        // Ask for one quiz more than the page size, to find out if there is a next page.
+        QuizCatalog.Snapshot quizzes = requestCatalog(context);
+        int[] found = quizzes.list(session(context).userId, minQuestions, maxQuestions, afterId, pageSize + 1);
+
+        HtmlPage page = page(context, "Play").html(QUIZ_LIST_FORM_HTML);
 
         // If the user has entered a filter, write a message to highlight this.
         if (context.queryParam("questions") != null) {
-            content += "<p>Quizzes matching your filter:</p>";
+            page.html("<p>Quizzes matching your filter:</p>");
         }
 
-        content += "<ul>";
+        int nextAfter = writeQuizList(page, quizzes, found, pageSize);
 
-        try (Connection c = db.getConnection()) {
-            // Select all the quizzes that are public, as well as the private quizzes belonging to the current user.
-            String sql =
-                "SELECT quiz.id AS quiz_id, title, username, public, COUNT(*) AS question_count " +
-                "FROM quiz " +
-                "JOIN user ON quiz.user_id = user.id " +
-                "JOIN question ON quiz.id = question.quiz_id " +
-                "WHERE public = TRUE OR user.id = " + context.sessionAttribute("userId") + " " +
-                "GROUP BY quiz.id ";
-
-            // If the user has entered a min/max/exact number of questions, add an extra condition.
+        // Link to the next page, keeping the same filter and page size.
+        if (nextAfter != 0) {
+            page.html("<a href='/play?after=").number(nextAfter).html("&amp;size=").number(pageSize);
             if (context.queryParam("questions") != null) {
-                String operator = context.queryParam("operator");
-                int questions = Integer.parseInt(context.queryParam("questions"));
-                sql += "HAVING COUNT(*) " + operator + " " + questions + " ";
+                page
+                    .html("&amp;operator=")
+                    .text(URLEncoder.encode(context.queryParam("operator", ">="), StandardCharsets.UTF_8))
+                    .html("&amp;questions=").number(Integer.parseInt(context.queryParam("questions")));
             }
+            page.html("' class='secondary'>Next page</a>");
+        }
+
+        page.html("</div>").end();
+    }
+
+    // Select the quizzes that are public, as well as the private quizzes belonging to the current user, in list order
+    // starting after the given position. The question count is stored on the quiz itself, so each half of the OR can be
+    // answered with a range scan on its own index instead of counting the questions of every quiz.
+    //
+    // This is what the quiz list used before the catalog, and is kept for the benchmarks to compare against. It and the
+    // other package-private query and rendering methods are called by the benchmarks, which must close the ResultSet.
+    static ResultSet findQuizzes(
+        Connection c, int userId, int minQuestions, int maxQuestions,
+        String afterTitle, String afterUsername, int afterId, int limit
+    ) throws SQLException {
+        PreparedStatement s = c.prepareStatement(
+            "SELECT quiz.id AS quiz_id, title, username, public, question_count " +
+            "FROM quiz " +
+            "JOIN user ON quiz.user_id = user.id " +
+            "WHERE ((public = TRUE AND question_count BETWEEN ? AND ?) " +
+            "OR (quiz.user_id = ? AND question_count BETWEEN ? AND ?)) " +
+            "AND quiz.title >= ? " +
+            "AND (quiz.title, user.username, quiz.id) > (?, ?, ?) " +
+            "ORDER BY quiz.title, user.username, quiz.id " +
+            "LIMIT ?"
+        );
+        s.setInt(1, minQuestions);
+        s.setInt(2, maxQuestions);
+        s.setInt(3, userId);
+        s.setInt(4, minQuestions);
+        s.setInt(5, maxQuestions);
+        s.setString(6, afterTitle);
+        s.setString(7, afterTitle);
+        s.setString(8, afterUsername);
+        s.setInt(9, afterId);
+        s.setInt(10, limit);
+        return s.executeQuery();
+    }
+
+    // Write up to `pageSize` of the quizzes found in the catalog as a list. Returns the ID of the last quiz written if
+    // there are more after it, or 0 if this was the last page.
+    static int writeQuizList(HtmlPage page, QuizCatalog.Snapshot quizzes, int[] found, int pageSize) {
+        page.html("<ul>");
+        int count = Math.min(found.length, pageSize);
+        for (int i = 0; i < count; i++) {
+            int position = found[i];
+            page
+                .html("<li>")
+                    .html("<a href='/play/").number(quizzes.id(position)).html("'>")
+                        .text(quizzes.title(position))
+                        .html(" by ")
+                        .text(quizzes.username(position))
+                        .html(quizzes.isPublic(position) ? "" : " [private]")
+                        .html(" (").number(quizzes.questionCount(position)).html(" questions)")
+                    .html("</a>")
+                .html("</li>");
+        }
+        page.html("</ul>");
+        return found.length > pageSize ? quizzes.id(found[pageSize - 1]) : 0;
+    }
+
+    private static final byte[] QUIZ_LIST_FORM_HTML = HtmlPage.fragment(
+        "<div class='quiz-index'>" +
+            "<h1>\uD83C\uDFB2 Play</h1>" +
+            "<form method='get' action='/play'>" +
+                "<label>With " +
+                    "<select name='operator'>" +
+                        "<option value='&gt;='>at least</option>" +
+                        "<option value='&lt;='>at most</option>" +
+                        "<option value='='>exactly</option>" +
+                    "</select>" +
+                "</label>" +
+                "<label>" +
+                    "<input type='number' name='questions' value='0'> questions" +
+                "</label>" +
+                "<button type='submit' class='secondary'>Filter</button>" +
+            "</form>"
+    );
+
+    // Show a single quiz and let the user play it. We will implement the quiz with JavaScript, so the server doesn't
+    // actually need to create anything except the template here. The JavaScript will get the quiz ID from the URL, and
+    // downloads the flag sprite (with all the flags in one file) from the URL given here.
+    private static void singleQuizPage(Context context) throws IOException {
+        page(context, "Quiz")
+            .html("<div id='flag-sprite' class='sprite' data-url='").text(flags.sprite().url).html("'></div>")
+            .end();
+    }
+
+    // Import quizzes from NDJSON in the request body, one quiz per line (see QuizTransfer for the format), owned by the
+    // logged in user. The body is read as it arrives, so it can be far bigger than would fit in memory, e.g.
+    // `curl -b cookies --data-binary @quizzes.ndjson -H 'Content-Type: application/x-ndjson' .../quiz/import`.
+    private static void importQuizzes(Context context) throws IOException {
+        context.contentType("application/json");
+        SessionStore.Session session = session(context);
+        transfer.importQuizzes(
+            context.req.getInputStream(), session.userId, session.username, context.res.getOutputStream()
+        );
+    }
+
+    // Export every quiz the user can see, or with `?mine` only their own, as NDJSON in the same format as imports.
+    private static void exportQuizzes(Context context) throws SQLException, IOException {
+        context.contentType("application/x-ndjson");
+        context.header("Content-Disposition", "attachment; filename=\"quizzes.ndjson\"");
+        boolean onlyOwn = context.queryParam("mine") != null;
+        transfer.exportQuizzes(session(context).userId, onlyOwn, context.res.getOutputStream());
+    }
+
+    // The JavaScript gets the quiz data for a single quiz through this JSON endpoint. The finished JSON is cached (see
+    // QuizCache), so the database is only asked the first time a quiz is played.
+    private static void singleQuizData(Context context) throws SQLException, IOException {
+        QuizCache.Entry quiz = findQuiz(context);
+
+        // If there is no quiz, show a 404. This also happens when the quiz exists but belongs to another user and is
+        // not private.
+        if (quiz == null) {
+            quizNotFound(context);
+        }
+        // If there is a quiz, return it.
+        else {
+            context.contentType("application/json");
+            compression.send(context, quiz.json);
+        }
+    }
+
+    // Check a single answer. The JavaScript posts the question number (starting from 1) and the number of the chosen
+    // option, and gets back whether it was right and which option was the correct one. The correct answers never leave
+    // the server before the question has been answered.
+    //
+    // The answer is recorded in the AnswerLog, which saves it in the background, so this doesn't wait for the database.
+    private static void answerQuestion(Context context) throws SQLException, IOException {
+        QuizCache.Entry quiz = findQuiz(context);
+        if (quiz == null) {
+            quizNotFound(context);
+            return;
+        }
 
-            sql += "ORDER BY quiz.title, user.username";
+        int question = parseId(context.formParam("question"));
+        int option = parseId(context.formParam("option"));
+        if (question < 1 || question > quiz.questionCount() || option < 1 || option > 4) {
+            context.status(400);
+            context.json("There is no question " + question + " with option " + option + " in this quiz.");
+            return;
+        }
+
+        int correctOption = quiz.answers[question - 1];
+        boolean correct = option == correctOption;
+        answers.record(new AnswerLog.Answer(
+            session(context).userId, quiz.quizId, question, option, correct, System.currentTimeMillis()
+        ));
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("correct", correct);
+        result.put("correct_option", correctOption);
+        context.json(result);
+    }
 
-            Statement s = c.createStatement();
-            ResultSet rows = s.executeQuery(sql);
-            while (rows.next()) {
-                String quizUrl = "/play/" + rows.getInt("quiz_id");
-                content +=
-                    "<li>" +
-                        "<a href='" + quizUrl + "'>" +
-                            rows.getString("title") +
-                            " by " +
-                            Encode.forHtml(rows.getString("username")) +
-                            (rows.getBoolean("public") ? "" : " [private]") +
-                            " (" + rows.getInt("question_count") + " questions)" +
-                        "</a>" +
-                    "</li>";
+    // Save the result of a finished quiz. The JavaScript posts the chosen option for every question as a comma
+    // separated list (e.g. "2,1,4,3"), and the score is counted here against the correct answers, so it can't just be
+    // made up. Only the user's best score on each quiz is kept. The result is the score, along with the user's place on
+    // the leaderboard (0 if they didn't make it).
+    private static void submitScore(Context context) throws SQLException, IOException {
+        QuizCache.Entry quiz = findQuiz(context);
+        if (quiz == null) {
+            quizNotFound(context);
+            return;
+        }
+
+        String[] chosen = context.formParam("answers", "").split(",");
+        if (chosen.length != quiz.questionCount()) {
+            context.status(400);
+            context.json("Expected an answer for each of the " + quiz.questionCount() + " questions.");
+            return;
+        }
+        int score = 0;
+        for (int i = 0; i < chosen.length; i++) {
+            if (parseId(chosen[i].trim()) == quiz.answers[i]) {
+                score += 1;
             }
         }
-        content +=
-                "</ul>" +
-            "</div>";
 
-        String html = template(context, "Play", content);
-        context.result(html);
+        int userId = session(context).userId;
+        long scoredAt = System.currentTimeMillis();
+        int finalScore = score;
+        // Save it before adding it to the leaderboard, so that a leaderboard loaded from the database at the same time
+        // can't miss it.
+        writer.execute(c -> {
+            try (PreparedStatement s = c.prepareStatement(
+                "INSERT INTO score (quiz_id, user_id, score, question_count, scored_at) VALUES (?, ?, ?, ?, ?) " +
+                "ON CONFLICT (quiz_id, user_id) DO UPDATE SET " +
+                "score = excluded.score, question_count = excluded.question_count, scored_at = excluded.scored_at " +
+                "WHERE excluded.score > score.score"
+            )) {
+                s.setInt(1, quiz.quizId);
+                s.setInt(2, userId);
+                s.setInt(3, finalScore);
+                s.setInt(4, quiz.questionCount());
+                s.setString(5, Instant.ofEpochMilli(scoredAt).toString());
+                return s.executeUpdate();
+            }
+        });
+        Leaderboards.Board board = leaderboards.add(quiz.quizId, new Leaderboards.Entry(
+            userId, session(context).username, score, quiz.questionCount(), scoredAt
+        ));
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("score", score);
+        result.put("question_count", quiz.questionCount());
+        result.put("place", board.rankOf(userId));
+        context.json(result);
     }
 
-    // Show a single quiz and let the user play it. We will implement the quiz with JavaScript, so the server doesn't
-    // actually need to create anything except the template here. The JavaScript will get the quiz ID from the URL.
-    private static void singleQuizPage(Context context) {
-        String html = template(context, "Quiz", "");
-        context.result(html);
+    // Show the best scores on a quiz.
+    private static void leaderboardPage(Context context) throws SQLException, IOException {
+        QuizCache.Entry quiz = findQuiz(context);
+        if (quiz == null) {
+            context.status(404);
+            page(context, "Leaderboard")
+                .html("<div class='result'>")
+                    .html("No quiz with ID ").text(context.pathParam("quiz_id"))
+                    .html(", or you are not allowed to access this quiz.")
+                .html("</div>")
+                .end();
+            return;
+        }
+
+        Leaderboards.Board board = leaderboards.get(quiz.quizId);
+        HtmlPage page = page(context, "Leaderboard")
+            .html("<div class='leaderboard'>")
+                .html("<h1>\uD83C\uDFC6 Leaderboard</h1>");
+        if (board.entries().isEmpty()) {
+            page.html("<p>Nobody has finished this quiz yet.</p>");
+        }
+        else {
+            page.html("<ol>");
+            for (Leaderboards.Entry entry : board.entries()) {
+                page
+                    .html("<li>")
+                        .text(entry.username)
+                        .html(": ").number(entry.score).html(" / ").number(entry.questionCount)
+                    .html("</li>");
+            }
+            page.html("</ol>");
+        }
+        page
+                .html("<a href='/play/").number(quiz.quizId).html("' class='secondary'>Play this quiz</a>")
+            .html("</div>")
+            .end();
     }
 
-    // The JavaScript gets the quiz data for a single quiz through this JSON endpoint.
-    private static void singleQuizData(Context context) throws SQLException {
+    // Get the quiz from the "quiz_id" path parameter, from the cache if possible. Returns null if there is no such quiz
+    // or if the current user isn't allowed to see it.
+    private static QuizCache.Entry findQuiz(Context context) throws SQLException, IOException {
+        int quizId = parseId(context.pathParam("quiz_id"));
+        if (quizId <= 0) {
+            return null;
+        }
+
+        // Check with the catalog first, so that a quiz that the user may not see never gets as far as loading its
+        // questions.
+        QuizCatalog.Snapshot quizzes = catalogWith(quizId);
+        int position = quizzes.position(quizId);
+        if (position < 0 || !quizzes.isVisibleTo(position, session(context).userId)) {
+            return null;
+        }
+
+        QuizCache.Entry quiz = quizCache.get(quizId);
+        if (quiz == null) {
+            try (Connection c = db.getConnection()) {
+                quiz = loadQuizData(c, quizId);
+            }
+            if (quiz != null) {
+                quizCache.put(quiz);
+            }
+        }
+
+        return quiz;
+    }
+
+    // The catalog, with the quiz in it if it exists. Only borrows a connection if the quiz isn't already in the
+    // catalog, which is when it was created by another server (see QuizCatalog.find).
+    private static QuizCatalog.Snapshot catalogWith(int quizId) throws SQLException {
+        QuizCatalog.Snapshot quizzes = catalog.snapshot();
+        if (quizId <= 0 || quizzes.position(quizId) >= 0) {
+            return quizzes;
+        }
         try (Connection c = db.getConnection()) {
-            // Get the quiz info and put it in a map.
-            PreparedStatement quizStatement = c.prepareStatement("SELECT * FROM quiz WHERE id = ? AND user_id = ? OR public = TRUE AND id = ?");
-                quizStatement.setString(1, context.pathParam("quiz_id"));
-                quizStatement.setInt(2, context.sessionAttribute("userId"));
-                quizStatement.setString(3, context.pathParam("quiz_id"));
-            ResultSet quizRows = quizStatement.executeQuery();
-
-            // If there is no quiz, show a 404. This also happens when the quiz exists but belongs to another user
-            // and is not private.
-            boolean exists = quizRows.next();
-            if (!exists) {
-                context.status(404);
-                context.json(
-                    "No quiz with ID " + context.pathParam("quiz_id") +
-                    ", or you are not allowed to access this quiz."
-                );
+            return catalog.find(c, quizId);
+        }
+    }
+
+    private static void quizNotFound(Context context) {
+        context.status(404);
+        context.json(
+            "No quiz with ID " + context.pathParam("quiz_id") + ", or you are not allowed to access this quiz."
+        );
+    }
+
+    // Load a quiz and its questions, and write them as JSON. The correct options are left out of the JSON and kept
+    // separately, for checking answers. Returns null if there is no quiz with this ID.
+    static QuizCache.Entry loadQuizData(Connection c, int quizId) throws SQLException, IOException {
+        PreparedStatement quizStatement = c.prepareStatement("SELECT user_id, title, public FROM quiz WHERE id = ?");
+        quizStatement.setInt(1, quizId);
+        int userId;
+        String title;
+        boolean isPublic;
+        try (ResultSet quizRows = quizStatement.executeQuery()) {
+            if (!quizRows.next()) {
+                return null;
             }
-            // If there is a quiz, return it.
-            else {
-                Map<String, Object> quiz = new HashMap<>();
-                quiz.put("title", quizRows.getString("title"));
-                quiz.put("public", quizRows.getBoolean("public"));
-
-                // Get the questions in the quiz and add them to a list in the map.
-                List<Map<String, Object>> questions = new ArrayList<>();
-                Statement questionStatement = c.createStatement();
-                String questionSql =
-                    "SELECT * " +
-                    "FROM question " +
-                    "WHERE quiz_id = " + quizRows.getInt("id") + " " +
-                    "ORDER BY number";
-                ResultSet questionRows = questionStatement.executeQuery(questionSql);
+            userId = quizRows.getInt("user_id");
+            title = quizRows.getString("title");
+            isPublic = quizRows.getBoolean("public");
+        }
+
+        // Write the JSON directly as we go through the rows, instead of building maps for Jackson to serialize.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream correctOptions = new ByteArrayOutputStream();
+        try (JsonGenerator json = JSON.createGenerator(bytes)) {
+            json.writeStartObject();
+            json.writeStringField("title", title);
+            json.writeBooleanField("public", isPublic);
+
+            // Get the questions in the quiz and add them to a list.
+            PreparedStatement questionStatement = c.prepareStatement(
+                "SELECT prompt, option_1, option_2, option_3, option_4, correct_option, image_path " +
+                "FROM question " +
+                "WHERE quiz_id = ? " +
+                "ORDER BY number"
+            );
+            questionStatement.setInt(1, quizId);
 
+            json.writeArrayFieldStart("questions");
+            try (ResultSet questionRows = questionStatement.executeQuery()) {
                 while (questionRows.next()) {
-                    Map<String, Object> question = new HashMap<>();
-                    question.put("prompt", questionRows.getString("prompt"));
-                    question.put("option_1", questionRows.getString("option_1"));
-                    question.put("option_2", questionRows.getString("option_2"));
-                    question.put("option_3", questionRows.getString("option_3"));
-                    question.put("option_4", questionRows.getString("option_4"));
-                    question.put("correct_option", questionRows.getInt("correct_option"));
-                    question.put("image_path", questionRows.getString("image_path"));
-                    questions.add(question);
+                    correctOptions.write(questionRows.getInt("correct_option"));
+                    json.writeStartObject();
+                    json.writeStringField("prompt", questionRows.getString("prompt"));
+                    json.writeStringField("option_1", questionRows.getString("option_1"));
+                    json.writeStringField("option_2", questionRows.getString("option_2"));
+                    json.writeStringField("option_3", questionRows.getString("option_3"));
+                    json.writeStringField("option_4", questionRows.getString("option_4"));
+                    json.writeStringField("image_path", questionRows.getString("image_path"));
+                    json.writeEndObject();
                 }
-                quiz.put("questions", questions);
-
-                // Send the map as JSON.
-                context.json(quiz);
             }
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+
+        return new QuizCache.Entry(quizId, userId, isPublic, bytes.toByteArray(), correctOptions.toByteArray());
+    }
+
+    // Parse an ID from the URL. Returns 0 (which is never a valid ID) if it isn't a number.
+    private static int parseId(String id) {
+        try {
+            return Integer.parseInt(id);
+        }
+        catch (NumberFormatException e) {
+            return 0;
         }
     }
 
     // Show a search form allowing the user to search for quizzes.
-    private static void searchPage(Context context) throws SQLException {
-        String content =
-            "<div class='search'>" +
-                "<h1>\uD83D\uDD0D Search</h1>" +
-                "<form method='get' action='/search'>" +
-                    "<input type='text' name='search' required>" +
-                    "<button type='submit' class='secondary'>Search</button>" +
-                "</form>";
+    private static void searchPage(Context context) throws SQLException, IOException {
+        HtmlPage page = page(context, "Search").html(SEARCH_FORM_HTML);
 
         // If the "search" parameter has been entered, that means there is a search.
         if (context.queryParam("search") != null) {
             // Show what term the user searched for.
-            content +=
-                    "<p>Search results for: " + Encode.forHtml(context.queryParam("search")) + "</p>" +
-                "<ul>";
-
-            try (Connection c = db.getConnection()) {
-                // Make sure to only get the quizzes that are public or belong to the current user.
-                PreparedStatement s = c.prepareStatement(
-                    "SELECT quiz.id AS quiz_id, title, username, public " +
-                    "FROM quiz " +
-                    "JOIN user ON quiz.user_id = user.id " +
-                    "WHERE instr(title, ?) " +
-                    "AND (public = TRUE OR user.id = ?)"
-                );
-                s.setString(1, context.queryParam("search"));
-                s.setInt(2, context.sessionAttribute("userId"));
-
-                ResultSet rows = s.executeQuery();
-                while(rows.next()) {
-                    String quizUrl = "/play/" + rows.getInt("quiz_id");
-                    content +=
-                        "<li>" +
-                            "<a href='" + quizUrl + "'>" +
-                                Encode.forHtml(rows.getString("title")) +
-                                " by " +
-                                Encode.forHtml(rows.getString("username")) +
-                                (rows.getBoolean("public") ? "" : " (private)") +
-                            "</a>" +
-                        "</li>";
+            page
+                .html("<p>Search results for: ").text(context.queryParam("search")).html("</p>")
+                .html("<ul>");
+
+            String query = searchQuery(context.queryParam("search"));
+            // A search with no words in it (just punctuation, for example) cannot match anything.
+            if (!query.isEmpty()) {
+                QuizCatalog.Snapshot quizzes = requestCatalog(context);
+                int[] found;
+                try (Connection c = db.getConnection()) {
+                    found = searchQuizzes(c, quizzes, session(context).userId, query, SEARCH_RESULT_LIMIT);
+                }
+                for (int position : found) {
+                    page
+                        .html("<li>")
+                            .html("<a href='/play/").number(quizzes.id(position)).html("'>")
+                                .text(quizzes.title(position))
+                                .html(" by ")
+                                .text(quizzes.username(position))
+                                .html(quizzes.isPublic(position) ? "" : " (private)")
+                            .html("</a>")
+                        .html("</li>");
                 }
             }
+            page.html("</ul>");
         }
 
-        content += "</div>";
+        page.html("</div>").end();
+    }
+
+    private static final byte[] SEARCH_FORM_HTML = HtmlPage.fragment(
+        "<div class='search'>" +
+            "<h1>\uD83D\uDD0D Search</h1>" +
+            "<form method='get' action='/search'>" +
+                "<input type='text' name='search' required>" +
+                "<button type='submit' class='secondary'>Search</button>" +
+            "</form>"
+    );
+
+    // Look the words up in the full-text index, and return the catalog positions of the best matches that are public or
+    // belong to the current user. The best matches come first: bm25 ranks by how well each quiz matches, and the
+    // weights make a match in the title count ten times as much as one in the questions. Only the matching IDs come
+    // from the database; everything else, including whether the user may see the quiz, is looked up in the catalog, so
+    // the search doesn't have to join with the quiz and user tables.
+    //
+    // bm25 has to score every match before the best ones are known, but with a LIMIT SQLite only keeps the best few
+    // while it does, instead of sorting all of them. Some of the matches may be private quizzes the user can't see, so
+    // it asks for a few times as many as it needs, and if that still wasn't enough (and there were more), it asks again
+    // for more.
+    static int[] searchQuizzes(
+        Connection c, QuizCatalog.Snapshot quizzes, int userId, String query, int limit
+    ) throws SQLException {
+        PreparedStatement s = c.prepareStatement(
+            "SELECT rowid FROM quiz_search WHERE quiz_search MATCH ? ORDER BY bm25(quiz_search, 10.0, 1.0) LIMIT ?"
+        );
+        s.setString(1, query);
+
+        int fetch = limit * SEARCH_OVERFETCH;
+        while (true) {
+            s.setInt(2, fetch);
+            // The rows come out one at a time, so stop reading as soon as there are enough visible quizzes.
+            int[] found = new int[limit];
+            int count = 0;
+            int read = 0;
+            try (ResultSet rows = s.executeQuery()) {
+                while (count < limit && rows.next()) {
+                    read += 1;
+                    int position = quizzes.position(rows.getInt(1));
+                    if (position >= 0 && quizzes.isVisibleTo(position, userId)) {
+                        found[count++] = position;
+                    }
+                }
+            }
+            if (count == limit || read < fetch || fetch > Integer.MAX_VALUE / SEARCH_OVERFETCH) {
+                return Arrays.copyOf(found, count);
+            }
+            fetch *= SEARCH_OVERFETCH;
+        }
+    }
 
-        String html = template(context, "Search", content);
-        context.result(html);
+    // Turn what the user typed into a full-text query. Each word becomes a quoted prefix search, e.g. `capit sw`
+    // becomes `"capit"* "sw"*`, which matches quizzes containing words starting with both. Quoting every word means
+    // that nothing the user types can be interpreted as FTS5 query syntax.
+    static String searchQuery(String search) {
+        StringBuilder query = new StringBuilder();
+        for (String word : search.split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                query.append('"').append(word).append("\"* ");
+            }
+        }
+        return query.toString().trim();
     }
 
     // Show a single flag from the "flags" folder. SVG is a text-based format so we can just serve the flag images
-    // directly here. In the future this will allow us to do interesting stuff like dynamically manipulate the XML
-    // before serving it, to add effects or styling etc.
-    private static void singleFlagPage(Context context) throws IOException {
-        // Create a Path object from the URL parameter.
-        String flagName = context.queryParam("name");
+    // directly here, or change the XML before serving it: query parameters like `&width=120&grayscale` ask for a
+    // variant of the flag (see SvgPipeline for all of them), which is made once and then cached (see
+    // FlagVariantCache).
+    //
+    // The flags are served from memory (see FlagAssets). Since the name is looked up in the in-memory index instead
+    // of being turned into a path, there's no way to reach files outside the flag folder.
+    private static void singleFlagPage(Context context) {
+        FlagAssets.Flag flag = flags.get(context.queryParam("name"));
+        if (flag == null) {
+            context.status(404);
+            context.contentType("text/plain; charset=UTF-8");
+            context.result("No flag with that name.");
+            return;
+        }
 
-        // Call `toRealPath` to fully resolve the path provided by the user.
-        // This turns it into an absolute (rather than relative) path and removes sequences like ".." etc.
-        Path path = Path.of("flags/" + flagName).toRealPath();
+        SvgPipeline pipeline;
+        try {
+            pipeline = SvgPipeline.fromParameters(context::queryParam);
+        }
+        catch (IllegalArgumentException e) {
+            context.status(400);
+            context.contentType("text/plain; charset=UTF-8");
+            context.result(e.getMessage());
+            return;
+        }
 
-        // Do the same with the flag folder path, so that it also becomes an absolute path and we can compare the two.
-        Path flagFolder = Path.of("flags").toRealPath();
+        // The quiz player asks for a flag for every question, so let browsers keep them for a week. The ETag lets them
+        // check cheaply whether a flag has changed after that.
+        String cacheControl = "public, max-age=604800";
+        if (pipeline.isEmpty()) {
+            svgResponse(context, cacheControl, flag.svg, flag.gzipped, flag.etag, flag.gzippedEtag);
+            return;
+        }
 
-        String svg = Files.readString(path);
-        context.contentType("image/svg+xml; charset=UTF-8");
-        context.result(svg);
+        FlagVariantCache.Variant variant;
+        try {
+            variant = flagVariants.get(flag, pipeline);
+        }
+        catch (XMLStreamException e) {
+            context.status(422);
+            context.contentType("text/plain; charset=UTF-8");
+            context.result("This flag can't be transformed: " + e.getMessage());
+            return;
+        }
+        svgResponse(context, cacheControl, variant.svg, variant.gzipped, variant.etag, variant.gzippedEtag);
+    }
 
-        // If the user-provided path does not "start with" (i.e. is contained inside) the story folder path, abort.
-        if (!path.startsWith(flagFolder)) {
-            // Give a "403 Forbidden" status and show an error message.
-            context.status(403);
-            context.result("You cannot access files outside the flag folder.");
+    // A static file by its fingerprinted URL. The content behind such a URL can never change, so browsers can keep it
+    // for a year without ever checking again.
+    private static void fingerprintedAsset(Context context) {
+        StaticAssets.Asset asset = assets.byUrl(context.path());
+        if (asset == null) {
+            context.status(404);
+            context.contentType("text/plain; charset=UTF-8");
+            context.result("No such file.");
+            return;
+        }
+        assetResponse(context, asset, "public, max-age=31536000, immutable");
+    }
+
+    // A static file by its plain name, for anything that doesn't use the fingerprinted URLs. Browsers have to check
+    // these with their ETag every time, since the file behind the name can change.
+    private static void plainAsset(Context context, StaticAssets.Asset asset) {
+        assetResponse(context, asset, "no-cache");
+    }
 
+    private static void assetResponse(Context context, StaticAssets.Asset asset, String cacheControl) {
+        boolean gzip = asset.gzipped != null && HttpCaching.acceptsGzip(context);
+        context.contentType(asset.contentType);
+        context.header("Cache-Control", cacheControl);
+        if (asset.gzipped != null) {
+            context.header("Vary", "Accept-Encoding");
+        }
+        if (HttpCaching.notModified(context, gzip ? asset.gzippedEtag : asset.etag)) {
             return;
         }
+
+        if (gzip) {
+            context.header("Content-Encoding", "gzip");
+            context.result(asset.gzipped);
+        }
+        else {
+            context.result(asset.content);
+        }
     }
 
-    // Show a gallery of all flags in the "flags" folder.
-    private static void flagListPage(Context context) {
-        String content =
-            "<div class='flags'>" +
-                "<h1>\uD83C\uDF8C Flags</h1>" +
-                "<p>If you just want to look at flags, this is the place for you!</p>";
+    // Send an SVG image, gzipped if the client accepts it and it makes the image smaller, or nothing but a 304 if the
+    // client already has it.
+    private static void svgResponse(
+        Context context, String cacheControl, byte[] svg, byte[] gzipped, String etag, String gzippedEtag
+    ) {
+        boolean gzip = HttpCaching.acceptsGzip(context) && gzipped.length < svg.length;
+        context.contentType("image/svg+xml; charset=UTF-8");
+        context.header("Cache-Control", cacheControl);
+        context.header("Vary", "Accept-Encoding");
+        if (HttpCaching.notModified(context, gzip ? gzippedEtag : etag)) {
+            return;
+        }
+
+        if (gzip) {
+            context.header("Content-Encoding", "gzip");
+            context.result(gzipped);
+        }
+        else {
+            context.result(svg);
+        }
+    }
 
-        content += "<section class='flag-gallery'>";
-        File[] flagFiles = new File("flags").listFiles();
-        for (File file : flagFiles) {
-            String name = file.getName();
-            String withoutExtension = name.split("\\.")[0];
-            content +=
-                "<div>" +
-                    "<h2 class='flag-title'>" + withoutExtension + "</h2>" +
-                    "<img src='/flag?name=" + name + "'>" +
-                "</div>";
+    // The sprite with all the flags in one file (see FlagSprite). Its URL changes whenever the flags do, so browsers
+    // can keep it forever. An old URL (from a page loaded before the flags changed) gives a 404.
+    private static void flagSprite(Context context) {
+        FlagSprite sprite = flags.sprite();
+        if (!context.path().equals(sprite.url)) {
+            context.status(404);
+            context.contentType("text/plain; charset=UTF-8");
+            context.result("No such flag sprite.");
+            return;
         }
-        content +=
-                "</section>" +
-            "</div>";
 
-        String html = template(context, "Flags", content);
-        context.result(html);
+        svgResponse(
+            context, "public, max-age=31536000, immutable", sprite.svg, sprite.gzipped, sprite.etag, sprite.gzippedEtag
+        );
+    }
+
+    // Show a gallery of all flags in the "flags" folder. The gallery itself is only made when the folder changes, and
+    // all the flags in it come from the sprite, so the browser makes a single request for them.
+    private static void flagListPage(Context context) throws IOException {
+        page(context, "Flags")
+            .html("<div class='flags'>")
+                .html("<h1>\uD83C\uDF8C Flags</h1>")
+                .html("<p>If you just want to look at flags, this is the place for you!</p>")
+                .html(flags.galleryHtml())
+            .html("</div>")
+            .end();
     }
 
     private static boolean userIsLoggedIn(Context context) {
-        return context.sessionAttribute("userId") != null;
+        return session(context) != null;
     }
 
-    private static void loginPage(Context context, String message) {
+    // The session of the logged in user, or null if not logged in. Only set for paths that need a login.
+    private static SessionStore.Session session(Context context) {
+        return context.attribute(SESSION_COOKIE);
+    }
+
+    // Start a new session for a user who has just logged in or registered. A new token is made every time, so that a
+    // token someone managed to plant in the browser before the login is worth nothing afterwards.
+    private static void startSession(Context context, int userId, String username) throws SQLException {
+        SessionStore.Session session = sessions.create(userId, username);
+        setSessionCookie(context, session.token, SESSION_IDLE_SECONDS);
+    }
+
+    // The cookie is kept from JavaScript, and isn't sent along with requests from other sites other than plain links.
+    private static void setSessionCookie(Context context, String token, long maxAgeSeconds) {
+        context.res.addHeader(
+            "Set-Cookie",
+            SESSION_COOKIE + "=" + token + "; Path=/; Max-Age=" + maxAgeSeconds + "; HttpOnly; SameSite=Lax"
+        );
+    }
+
+    private static void loginPage(Context context, String message) throws IOException {
         if (message != null) {
             context.status(403);
         }
 
-        String content =
-            "<div class='login'>" +
-                "<h1>Login</h1>" +
-                (message == null ? "" : "<p><strong>" + message + "</strong></p>") +
-                "<form method='post' action='/login'>" +
-                    "<label><span>Username:</span><input type='text' name='username'></label>" +
-                    "<label><span>Password:</span><input type='password' name='password'></label>" +
-                    "<button type='submit'>Log In</button>" +
-                "</form>" +
-            "</div>";
-        String html = template(context, "Login", content);
-        context.result(html);
+        HtmlPage page = page(context, "Login").html("<div class='login'>").html("<h1>Login</h1>");
+        if (message != null) {
+            page.html("<p><strong>").text(message).html("</strong></p>");
+        }
+        page.html(LOGIN_FORM_HTML).html("</div>").end();
     }
 
-    private static void loginPage(Context context) {
+    private static final byte[] LOGIN_FORM_HTML = HtmlPage.fragment(
+        "<form method='post' action='/login'>" +
+            "<label><span>Username:</span><input type='text' name='username'></label>" +
+            "<label><span>Password:</span><input type='password' name='password'></label>" +
+            "<button type='submit'>Log In</button>" +
+        "</form>"
+    );
+
+    private static void loginPage(Context context) throws IOException {
         loginPage(context, null);
     }
 
-    private static void login(Context context) throws SQLException {
+    private static void login(Context context) throws SQLException, IOException {
         String username = context.formParam("username");
         String password = context.formParam("password");
+        if (username == null || password == null) {
+            loginPage(context, "The username and/or password are incorrect. Please try again.");
+            return;
+        }
 
+        int userId = 0;
+        String stored = null;
         try (Connection c = db.getConnection()) {
-            PreparedStatement s = c.prepareStatement("SELECT id FROM user WHERE username = ? AND password = ?");
+            PreparedStatement s = c.prepareStatement("SELECT id, password FROM user WHERE username = ?");
             s.setString(1, username);
-            s.setString(2, password);
-            ResultSet rows = s.executeQuery();
+            try (ResultSet rows = s.executeQuery()) {
+                if (rows.next()) {
+                    userId = rows.getInt("id");
+                    stored = rows.getString("password");
+                }
+            }
+        }
 
-            if (rows.next()) {
-                context.sessionAttribute("userId", rows.getInt("id"));
-                context.sessionAttribute("username", username);
-                context.redirect("/");
+        // The password is checked on the credentials pool, not on this request thread. This is done even if there is
+        // no such user, so that it doesn't answer faster for usernames that don't exist.
+        Credentials.Verification verification = credentials.verify(password, stored);
+        if (!verification.matches) {
+            loginPage(context, "The username and/or password are incorrect. Please try again.");
+            return;
+        }
+
+        // Store the new hash if the password was saved in plain text or with an old iteration count. This doesn't need
+        // to hold up the login, and if it fails it will just be done the next time instead. The old value is part of
+        // the condition, so that a password changed in the meantime is not overwritten.
+        if (verification.upgradedHash != null) {
+            int id = userId;
+            String old = stored;
+            try {
+                writer.submit(c -> {
+                    try (PreparedStatement s = c.prepareStatement(
+                        "UPDATE user SET password = ? WHERE id = ? AND password = ?"
+                    )) {
+                        s.setString(1, verification.upgradedHash);
+                        s.setInt(2, id);
+                        s.setString(3, old);
+                        return s.executeUpdate();
+                    }
+                });
             }
-            else {
-                loginPage(context, "The username and/or password are incorrect. Please try again.");
+            catch (DatabaseWriter.BusyException e) {
+                // Try again next time.
             }
         }
+
+        startSession(context, userId, username);
+        context.redirect("/");
     }
 
-    private static void registerPage(Context context, String message) {
+    private static void registerPage(Context context, String message) throws IOException {
         if (message != null) {
             context.status(403);
         }
 
-        String content =
-            "<div class='register'>" +
-                "<h1>Register</h1>" +
-                (message == null ? "" : "<p><strong>" + message + "</strong></p>") +
-                "<form method='post' action='/register'>" +
-                    "<label><span>Username:</span><input type='text' name='username'></label>" +
-                    "<label><span>Password:</span><input type='password' name='password'></label>" +
-                    "<label><span>Repeat password:</span><input type='password' name='password-again'></label>" +
-                    "<button type='submit'>Register</button>" +
-                "</form>" +
-            "</div>";
-        String html = template(context, "Register", content);
-        context.result(html);
+        HtmlPage page = page(context, "Register").html("<div class='register'>").html("<h1>Register</h1>");
+        if (message != null) {
+            page.html("<p><strong>").text(message).html("</strong></p>");
+        }
+        page.html(REGISTER_FORM_HTML).html("</div>").end();
     }
 
-    private static void registerPage(Context context) {
+    private static final byte[] REGISTER_FORM_HTML = HtmlPage.fragment(
+        "<form method='post' action='/register'>" +
+            "<label><span>Username:</span><input type='text' name='username'></label>" +
+            "<label><span>Password:</span><input type='password' name='password'></label>" +
+            "<label><span>Repeat password:</span><input type='password' name='password-again'></label>" +
+            "<button type='submit'>Register</button>" +
+        "</form>"
+    );
+
+    private static void registerPage(Context context) throws IOException {
         registerPage(context, null);
     }
 
-    private static void register(Context context) throws SQLException {
+    private static void register(Context context) throws SQLException, IOException {
         String username = context.formParam("username");
         String password = context.formParam("password");
         String passwordAgain = context.formParam("password-again");
 
-        try (Connection c = db.getConnection()) {
-            PreparedStatement s1 = c.prepareStatement("SELECT * FROM user WHERE username = ?");
-            s1.setString(1, username);
-            ResultSet rows = s1.executeQuery();
+        if (username == null || password == null) {
+            registerPage(context, "Please enter a username and a password.");
+            return;
+        }
+        if (!password.equals(passwordAgain)) {
+            registerPage(context, "The passwords did not match.");
+            return;
+        }
 
-            if (rows.next()) {
-                registerPage(context, "That username has already been registered.");
-            }
-            else if (!password.equals(passwordAgain)) {
-                registerPage(context, "The passwords did not match.");
+        // Hash the password before going to the writer, so the writer thread is never held up by the hashing.
+        String passwordHash = credentials.hash(password);
+
+        // Check for an existing user and insert the new one in the same writer task, so that two people registering
+        // the same name at the same time can't both get through.
+        Integer userId = writer.executeInTransaction(c -> {
+            try (PreparedStatement s1 = c.prepareStatement("SELECT * FROM user WHERE username = ?")) {
+                s1.setString(1, username);
+                try (ResultSet rows = s1.executeQuery()) {
+                    if (rows.next()) {
+                        return null;
+                    }
+                }
             }
-            else {
-                PreparedStatement s2 = c.prepareStatement(
-                    "INSERT INTO user (username, password) VALUES (?, ?)",
-                    Statement.RETURN_GENERATED_KEYS
-                );
+
+            try (PreparedStatement s2 = c.prepareStatement(
+                "INSERT INTO user (username, password) VALUES (?, ?)",
+                Statement.RETURN_GENERATED_KEYS
+            )) {
                 s2.setString(1, username);
-                s2.setString(2, password);
+                s2.setString(2, passwordHash);
                 s2.execute();
 
-                ResultSet keys = s2.getGeneratedKeys();
-                keys.next();
-                context.sessionAttribute("userId", keys.getInt(1));
-                context.sessionAttribute("username", username);
-                context.redirect("/");
+                try (ResultSet keys = s2.getGeneratedKeys()) {
+                    keys.next();
+                    return keys.getInt(1);
+                }
             }
-        }
-    }
+        });
 
-    private static String template(Context context, String title, String content) {
-        String authHtml;
-        if (userIsLoggedIn(context)) {
-            authHtml =
-                "<form method='post' action='/logout'>" +
-                    "<button type='submit'>Log Out</button>" +
-                "</form>";
+        if (userId == null) {
+            registerPage(context, "That username has already been registered.");
         }
         else {
-            authHtml =
-                "<p>" +
-                    "<a href='/login' class='secondary'>Log In</a>" +
-                    "<a href='/register' class='secondary'>Register</a>" +
-                "</p>";
-        }
-
-        return
-            "<!DOCTYPE html>" +
-            "<html lang='en'>" +
-                "<head>" +
-                    "<meta charset='UTF-8'>" +
-                    "<meta name='viewport' content='width=device-width, initial-scale=1.0'>" +
-                    "<title>" + title + "</title>" +
-                    "<script src='/main.js' defer></script>" +
-                    "<link rel='stylesheet' href='/main.css'>" +
-                    "<link rel='stylesheet' href='https://fonts.googleapis.com/css2?family=Open+Sans:wght@800&display=swap'>" +
-                "</head>" +
-                "<body>" +
-                    "<header>" +
-                        "<nav>" +
-                            "<ul>" +
-                                "<li><a href='/create'>✏️ Create</a></li>" +
-                                "<li><a href='/play'>\uD83C\uDFB2 Play</a></li>" +
-                                "<li><a href='/search'>\uD83D\uDD0D Search</a></li>" +
-                                "<li><a href='/flags'>\uD83C\uDF8C Flags</a></li>" +
-                            "</ul>" +
-                        "</nav>" +
-                    "</header>" +
-                    "<main>" +
-                        content +
-                    "</main>" +
-                    "<footer>"+
-                        authHtml +
-                    "</footer>" +
-                "</body>" +
-            "</html>";
-    }
-
-    private static void createDatabase() throws SQLException, IOException {
-        try {
-            String sql = Files.readString(DB_SCRIPT_PATH);
-            String[] commands = sql.split(System.lineSeparator() + System.lineSeparator());
-            try (Connection c = db.getConnection()) {
-                for (String command : commands) {
-                    Statement s = c.createStatement();
-                    s.executeUpdate(command);
-                }
-            }
-        }
-        catch(SQLException e) {
-            if (Files.exists(DB_PATH)) {
-                Files.delete(DB_PATH);
-            }
-            throw e;
+            startSession(context, userId, username);
+            context.redirect("/");
         }
     }
+
+    private static void serviceUnavailable(Exception e, Context context) {
+        context.status(503);
+        context.header("Retry-After", "1");
+        context.contentType("text/plain; charset=UTF-8");
+        context.result(e.getMessage());
+    }
+
+    // Start an HTML page for this request. The page is written directly to the response, gzipped if it is big enough
+    // and the client accepts it, so any status code must be set before calling this. Every other kind of response sets
+    // its own content type.
+    private static HtmlPage page(Context context, String title) throws IOException {
+        context.contentType("text/html; charset=UTF-8");
+        return new HtmlPage(compression.output(context), title, userIsLoggedIn(context));
+    }
 }
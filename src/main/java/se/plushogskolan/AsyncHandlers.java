@@ -0,0 +1,198 @@
+package se.plushogskolan;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Runs the handlers that wait on the database on a separate, bounded executor instead of on Jetty's request threads.
+//
+// Normally every handler runs on a Jetty thread, so a burst of slow requests (say, /play with a filter that has to look
+// at every quiz) can tie up all of them, and even the cheap pages, like / or a single flag, have to wait for one to
+// come free. With this, the request thread only hands the work over and is free again straight away, and the response
+// is finished from the executor's thread through Javalin's support for CompletableFuture results.
+//
+// Each route also gets a limit on how many of its requests can be running or waiting at once, so that one slow route
+// can't take every thread in the executor either. Requests over the limit, or arriving when the executor's queue is
+// full, are turned away at once with a RejectedException (a 503), and so are requests that have waited in the queue for
+// longer than the timeout by the time a thread gets to them. A request that has started is never cut off, since it may
+// already have written part of its response; the database calls themselves are bounded by the pool and busy timeouts.
+class AsyncHandlers implements AutoCloseable {
+    // How long a thread waits for Jetty to take over the response before running a handler (see offload).
+    private static final long ASYNC_START_WAIT_MILLIS = 1000;
+    // While waiting for that, spin this many times first, and then sleep, starting with the shortest pause and doubling
+    // it up to the longest, so that a waiting thread doesn't take the CPU from the request thread it is waiting for.
+    private static final int ASYNC_START_SPINS = 100;
+    private static final long ASYNC_START_MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    private static final long ASYNC_START_MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // Thrown when a request is turned away.
+    static class RejectedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final int routeLimit;
+    private final long timeoutNanos;
+
+    // Metrics.
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong routeRejected = new AtomicLong();
+    private final AtomicLong queueRejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong totalQueueWaitNanos = new AtomicLong();
+    private final AtomicLong maxQueueWaitNanos = new AtomicLong();
+
+    AsyncHandlers(int threads, int queueSize, int routeLimit, long timeoutMillis) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+            threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+            runnable -> {
+                Thread thread = new Thread(runnable, "handler-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+        this.routeLimit = routeLimit;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    // Wrap a route's handler so that it runs on the executor. Each call makes a new route with its own limit.
+    Handler offload(Handler handler) {
+        Semaphore permits = new Semaphore(routeLimit);
+        return context -> {
+            if (!permits.tryAcquire()) {
+                routeRejected.incrementAndGet();
+                throw new RejectedException("Too many requests for this page right now, please try again in a moment.");
+            }
+
+            CompletableFuture<InputStream> future = new CompletableFuture<>();
+            context.result(future);
+            long queuedAt = System.nanoTime();
+            try {
+                executor.execute(() -> {
+                    try {
+                        run(context, handler, future, queuedAt);
+                    }
+                    finally {
+                        permits.release();
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                permits.release();
+                queueRejected.incrementAndGet();
+                throw new RejectedException("The server is too busy right now, please try again in a moment.");
+            }
+        };
+    }
+
+    private void run(Context context, Handler handler, CompletableFuture<InputStream> future, long queuedAt) {
+        long wait = System.nanoTime() - queuedAt;
+        totalQueueWaitNanos.addAndGet(wait);
+        maxQueueWaitNanos.accumulateAndGet(wait, Math::max);
+        if (wait > timeoutNanos) {
+            timedOut.incrementAndGet();
+            future.completeExceptionally(
+                new RejectedException("The server is too busy right now, please try again in a moment.")
+            );
+            return;
+        }
+
+        active.incrementAndGet();
+        try {
+            // Javalin looks for the future when the request thread returns from the handler chain, and then starts the
+            // servlet's async mode. Setting any other result, which many handlers do, replaces the future, so the
+            // handler mustn't run before Javalin has picked it up. This is almost never an actual wait.
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ASYNC_START_WAIT_MILLIS);
+            int spins = 0;
+            long park = ASYNC_START_MIN_PARK_NANOS;
+            while (!context.req.isAsyncStarted()) {
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException("The request was never switched to async mode");
+                }
+                if (spins < ASYNC_START_SPINS) {
+                    spins += 1;
+                    Thread.onSpinWait();
+                }
+                else {
+                    LockSupport.parkNanos(park);
+                    park = Math.min(park * 2, ASYNC_START_MAX_PARK_NANOS);
+                }
+            }
+
+            handler.handle(context);
+            // Javalin writes whatever the future completes with as the response, so pass on any result the handler set.
+            future.complete(context.resultStream());
+            completed.incrementAndGet();
+        }
+        catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        finally {
+            active.decrementAndGet();
+        }
+    }
+
+    // Stop taking new requests and let the ones already queued finish.
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    int threadCount() {
+        return executor.getMaximumPoolSize();
+    }
+
+    int activeCount() {
+        return active.get();
+    }
+
+    int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    long completedCount() {
+        return completed.get();
+    }
+
+    long routeRejectedCount() {
+        return routeRejected.get();
+    }
+
+    long queueRejectedCount() {
+        return queueRejected.get();
+    }
+
+    long timedOutCount() {
+        return timedOut.get();
+    }
+
+    long totalQueueWaitNanos() {
+        return totalQueueWaitNanos.get();
+    }
+
+    long maxQueueWaitNanos() {
+        return maxQueueWaitNanos.get();
+    }
+}
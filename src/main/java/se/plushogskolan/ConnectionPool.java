@@ -0,0 +1,254 @@
+package se.plushogskolan;
+
+import org.sqlite.SQLiteDataSource;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A small, bounded pool of SQLite connections. All connections are opened up front when the pool is created, so the
+// file handle and pragma setup is only paid once instead of on every request.
+//
+// The handlers keep using the normal JDBC pattern of `try (Connection c = db.getConnection())`. The connection they
+// get back is a thin wrapper where `close()` returns the connection to the pool instead of closing it, and where
+// `prepareStatement` returns a cached statement if the same SQL has been prepared on this connection before.
+//
+// Since the statements are kept, handlers don't close them, but they must close every ResultSet they get. A statement
+// that hasn't been read to the end (or reset) keeps its read transaction open, and in WAL mode the connection then
+// keeps seeing the database as it was at that moment, for every later borrower too. As a safety net, the last ResultSet
+// of every statement handed out is closed when the connection is given back.
+class ConnectionPool implements AutoCloseable {
+    private final BlockingQueue<PooledConnection> idle;
+    private final List<PooledConnection> all = new ArrayList<>();
+    private final long timeoutMillis;
+    private final QueryMetrics queryMetrics;
+
+    // Statistics, exposed through the getters at the bottom of this class.
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    ConnectionPool(
+        SQLiteDataSource dataSource, int size, int statementCacheSize, long timeoutMillis, QueryMetrics queryMetrics
+    ) throws SQLException {
+        if (size < 1) {
+            throw new IllegalArgumentException("The connection pool needs at least one connection");
+        }
+        this.idle = new ArrayBlockingQueue<>(size);
+        this.timeoutMillis = timeoutMillis;
+        this.queryMetrics = queryMetrics;
+
+        // Warm the pool by opening every connection right away.
+        for (int i = 0; i < size; i++) {
+            PooledConnection pooled = new PooledConnection(dataSource.getConnection(), statementCacheSize);
+            all.add(pooled);
+            idle.add(pooled);
+        }
+    }
+
+    // Borrow a connection. Closing the returned connection gives it back to the pool.
+    Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        PooledConnection pooled;
+        try {
+            pooled = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+
+        long waited = System.nanoTime() - start;
+        totalWaitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        if (pooled == null) {
+            timeouts.incrementAndGet();
+            throw new SQLException("Timed out after " + timeoutMillis + " ms waiting for a database connection");
+        }
+
+        acquisitions.incrementAndGet();
+        active.incrementAndGet();
+        return pooled.lease();
+    }
+
+    private void release(PooledConnection pooled) {
+        active.decrementAndGet();
+        idle.add(pooled);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        for (PooledConnection pooled : all) {
+            pooled.connection.close();
+        }
+    }
+
+    int size() {
+        return all.size();
+    }
+
+    int activeCount() {
+        return active.get();
+    }
+
+    int idleCount() {
+        return idle.size();
+    }
+
+    long acquisitionCount() {
+        return acquisitions.get();
+    }
+
+    long timeoutCount() {
+        return timeouts.get();
+    }
+
+    long totalWaitNanos() {
+        return totalWaitNanos.get();
+    }
+
+    long maxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    // One physical connection and its statement cache. Each time it is borrowed, a new proxy is handed out so that a
+    // handler that closes its connection twice (or keeps using it after closing) cannot affect the next borrower.
+    private class PooledConnection {
+        private final Connection connection;
+        private final Map<String, TimedStatement> statements;
+
+        PooledConnection(Connection connection, int statementCacheSize) {
+            this.connection = connection;
+            // An access-ordered LinkedHashMap gives us a simple LRU cache. Statements that fall out of it are closed.
+            this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TimedStatement> eldest) {
+                    if (size() <= statementCacheSize) {
+                        return false;
+                    }
+                    try {
+                        eldest.getValue().close();
+                    }
+                    catch (SQLException ignored) {
+                        // The statement is being thrown away anyway.
+                    }
+                    return true;
+                }
+            };
+        }
+
+        Connection lease() {
+            InvocationHandler handler = new Lease();
+            return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, handler
+            );
+        }
+
+        // Intercepts the calls made on a borrowed connection.
+        private class Lease implements InvocationHandler {
+            private boolean closed = false;
+            // The statements handed out by this lease, to reset when it is closed.
+            private final List<TimedStatement> used = new ArrayList<>(4);
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "close":
+                        if (!closed) {
+                            closed = true;
+                            try {
+                                resetStatements(used);
+                                reset();
+                            }
+                            finally {
+                                release(PooledConnection.this);
+                            }
+                        }
+                        return null;
+                    case "isClosed":
+                        return closed;
+                    case "unwrap":
+                        if (((Class<?>) args[0]).isInstance(proxy)) {
+                            return proxy;
+                        }
+                        break;
+                    case "prepareStatement":
+                        if (closed) {
+                            throw new SQLException("Connection has been returned to the pool");
+                        }
+                        // Only the plain and the "generated keys" variants are cached, which covers everything the
+                        // server uses.
+                        if (args.length == 1 || (args.length == 2 && args[1] instanceof Integer)) {
+                            return cachedStatement(args);
+                        }
+                        break;
+                    default:
+                        if (closed) {
+                            throw new SQLException("Connection has been returned to the pool");
+                        }
+                }
+
+                try {
+                    return method.invoke(connection, args);
+                }
+                catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+
+            private TimedStatement cachedStatement(Object[] args) throws SQLException {
+                String sql = (String) args[0];
+                int keys = args.length == 2 ? (Integer) args[1] : java.sql.Statement.NO_GENERATED_KEYS;
+                String key = keys + ":" + sql;
+
+                TimedStatement statement = statements.get(key);
+                if (statement == null || statement.isClosed()) {
+                    // The cached statement is wrapped once, so that every time it is run is timed.
+                    statement = queryMetrics.timed(connection.prepareStatement(sql, keys), sql);
+                    statements.put(key, statement);
+                }
+                else {
+                    statement.clearParameters();
+                }
+                if (!used.contains(statement)) {
+                    used.add(statement);
+                }
+                return statement;
+            }
+        }
+
+        // Close the ResultSet each statement last gave out and unbind its parameters, so that none of them is left in
+        // the middle of its rows. Closing a ResultSet that was already closed, or read to the end, does nothing.
+        private void resetStatements(List<TimedStatement> used) throws SQLException {
+            for (TimedStatement statement : used) {
+                if (!statement.isClosed()) {
+                    statement.reset();
+                }
+            }
+            used.clear();
+        }
+
+        // Put the connection back the way we found it, in case a handler changed the transaction mode or failed
+        // halfway through a transaction.
+        private void reset() throws SQLException {
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+}
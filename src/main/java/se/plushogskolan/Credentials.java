@@ -0,0 +1,240 @@
+package se.plushogskolan;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hashes and checks passwords. Passwords are stored as salted PBKDF2-HMAC-SHA256 hashes, in the form
+// `pbkdf2-sha256$<iterations>$<salt>$<hash>` with the salt and hash in Base64.
+//
+// A good password hash is slow on purpose, which means that a lot of logins at once could use up all the CPU and the
+// request threads, and then nobody can play. So the hashing is done on a small pool of its own, with a bounded queue.
+// If the queue is full, the login is rejected right away with a QueueFullException (which the server turns into a 503),
+// instead of piling up and slowing everything else down.
+//
+// Users that were created before passwords were hashed still have their plain password in the database. These are
+// still accepted, and `verify` returns a proper hash for them that the caller should store instead, so that every
+// user is moved over the next time they log in.
+class Credentials implements AutoCloseable {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "pbkdf2-sha256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    // Thrown when the hashing queue is full.
+    static class QueueFullException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        QueueFullException(String message) {
+            super(message);
+        }
+    }
+
+    // The result of checking a password.
+    static final class Verification {
+        final boolean matches;
+        // A new hash to store for the user, or null if the stored one is fine as it is.
+        final String upgradedHash;
+
+        Verification(boolean matches, String upgradedHash) {
+            this.matches = matches;
+            this.upgradedHash = upgradedHash;
+        }
+    }
+
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+    private final ArrayBlockingQueue<Runnable> queue;
+    private final ThreadPoolExecutor executor;
+    // Checked against when there is no user with the given name, so that a wrong username takes as long as a wrong
+    // password and can't be used to find out which usernames exist.
+    private final String dummyHash;
+
+    // Metrics.
+    private final AtomicLong hashes = new AtomicLong();
+    private final AtomicLong totalHashNanos = new AtomicLong();
+    private final AtomicLong maxHashNanos = new AtomicLong();
+    private final AtomicLong totalQueueWaitNanos = new AtomicLong();
+    private final AtomicLong maxQueueWaitNanos = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong upgrades = new AtomicLong();
+
+    Credentials(int threads, int queueCapacity, int iterations) {
+        this.iterations = iterations;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue, runnable -> {
+            Thread thread = new Thread(runnable, "credentials-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.dummyHash = hashNow("not a real password");
+    }
+
+    // Hash a new password, e.g. when a user registers.
+    String hash(String password) {
+        return run(() -> hashNow(password));
+    }
+
+    // Check a password against what is stored for the user. Pass null as the stored value if there is no such user. The
+    // password itself must not be null.
+    Verification verify(String password, String stored) {
+        return run(() -> {
+            if (stored == null) {
+                matchesHash(password, dummyHash);
+                return new Verification(false, null);
+            }
+
+            if (!stored.startsWith(PREFIX + "$")) {
+                // A plain password from before hashing. Compare in constant time anyway, and hash something either way:
+                // the right password is hashed to upgrade it, and a wrong one against the dummy hash, so that guessing
+                // at these users is as slow as guessing at anyone else.
+                boolean matches = MessageDigest.isEqual(
+                    password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8)
+                );
+                if (!matches) {
+                    matchesHash(password, dummyHash);
+                }
+                return new Verification(matches, matches ? upgrade(password) : null);
+            }
+
+            boolean matches = matchesHash(password, stored);
+            // Rehash if the iteration count has been raised since this hash was made.
+            boolean outdated = Integer.parseInt(stored.split("\\$")[1]) < iterations;
+            return new Verification(matches, matches && outdated ? upgrade(password) : null);
+        });
+    }
+
+    private String upgrade(String password) {
+        upgrades.incrementAndGet();
+        return hashNow(password);
+    }
+
+    // Run a task on the hashing pool and wait for it, keeping track of how long it waited in the queue.
+    private <T> T run(Callable<T> task) {
+        long queuedAt = System.nanoTime();
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                long waited = System.nanoTime() - queuedAt;
+                totalQueueWaitNanos.addAndGet(waited);
+                maxQueueWaitNanos.accumulateAndGet(waited, Math::max);
+                return task.call();
+            });
+        }
+        catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new QueueFullException("Too many people are logging in right now, please try again in a moment.");
+        }
+
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a password hash", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private String hashNow(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        byte[] hash = pbkdf2(password, salt, iterations);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + "$" + iterations + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(hash);
+    }
+
+    private boolean matchesHash(String password, String stored) {
+        String[] parts = stored.split("\\$");
+        int storedIterations = Integer.parseInt(parts[1]);
+        byte[] salt = Base64.getDecoder().decode(parts[2]);
+        byte[] expected = Base64.getDecoder().decode(parts[3]);
+        return MessageDigest.isEqual(pbkdf2(password, salt, storedIterations), expected);
+    }
+
+    private byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        long start = System.nanoTime();
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is always available", e);
+        }
+        finally {
+            spec.clearPassword();
+            long elapsed = System.nanoTime() - start;
+            hashes.incrementAndGet();
+            totalHashNanos.addAndGet(elapsed);
+            maxHashNanos.accumulateAndGet(elapsed, Math::max);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    int threads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    int iterations() {
+        return iterations;
+    }
+
+    int queueDepth() {
+        return queue.size();
+    }
+
+    int queueCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    long hashCount() {
+        return hashes.get();
+    }
+
+    long totalHashNanos() {
+        return totalHashNanos.get();
+    }
+
+    long maxHashNanos() {
+        return maxHashNanos.get();
+    }
+
+    long totalQueueWaitNanos() {
+        return totalQueueWaitNanos.get();
+    }
+
+    long maxQueueWaitNanos() {
+        return maxQueueWaitNanos.get();
+    }
+
+    long rejectedCount() {
+        return rejected.get();
+    }
+
+    long upgradeCount() {
+        return upgrades.get();
+    }
+}
@@ -0,0 +1,305 @@
+package se.plushogskolan;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// SQLite only allows one writer at a time, so instead of letting every request thread fight over the write lock (and
+// get SQLITE_BUSY), all writes are queued up and run one after another on a single dedicated thread that owns its own
+// connection. The queue is bounded: if it is full, the write is rejected right away with a BusyException, which the
+// server turns into a "503 Service Unavailable" instead of letting requests pile up. How long a write may wait for its
+// turn is bounded too. A write that hasn't started by then is taken out of the queue and fails with a BusyException,
+// so it never runs after its caller has given up on it. One that has already started is always waited for.
+//
+// In WAL mode the writer also checkpoints the write-ahead log periodically, so it doesn't grow without limit.
+//
+// A few tasks, like building an index on a big table, hold the writer for minutes at a time. Those are run with
+// executeSlow, which only records what the writer is doing, for /health/ready and for the message of the writes that
+// give up waiting. Writes still queue up behind it as usual.
+//
+// Unlike the pooled connections, the writer connection doesn't cache its statements, so a task must close every
+// statement and ResultSet it opens. One left open keeps its memory, and an unfinished read holds on to its snapshot.
+class DatabaseWriter implements AutoCloseable {
+    // A unit of work to run on the writer connection.
+    interface Task<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    // Thrown when the write queue is full, or a write has waited too long for its turn.
+    static class BusyException extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        BusyException(String message) {
+            super(message, "SQLITE_BUSY");
+        }
+    }
+
+    private final Connection connection;
+    private final ArrayBlockingQueue<Runnable> queue;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService checkpointer;
+    private final long waitNanos;
+    // What the slow task that is running right now is doing, or null.
+    private volatile String slowTask;
+
+    // Back-pressure metrics.
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    private final AtomicLong totalQueueWaitNanos = new AtomicLong();
+    private final AtomicLong totalRunNanos = new AtomicLong();
+    private final AtomicLong checkpoints = new AtomicLong();
+
+    DatabaseWriter(Connection connection, int queueCapacity, long waitMillis, long checkpointIntervalSeconds) {
+        this.connection = connection;
+        this.waitNanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, queue, runnable -> {
+            Thread thread = new Thread(runnable, "db-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (checkpointIntervalSeconds > 0) {
+            checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "db-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+            checkpointer.scheduleWithFixedDelay(
+                this::checkpoint, checkpointIntervalSeconds, checkpointIntervalSeconds, TimeUnit.SECONDS
+            );
+        }
+        else {
+            checkpointer = null;
+        }
+    }
+
+    // Run a task on the writer thread and wait for its result, or throw a BusyException if it hasn't started within the
+    // wait limit.
+    <T> T execute(Task<T> task) throws SQLException {
+        return await(queue(task), waitNanos);
+    }
+
+    // Run a task on the writer thread as a single transaction, and wait for its result. Everything the task does is
+    // committed at once (one fsync instead of one per statement), or rolled back if it throws.
+    <T> T executeInTransaction(Task<T> task) throws SQLException {
+        return execute(c -> {
+            c.setAutoCommit(false);
+            try {
+                T result = task.run(c);
+                c.commit();
+                return result;
+            }
+            catch (SQLException | RuntimeException e) {
+                c.rollback();
+                throw e;
+            }
+            finally {
+                c.setAutoCommit(true);
+            }
+        });
+    }
+
+    // Run a task that is expected to take a long time, and wait for its result however long it takes. `description`
+    // says what it is doing, e.g. "building the index quiz_title", and is passed on to the writes that give up waiting
+    // in the meantime.
+    <T> T executeSlow(String description, Task<T> task) throws SQLException {
+        Task<T> marked = c -> {
+            slowTask = description;
+            try {
+                return task.run(c);
+            }
+            finally {
+                slowTask = null;
+            }
+        };
+        return await(queue(marked), 0);
+    }
+
+    // Wait for a queued task, for at most `limitNanos` for it to start, or for as long as it takes if that is 0.
+    private <T> T await(Queued<T> queued, long limitNanos) throws SQLException {
+        try {
+            if (limitNanos > 0) {
+                try {
+                    return queued.future.get(limitNanos, TimeUnit.NANOSECONDS);
+                }
+                catch (TimeoutException e) {
+                    if (queued.claim()) {
+                        // Still waiting in the queue, and now it never will run.
+                        timedOut.incrementAndGet();
+                        String slow = slowTask;
+                        throw new BusyException(
+                            slow != null
+                                ? "The database is busy " + slow + ", please try again in a moment."
+                                : "The database is busy, please try again in a moment."
+                        );
+                    }
+                    // It has already started, so it has to be seen through.
+                }
+            }
+            return queued.future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the database writer", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException(cause);
+        }
+    }
+
+    // Queue a task on the writer thread without waiting for it. It runs however long it has to wait.
+    <T> CompletableFuture<T> submit(Task<T> task) throws BusyException {
+        return queue(task).future;
+    }
+
+    // A queued task, and its result. Whichever comes first of the writer starting it and the caller giving up on it
+    // claims it, so that it is either run or dropped, never both.
+    private static final class Queued<T> {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+    }
+
+    private <T> Queued<T> queue(Task<T> task) throws BusyException {
+        Queued<T> queued = new Queued<>();
+        CompletableFuture<T> future = queued.future;
+        long queuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                if (!queued.claim()) {
+                    // The caller gave up waiting.
+                    return;
+                }
+                long start = System.nanoTime();
+                totalQueueWaitNanos.addAndGet(start - queuedAt);
+                try {
+                    future.complete(task.run(connection));
+                    completed.incrementAndGet();
+                }
+                catch (Exception e) {
+                    failed.incrementAndGet();
+                    future.completeExceptionally(e);
+                }
+                finally {
+                    totalRunNanos.addAndGet(System.nanoTime() - start);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new BusyException("The database is busy, please try again in a moment.");
+        }
+        submitted.incrementAndGet();
+        maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+        return queued;
+    }
+
+    // Move the pages in the write-ahead log back into the database file. PASSIVE mode never blocks readers, it just
+    // copies as much as it can without waiting.
+    private void checkpoint() {
+        try {
+            submit(c -> {
+                try (Statement s = c.createStatement()) {
+                    s.execute("PRAGMA wal_checkpoint(PASSIVE)");
+                    return null;
+                }
+            }).join();
+            checkpoints.incrementAndGet();
+        }
+        catch (BusyException | CompletionException e) {
+            // The writer is already busy, so try again at the next interval instead.
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (checkpointer != null) {
+            checkpointer.shutdownNow();
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        connection.close();
+    }
+
+    // What the writer is doing if it is running a slow task, or null.
+    String slowTask() {
+        return slowTask;
+    }
+
+    int queueDepth() {
+        return queue.size();
+    }
+
+    int queueCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    long maxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    long submittedCount() {
+        return submitted.get();
+    }
+
+    long completedCount() {
+        return completed.get();
+    }
+
+    long failedCount() {
+        return failed.get();
+    }
+
+    long rejectedCount() {
+        return rejected.get();
+    }
+
+    // Writes that gave up waiting for their turn.
+    long timedOutCount() {
+        return timedOut.get();
+    }
+
+    long totalQueueWaitNanos() {
+        return totalQueueWaitNanos.get();
+    }
+
+    long totalRunNanos() {
+        return totalRunNanos.get();
+    }
+
+    long checkpointCount() {
+        return checkpoints.get();
+    }
+}
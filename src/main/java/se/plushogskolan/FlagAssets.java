@@ -0,0 +1,199 @@
+package se.plushogskolan;
+
+import org.owasp.encoder.Encode;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+// All the flag images from the "flags" folder, held in memory so that serving a flag never touches the disk.
+//
+// The flags are read once at startup into an immutable index. Each flag is stored both as is and gzipped, together
+// with an ETag for each. A background thread watches the folder and builds a new index whenever something changes; the
+// new index then replaces the old one in a single write, so requests always see either the old or the new set of flags
+// and never a half-loaded one.
+//
+// Everything that only depends on the flags is made along with the index, so it is only ever done once per change to
+// the folder: the sprite with all the flags in one file (see FlagSprite), the HTML for the flag gallery, and the
+// <option> tags for choosing a flag on the create page.
+//
+// Brotli would compress SVG a bit better than gzip, but the JDK has no Brotli encoder and we don't want a native
+// dependency for it, so only gzip variants are prepared.
+class FlagAssets implements AutoCloseable {
+    // A single flag image.
+    static final class Flag {
+        final String name;
+        final byte[] svg;
+        final byte[] gzipped;
+        final String hash;
+        final String etag;
+        final String gzippedEtag;
+
+        Flag(String name, byte[] svg) {
+            this.name = name;
+            this.svg = svg;
+            this.gzipped = HttpCaching.gzip(svg);
+            this.hash = HttpCaching.hash(svg);
+            this.etag = "\"" + hash + "\"";
+            // The gzipped bytes are a different representation of the same flag, so they need their own strong ETag.
+            this.gzippedEtag = "\"" + hash + "-gz\"";
+        }
+    }
+
+    // Everything made from one version of the flags folder.
+    private static final class Index {
+        final Map<String, Flag> flags;
+        final long version;
+        final FlagSprite sprite;
+        final byte[] galleryHtml;
+        final byte[] optionsHtml;
+
+        Index(Map<String, Flag> flags, long version) {
+            this.flags = flags;
+            this.version = version;
+            this.sprite = FlagSprite.build(flags.values());
+            this.galleryHtml = HtmlPage.fragment(gallery(flags, sprite));
+            this.optionsHtml = HtmlPage.fragment(options(flags));
+        }
+    }
+
+    private final Path folder;
+    private volatile Index index;
+    private WatchService watchService;
+
+    FlagAssets(Path folder) throws IOException {
+        this.folder = folder;
+        this.index = new Index(load(folder), 0);
+    }
+
+    // Get a flag by its file name, e.g. "sweden.svg". Since this is a lookup in the index rather than a path on disk,
+    // names like "../keys.xml" simply don't exist.
+    Flag get(String name) {
+        return name == null ? null : index.flags.get(name);
+    }
+
+    // The file names of all the flags, in alphabetical order.
+    List<String> names() {
+        return new ArrayList<>(index.flags.keySet());
+    }
+
+    // Increases every time the flags are reloaded.
+    long version() {
+        return index.version;
+    }
+
+    FlagSprite sprite() {
+        return index.sprite;
+    }
+
+    // The flag gallery: a <section> with every flag and its name.
+    byte[] galleryHtml() {
+        return index.galleryHtml;
+    }
+
+    // An <option> for every flag.
+    byte[] optionsHtml() {
+        return index.optionsHtml;
+    }
+
+    // Start watching the folder for changes in a background thread.
+    void watch() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        folder.register(
+            watchService,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE
+        );
+
+        Thread thread = new Thread(this::watchLoop, "flag-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                // Editors often write a file in several steps, so wait a moment and then throw away any events that
+                // came in meanwhile, so that we reload once per change rather than once per event.
+                TimeUnit.MILLISECONDS.sleep(100);
+                key.pollEvents();
+                key.reset();
+
+                try {
+                    // Only this thread ever replaces the index, so reading the old version here is safe.
+                    index = new Index(load(folder), index.version + 1);
+                }
+                catch (IOException e) {
+                    // Keep serving the flags we already have; the next change will trigger another attempt.
+                    System.err.println("Could not reload the flags folder: " + e);
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            // The server is shutting down.
+        }
+    }
+
+    private static Map<String, Flag> load(Path folder) throws IOException {
+        Map<String, Flag> loaded = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*.svg")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                loaded.put(name, new Flag(name, Files.readAllBytes(file)));
+            }
+        }
+        return Collections.unmodifiableMap(loaded);
+    }
+
+    // Each flag is drawn from the sprite, with the flag's own viewBox so that it keeps its shape. The few flags that
+    // couldn't be added to the sprite are shown on their own instead.
+    private static String gallery(Map<String, Flag> flags, FlagSprite sprite) {
+        StringBuilder html = new StringBuilder("<section class='flag-gallery'>");
+        for (String name : flags.keySet()) {
+            String title = name.endsWith(".svg") ? name.substring(0, name.length() - 4) : name;
+            html.append("<div>").append("<h2 class='flag-title'>").append(Encode.forHtml(title)).append("</h2>");
+            String viewBox = sprite.viewBoxes.get(name);
+            if (viewBox != null) {
+                html
+                    .append("<svg class='flag-image' role='img' viewBox='").append(Encode.forHtmlAttribute(viewBox))
+                    .append("'><use href='").append(sprite.url).append('#').append(FlagSprite.symbolId(name))
+                    .append("'/></svg>");
+            }
+            else {
+                html.append("<img src='/flag?name=").append(Encode.forHtmlAttribute(Encode.forUriComponent(name)))
+                    .append("'>");
+            }
+            html.append("</div>");
+        }
+        return html.append("</section>").toString();
+    }
+
+    private static String options(Map<String, Flag> flags) {
+        StringBuilder html = new StringBuilder();
+        for (String name : flags.keySet()) {
+            html.append("<option>").append(Encode.forHtml(name)).append("</option>");
+        }
+        return html.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+}
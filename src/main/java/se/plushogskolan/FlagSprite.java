@@ -0,0 +1,147 @@
+package se.plushogskolan;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// All the flags combined into one SVG file, with each flag as a <symbol>, so that a page with many flags only needs a
+// single request for all of them. A flag is then shown with `<svg viewBox='...'><use href='URL#flag-sweden'/></svg>`.
+//
+// The sprite's URL contains a hash of its content, so it can be cached forever: when the flags change, so does the URL.
+//
+// The flags are separate documents, so they can use the same IDs for their own parts (both the EU and the US flag have
+// a star with the ID "s"). In the sprite all the IDs, and all the references to them, are prefixed with the flag's
+// symbol ID to keep them apart. The flags are also stripped of metadata and minified on the way in (see SvgPipeline),
+// which among other things leaves out their <title>s, which would otherwise show up as tooltips.
+final class FlagSprite {
+    private static final Pattern URL_REFERENCE = Pattern.compile("url\\(\\s*#");
+
+    final byte[] svg;
+    final byte[] gzipped;
+    final String etag;
+    final String gzippedEtag;
+    final String url;
+    // The viewBox of each flag in the sprite, by file name. Flags that couldn't be added to the sprite are missing.
+    final Map<String, String> viewBoxes;
+
+    private FlagSprite(byte[] svg, Map<String, String> viewBoxes) {
+        String hash = HttpCaching.hash(svg);
+        this.svg = svg;
+        this.gzipped = HttpCaching.gzip(svg);
+        this.etag = "\"" + hash + "\"";
+        this.gzippedEtag = "\"" + hash + "-gz\"";
+        this.url = "/flags/sprite-" + hash + ".svg";
+        this.viewBoxes = Collections.unmodifiableMap(viewBoxes);
+    }
+
+    // The ID of a flag's <symbol>, e.g. "flag-sweden" for "sweden.svg". The JavaScript makes the same IDs, so the two
+    // have to be kept in sync.
+    static String symbolId(String name) {
+        String withoutExtension = name.endsWith(".svg") ? name.substring(0, name.length() - 4) : name;
+        return "flag-" + withoutExtension.replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+
+    static FlagSprite build(Collection<FlagAssets.Flag> flags) {
+        ByteArrayOutputStream svg = new ByteArrayOutputStream();
+        String start =
+            "<svg xmlns='" + SvgPipeline.SVG_NAMESPACE + "' xmlns:xlink='" + SvgPipeline.XLINK_NAMESPACE + "'>";
+        svg.writeBytes(start.getBytes(StandardCharsets.UTF_8));
+        Map<String, String> viewBoxes = new LinkedHashMap<>();
+        for (FlagAssets.Flag flag : flags) {
+            // Each flag is converted on its own, so that one broken file only leaves out that flag. It can still be
+            // shown on its own through /flag.
+            Symbol symbol = new Symbol(symbolId(flag.name));
+            SvgPipeline pipeline = new SvgPipeline(List.of(
+                new SvgPipeline.StripMetadata(), new SvgPipeline.Minify(), symbol
+            ));
+            try {
+                svg.writeBytes(pipeline.apply(flag.svg));
+                viewBoxes.put(flag.name, symbol.viewBox);
+            }
+            catch (XMLStreamException e) {
+                System.err.println("Could not add " + flag.name + " to the flag sprite: " + e.getMessage());
+            }
+        }
+        svg.writeBytes("</svg>".getBytes(StandardCharsets.UTF_8));
+        return new FlagSprite(svg.toByteArray(), viewBoxes);
+    }
+
+    // Turns the <svg> element of a flag into a <symbol>, and prefixes all the IDs and references to them. Since it
+    // remembers the viewBox of the flag it has been run on, each flag needs its own.
+    private static final class Symbol implements SvgPipeline.Stage {
+        private static final QName ID = new QName("id");
+        private static final QName HREF = new QName("href");
+        private static final QName XLINK_HREF = new QName(SvgPipeline.XLINK_NAMESPACE, "href");
+
+        private final String id;
+        private String viewBox = null;
+
+        Symbol(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public String key() {
+            return "symbol:" + id;
+        }
+
+        @Override
+        public SvgPipeline.Sink filter(SvgPipeline.Sink next) {
+            return event -> {
+                if (event.isStartElement()) {
+                    event = viewBox == null ? symbol(event.asStartElement()) : prefixed(event.asStartElement());
+                }
+                next.accept(event);
+            };
+        }
+
+        private StartElement symbol(StartElement svg) throws XMLStreamException {
+            viewBox = SvgPipeline.viewBox(svg);
+            List<Attribute> attributes = new ArrayList<>();
+            attributes.add(SvgPipeline.attribute(ID, id));
+            attributes.add(SvgPipeline.attribute(new QName("viewBox"), viewBox));
+            Attribute preserveAspectRatio = svg.getAttributeByName(new QName("preserveAspectRatio"));
+            if (preserveAspectRatio != null) {
+                attributes.add(preserveAspectRatio);
+            }
+            // The namespaces are declared once, on the sprite's own <svg> element.
+            return SvgPipeline.startElement(
+                new QName(SvgPipeline.SVG_NAMESPACE, "symbol"), attributes, Collections.emptyIterator()
+            );
+        }
+
+        private StartElement prefixed(StartElement element) {
+            List<Attribute> attributes = new ArrayList<>();
+            Iterator<Attribute> all = element.getAttributes();
+            while (all.hasNext()) {
+                Attribute attribute = all.next();
+                QName name = attribute.getName();
+                String value = attribute.getValue();
+                if (name.equals(ID)) {
+                    value = id + "-" + value;
+                }
+                else if ((name.equals(HREF) || name.equals(XLINK_HREF)) && value.startsWith("#")) {
+                    value = "#" + id + "-" + value.substring(1);
+                }
+                else {
+                    // E.g. fill='url(#gradient)'.
+                    value = URL_REFERENCE.matcher(value).replaceAll(Matcher.quoteReplacement("url(#" + id + "-"));
+                }
+                attributes.add(value.equals(attribute.getValue()) ? attribute : SvgPipeline.attribute(name, value));
+            }
+            return SvgPipeline.startElement(element.getName(), attributes, element.getNamespaces());
+        }
+    }
+}
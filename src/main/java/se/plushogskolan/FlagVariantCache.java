@@ -0,0 +1,123 @@
+package se.plushogskolan;
+
+import javax.xml.stream.XMLStreamException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A cache of transformed flags, as served by /flag with transformation parameters (see SvgPipeline). A themed
+// gallery or a list of thumbnails asks for the same few variants over and over, so each one is only made once.
+//
+// Entries are keyed by the flag's name, the hash of the flag file and the pipeline's key. Since the hash is part of the
+// key, a changed flag simply never matches its old variants again, and those are pushed out as the cache fills up. Like
+// the quiz cache, it is limited by the total size of what it holds, and the least recently used variants go first.
+class FlagVariantCache {
+    // One transformed flag, both as is and gzipped.
+    static final class Variant {
+        final String key;
+        final byte[] svg;
+        final byte[] gzipped;
+        final String etag;
+        final String gzippedEtag;
+
+        Variant(String key, byte[] svg) {
+            String hash = HttpCaching.hash(svg);
+            this.key = key;
+            this.svg = svg;
+            this.gzipped = HttpCaching.gzip(svg);
+            this.etag = "\"" + hash + "\"";
+            this.gzippedEtag = "\"" + hash + "-gz\"";
+        }
+
+        // The number of bytes this variant counts as in the cache.
+        int size() {
+            return svg.length + gzipped.length;
+        }
+    }
+
+    private final long maxBytes;
+    private long bytes = 0;
+    // Access-ordered, so iterating starts with the least recently used entry.
+    private final LinkedHashMap<String, Variant> variants = new LinkedHashMap<>(64, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong transformNanos = new AtomicLong();
+
+    FlagVariantCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // Get a variant of a flag, making it if it isn't cached. It is made outside of the lock, so that a slow
+    // transformation doesn't hold up requests for other variants; if two requests make the same variant at once, the
+    // result is the same either way.
+    Variant get(FlagAssets.Flag flag, SvgPipeline pipeline) throws XMLStreamException {
+        String key = flag.name + "|" + flag.hash + "|" + pipeline.key();
+        Variant variant = cached(key);
+        if (variant != null) {
+            return variant;
+        }
+
+        long start = System.nanoTime();
+        variant = new Variant(key, pipeline.apply(flag.svg));
+        transformNanos.addAndGet(System.nanoTime() - start);
+        put(variant);
+        return variant;
+    }
+
+    private synchronized Variant cached(String key) {
+        Variant variant = variants.get(key);
+        if (variant == null) {
+            misses.incrementAndGet();
+        }
+        else {
+            hits.incrementAndGet();
+        }
+        return variant;
+    }
+
+    private synchronized void put(Variant variant) {
+        if (variant.size() > maxBytes) {
+            return;
+        }
+
+        Variant previous = variants.put(variant.key, variant);
+        if (previous != null) {
+            bytes -= previous.size();
+        }
+        bytes += variant.size();
+
+        Iterator<Variant> iterator = variants.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Variant eldest = iterator.next();
+            iterator.remove();
+            bytes -= eldest.size();
+            evictions.incrementAndGet();
+        }
+    }
+
+    synchronized int size() {
+        return variants.size();
+    }
+
+    synchronized long sizeInBytes() {
+        return bytes;
+    }
+
+    long hitCount() {
+        return hits.get();
+    }
+
+    long missCount() {
+        return misses.get();
+    }
+
+    long evictionCount() {
+        return evictions.get();
+    }
+
+    long totalTransformNanos() {
+        return transformNanos.get();
+    }
+}
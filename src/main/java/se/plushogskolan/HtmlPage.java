@@ -0,0 +1,257 @@
+package se.plushogskolan;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Writes a complete HTML page, with the same head, navigation and footer on every page, to an output stream.
+//
+// Instead of gluing strings together (which creates a new, longer string every time), everything is encoded straight
+// into a byte buffer as UTF-8. The parts that are the same on every page are encoded to bytes once, when the class is
+// loaded, and are just copied into the buffer. The buffer is reused between requests handled by the same thread, and
+// whenever it fills up it is written to the output stream, so a long page never needs more memory than the buffer.
+//
+// There are two ways of adding content:
+// - `html` is for markup written in our own code. It is written exactly as it is.
+// - `text` is for anything that comes from users or the database. It is HTML-encoded while it is written, so it can't
+//   contain tags or break out of an attribute.
+final class HtmlPage {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private static final byte[] HEAD_START = fragment(
+        "<!DOCTYPE html>" +
+        "<html lang='en'>" +
+            "<head>" +
+                "<meta charset='UTF-8'>" +
+                "<meta name='viewport' content='width=device-width, initial-scale=1.0'>" +
+                "<title>"
+    );
+    // The end of the head links the JavaScript and CSS by their fingerprinted URLs (see StaticAssets), so it is made
+    // when the server starts rather than when the class is loaded.
+    private static volatile byte[] headEnd = headEnd("/main.js", "/main.css");
+
+    private static byte[] headEnd(String scriptUrl, String styleUrl) {
+        return fragment(
+                "</title>" +
+                "<script src='" + scriptUrl + "' defer></script>" +
+                "<link rel='stylesheet' href='" + styleUrl + "'>" +
+                "<link rel='stylesheet' " +
+                    "href='https://fonts.googleapis.com/css2?family=Open+Sans:wght@800&display=swap'>" +
+            "</head>" +
+            "<body>" +
+                "<header>" +
+                    "<nav>" +
+                        "<ul>" +
+                            "<li><a href='/create'>✏️ Create</a></li>" +
+                            "<li><a href='/play'>\uD83C\uDFB2 Play</a></li>" +
+                            "<li><a href='/search'>\uD83D\uDD0D Search</a></li>" +
+                            "<li><a href='/flags'>\uD83C\uDF8C Flags</a></li>" +
+                        "</ul>" +
+                    "</nav>" +
+                "</header>" +
+                "<main>"
+        );
+    }
+
+    private static final byte[] FOOTER_LOGGED_IN = fragment(
+                "</main>" +
+                "<footer>" +
+                    "<form method='post' action='/logout'>" +
+                        "<button type='submit'>Log Out</button>" +
+                    "</form>" +
+                "</footer>" +
+            "</body>" +
+        "</html>"
+    );
+    private static final byte[] FOOTER_LOGGED_OUT = fragment(
+                "</main>" +
+                "<footer>" +
+                    "<p>" +
+                        "<a href='/login' class='secondary'>Log In</a>" +
+                        "<a href='/register' class='secondary'>Register</a>" +
+                    "</p>" +
+                "</footer>" +
+            "</body>" +
+        "</html>"
+    );
+
+    private final OutputStream out;
+    private final boolean loggedIn;
+    private final byte[] buffer;
+    private int position = 0;
+
+    // Start a new page, writing everything up to the start of the page content.
+    HtmlPage(OutputStream out, String title, boolean loggedIn) {
+        this.out = out;
+        this.loggedIn = loggedIn;
+        this.buffer = BUFFERS.get();
+        html(HEAD_START).text(title).html(headEnd);
+    }
+
+    // Link the JavaScript and CSS by their fingerprinted URLs on every page from now on.
+    static void useAssets(StaticAssets assets) {
+        headEnd = headEnd(assets.url("main.js"), assets.url("main.css"));
+    }
+
+    // Encode a piece of markup that never changes, so it can be written with `html(byte[])`.
+    static byte[] fragment(String html) {
+        return html.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Write a fragment created with `fragment`.
+    HtmlPage html(byte[] fragment) {
+        if (fragment.length > buffer.length - position) {
+            flush();
+            if (fragment.length > buffer.length) {
+                write(fragment, fragment.length);
+                return this;
+            }
+        }
+        System.arraycopy(fragment, 0, buffer, position, fragment.length);
+        position += fragment.length;
+        return this;
+    }
+
+    // Write markup as it is.
+    HtmlPage html(String html) {
+        for (int i = 0; i < html.length(); i++) {
+            i = writeChar(html, i);
+        }
+        return this;
+    }
+
+    // Write text, HTML-encoded. A null value is written as nothing.
+    HtmlPage text(String text) {
+        if (text == null) {
+            return this;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    ascii("&amp;");
+                    break;
+                case '<':
+                    ascii("&lt;");
+                    break;
+                case '>':
+                    ascii("&gt;");
+                    break;
+                case '"':
+                    ascii("&#34;");
+                    break;
+                case '\'':
+                    ascii("&#39;");
+                    break;
+                default:
+                    i = writeChar(text, i);
+            }
+        }
+        return this;
+    }
+
+    // Write a number, without creating a string for it.
+    HtmlPage number(long number) {
+        if (number < 0) {
+            byteOut('-');
+            // Long.MIN_VALUE has no positive counterpart, so let the String code deal with that one.
+            if (number == Long.MIN_VALUE) {
+                return html(Long.toString(number).substring(1));
+            }
+            number = -number;
+        }
+        long divisor = 1;
+        while (number / divisor >= 10) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            byteOut((int) ('0' + number / divisor % 10));
+            divisor /= 10;
+        }
+        return this;
+    }
+
+    // Write the footer, send whatever is left in the buffer and close the output stream. The server writes pages
+    // through ResponseCompression, whose streams need closing to finish the gzip data, but leave the response open.
+    void end() {
+        html(loggedIn ? FOOTER_LOGGED_IN : FOOTER_LOGGED_OUT);
+        flush();
+        try {
+            out.close();
+        }
+        catch (IOException e) {
+            throw new PageWriteException(e);
+        }
+    }
+
+    // Send the buffer to the output stream and start over with an empty buffer.
+    private void flush() {
+        if (position > 0) {
+            write(buffer, position);
+            position = 0;
+        }
+    }
+
+    private void write(byte[] bytes, int length) {
+        try {
+            out.write(bytes, 0, length);
+        }
+        catch (IOException e) {
+            throw new PageWriteException(e);
+        }
+    }
+
+    // Encode a single character (or surrogate pair, for characters like emoji) as UTF-8. Returns the index of the last
+    // char that was used.
+    private int writeChar(String s, int i) {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+            byteOut(c);
+        }
+        else if (c < 0x800) {
+            byteOut(0xC0 | (c >> 6));
+            byteOut(0x80 | (c & 0x3F));
+        }
+        else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int codePoint = Character.toCodePoint(c, s.charAt(i + 1));
+            byteOut(0xF0 | (codePoint >> 18));
+            byteOut(0x80 | ((codePoint >> 12) & 0x3F));
+            byteOut(0x80 | ((codePoint >> 6) & 0x3F));
+            byteOut(0x80 | (codePoint & 0x3F));
+            return i + 1;
+        }
+        else if (Character.isSurrogate(c)) {
+            // Half of a surrogate pair on its own isn't a valid character, so write a question mark instead.
+            byteOut('?');
+        }
+        else {
+            byteOut(0xE0 | (c >> 12));
+            byteOut(0x80 | ((c >> 6) & 0x3F));
+            byteOut(0x80 | (c & 0x3F));
+        }
+        return i;
+    }
+
+    private void ascii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            byteOut(s.charAt(i));
+        }
+    }
+
+    private void byteOut(int b) {
+        if (position == buffer.length) {
+            flush();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    // Thrown when the page can't be written, usually because the client has gone away.
+    static class PageWriteException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        PageWriteException(IOException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package se.plushogskolan;
+
+import io.javalin.http.Context;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+// Small helpers for HTTP caching and compression that are shared by the handlers serving cacheable content.
+final class HttpCaching {
+    private HttpCaching() {
+    }
+
+    // Set the ETag header, and if the client already has this version (it sent the same ETag in If-None-Match),
+    // answer with "304 Not Modified" and return true. The caller should then not send any body.
+    static boolean notModified(Context context, String etag) {
+        context.header("ETag", etag);
+        String ifNoneMatch = context.header("If-None-Match");
+        if (ifNoneMatch != null && etagListContains(ifNoneMatch, etag)) {
+            context.status(304);
+            return true;
+        }
+        return false;
+    }
+
+    // If-None-Match can contain "*" or a comma separated list of ETags, which may be weak (W/"...").
+    private static boolean etagListContains(String header, String etag) {
+        String bare = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*")) {
+                return true;
+            }
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(bare)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Accept-Encoding is a comma separated list of codings, each with an optional weight, e.g. `gzip;q=0.8, br`. A
+    // weight of 0 means "not this one", so `gzip;q=0` refuses gzip. "*" stands for any coding that isn't listed.
+    static boolean acceptsGzip(Context context) {
+        String acceptEncoding = context.header("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return false;
+        }
+        double gzip = -1;
+        double any = -1;
+        for (String entry : acceptEncoding.split(",")) {
+            String[] parts = entry.split(";");
+            String coding = parts[0].trim().toLowerCase();
+            double weight = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim().toLowerCase();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        weight = Double.parseDouble(parameter.substring(2).trim());
+                    }
+                    catch (NumberFormatException e) {
+                        weight = 0;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzip = Math.max(gzip, weight);
+            }
+            else if (coding.equals("*")) {
+                any = Math.max(any, weight);
+            }
+        }
+        return gzip >= 0 ? gzip > 0 : any > 0;
+    }
+
+    // A strong ETag made from a hash of the content.
+    static String etag(byte[] content) {
+        return "\"" + hash(content) + "\"";
+    }
+
+    // The first 16 hex characters of the SHA-256 hash of the content, which is plenty to tell versions apart.
+    static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+
+    static String hash(String content) {
+        return hash(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static byte[] gzip(byte[] content) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 2 + 32);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+                gzip.write(content);
+            }
+            return bytes.toByteArray();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package se.plushogskolan;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// A latency histogram that can be recorded into from any number of threads at once, without locking and without
+// allocating anything.
+//
+// Values are recorded in microseconds into an HdrHistogram Recorder, which keeps 2 significant digits over the whole
+// range (so 1234 µs is counted as 1230 µs, and 1234567 µs as 1230000 µs). Reading swaps out the Recorder's interval
+// histogram and adds it to a running total, which is what gets reported. Anything above a minute is counted as a
+// minute.
+class LatencyHistogram {
+    private static final long HIGHEST_MICROS = TimeUnit.MINUTES.toMicros(1);
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    private final Recorder recorder = new Recorder(1, HIGHEST_MICROS, SIGNIFICANT_DIGITS);
+    private final LongAdder totalNanos = new LongAdder();
+    private final Histogram total = new Histogram(1, HIGHEST_MICROS, SIGNIFICANT_DIGITS);
+    private Histogram interval;
+
+    void record(long nanos) {
+        recorder.recordValue(Math.max(1, Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), HIGHEST_MICROS)));
+        totalNanos.add(nanos);
+    }
+
+    // A copy of everything recorded so far.
+    synchronized Histogram snapshot() {
+        interval = recorder.getIntervalHistogram(interval);
+        total.add(interval);
+        return total.copy();
+    }
+
+    // The sum of all recorded values, exactly rather than rounded like the histogram.
+    long totalNanos() {
+        return totalNanos.sum();
+    }
+}
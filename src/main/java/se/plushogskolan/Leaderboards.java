@@ -0,0 +1,330 @@
+package se.plushogskolan;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// The top scores for each quiz, kept in memory so that showing a leaderboard never has to sort the score table.
+//
+// Each quiz has a small, sorted, immutable Board with at most `size` entries and at most one entry per user (their
+// best score). Reading a leaderboard is just reading the current Board, without any locking. A new score builds a new
+// Board and swaps it in with compare-and-set, so a popular quiz with many scores coming in at once never blocks its
+// readers, and scores that don't make it onto the board don't change anything at all.
+//
+// The boards are filled from the score table in the background when the server starts, and apart from that a board
+// that isn't in memory is loaded from the database the first time it is needed. To keep memory bounded, only
+// `maxQuizzes` boards are kept; when there are more, the ones that have gone the longest without being used are
+// dropped (they can always be loaded again).
+class Leaderboards {
+    // One user's best score on a quiz.
+    static final class Entry {
+        final int userId;
+        final String username;
+        final int score;
+        final int questionCount;
+        final long scoredAt;
+
+        Entry(int userId, String username, int score, int questionCount, long scoredAt) {
+            this.userId = userId;
+            this.username = username;
+            this.score = score;
+            this.questionCount = questionCount;
+            this.scoredAt = scoredAt;
+        }
+    }
+
+    // Highest score first. For equal scores, whoever got it first is placed higher.
+    private static final Comparator<Entry> ORDER = Comparator
+        .comparingInt((Entry e) -> -e.score)
+        .thenComparingLong(e -> e.scoredAt)
+        .thenComparingInt(e -> e.userId);
+
+    // The leaderboard for one quiz, in order. Never changed after it has been created.
+    static final class Board {
+        private final Entry[] entries;
+
+        private Board(Entry[] entries) {
+            this.entries = entries;
+        }
+
+        List<Entry> entries() {
+            return List.of(entries);
+        }
+
+        // The place (starting from 1) of this user on the board, or 0 if they are not on it.
+        int rankOf(int userId) {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].userId == userId) {
+                    return i + 1;
+                }
+            }
+            return 0;
+        }
+    }
+
+    private static final Board EMPTY = new Board(new Entry[0]);
+
+    // A board along with when it was last used, for choosing which boards to drop.
+    private static final class Holder {
+        final AtomicReference<Board> board;
+        volatile long lastUsed;
+
+        Holder(Board board) {
+            this.board = new AtomicReference<>(board);
+            this.lastUsed = System.nanoTime();
+        }
+    }
+
+    private final ConnectionPool db;
+    private final int size;
+    private final int maxQuizzes;
+    private final ConcurrentHashMap<Integer, Holder> boards = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    // Metrics.
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+
+    Leaderboards(ConnectionPool db, int size, int maxQuizzes) {
+        this.db = db;
+        this.size = size;
+        this.maxQuizzes = maxQuizzes;
+    }
+
+    // Fill the boards from the score table. The window function picks out the top scores of each quiz, walking the
+    // score index in order instead of sorting.
+    void loadAll() throws SQLException {
+        try (Connection c = db.getConnection()) {
+            loadAll(c);
+        }
+    }
+
+    private void loadAll(Connection c) throws SQLException {
+        PreparedStatement s = c.prepareStatement(
+            "SELECT quiz_id, user_id, username, score, question_count, scored_at " +
+            "FROM (" +
+                "SELECT score.*, username, " +
+                "ROW_NUMBER() OVER (PARTITION BY quiz_id ORDER BY score DESC, scored_at) AS place " +
+                "FROM score " +
+                "JOIN user ON score.user_id = user.id" +
+            ") " +
+            "WHERE place <= ? " +
+            "ORDER BY quiz_id, place"
+        );
+        s.setInt(1, size);
+
+        int quizId = 0;
+        List<Entry> entries = new ArrayList<>();
+        try (ResultSet rows = s.executeQuery()) {
+            while (rows.next()) {
+                if (rows.getInt("quiz_id") != quizId) {
+                    if (!addLoaded(quizId, entries)) {
+                        return;
+                    }
+                    quizId = rows.getInt("quiz_id");
+                    entries.clear();
+                }
+                entries.add(entry(rows));
+            }
+        }
+        addLoaded(quizId, entries);
+    }
+
+    // Returns false when there's no room for more boards.
+    private boolean addLoaded(int quizId, List<Entry> entries) {
+        if (entries.isEmpty()) {
+            return true;
+        }
+        if (boards.size() >= maxQuizzes) {
+            return false;
+        }
+        // Never replace a board that has been loaded (and maybe changed) since the query started, since this runs in
+        // the background while the server is already taking requests.
+        if (boards.putIfAbsent(quizId, new Holder(new Board(entries.toArray(new Entry[0])))) == null) {
+            loads.incrementAndGet();
+        }
+        return true;
+    }
+
+    // Get the current leaderboard for a quiz.
+    Board get(int quizId) throws SQLException {
+        return holder(quizId).board.get();
+    }
+
+    // Add a score. Only the user's best score is kept, so a worse score than their current one changes nothing.
+    // Returns the board with the score included (if it made it onto the board).
+    Board add(int quizId, Entry entry) throws SQLException {
+        AtomicReference<Board> reference = holder(quizId).board;
+        while (true) {
+            Board current = reference.get();
+            Board updated = with(current, entry);
+            if (updated == current) {
+                return current;
+            }
+            if (reference.compareAndSet(current, updated)) {
+                updates.incrementAndGet();
+                return updated;
+            }
+            // Someone else changed the board at the same time, so try again on top of their change.
+            retries.incrementAndGet();
+        }
+    }
+
+    // A copy of the board with the entry added, or the same board if the entry doesn't change it.
+    private Board with(Board board, Entry entry) {
+        Entry[] entries = board.entries;
+        int existing = -1;
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].userId == entry.userId) {
+                existing = i;
+                break;
+            }
+        }
+
+        if (existing >= 0 && ORDER.compare(entry, entries[existing]) >= 0) {
+            // Not better than the score the user already has.
+            return board;
+        }
+        if (existing < 0 && entries.length == size && ORDER.compare(entry, entries[size - 1]) >= 0) {
+            // Not good enough for a full board.
+            return board;
+        }
+
+        List<Entry> updated = new ArrayList<>(entries.length + 1);
+        for (int i = 0; i < entries.length; i++) {
+            if (i != existing) {
+                updated.add(entries[i]);
+            }
+        }
+        updated.add(entry);
+        updated.sort(ORDER);
+        if (updated.size() > size) {
+            updated.remove(updated.size() - 1);
+        }
+        return new Board(updated.toArray(new Entry[0]));
+    }
+
+    private Holder holder(int quizId) throws SQLException {
+        Holder holder = boards.get(quizId);
+        if (holder == null) {
+            // Load outside of the map, so that one slow load doesn't hold up other quizzes. If two threads load the
+            // same board at once, only the first one is kept. Scores are saved before they are added here, so the
+            // loaded board can never be missing a score that was added to the other one, and adding the same score
+            // twice is harmless since only each user's best score is kept.
+            Holder loaded;
+            try (Connection c = db.getConnection()) {
+                loaded = new Holder(load(c, quizId));
+            }
+            loads.incrementAndGet();
+            holder = boards.putIfAbsent(quizId, loaded);
+            if (holder == null) {
+                holder = loaded;
+                evictIfFull();
+            }
+        }
+        holder.lastUsed = System.nanoTime();
+        return holder;
+    }
+
+    private Board load(Connection c, int quizId) throws SQLException {
+        PreparedStatement s = c.prepareStatement(
+            "SELECT user_id, username, score, question_count, scored_at " +
+            "FROM score " +
+            "JOIN user ON score.user_id = user.id " +
+            "WHERE quiz_id = ? " +
+            "ORDER BY score DESC, scored_at " +
+            "LIMIT ?"
+        );
+        s.setInt(1, quizId);
+        s.setInt(2, size);
+        List<Entry> entries = new ArrayList<>();
+        try (ResultSet rows = s.executeQuery()) {
+            while (rows.next()) {
+                entries.add(entry(rows));
+            }
+        }
+        return entries.isEmpty() ? EMPTY : new Board(entries.toArray(new Entry[0]));
+    }
+
+    private static Entry entry(ResultSet rows) throws SQLException {
+        return new Entry(
+            rows.getInt("user_id"),
+            rows.getString("username"),
+            rows.getInt("score"),
+            rows.getInt("question_count"),
+            Instant.parse(rows.getString("scored_at")).toEpochMilli()
+        );
+    }
+
+    // When there are too many boards, drop the least recently used tenth of them in one go, so that the sorting is
+    // only done once in a while rather than for every new board. Only one thread does this at a time.
+    private void evictIfFull() {
+        if (boards.size() <= maxQuizzes || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            Map.Entry<Integer, Holder>[] all = boards.entrySet().toArray(new Map.Entry[0]);
+            long[] lastUsed = new long[all.length];
+            for (int i = 0; i < all.length; i++) {
+                lastUsed[i] = all[i].getValue().lastUsed;
+            }
+            Arrays.sort(lastUsed);
+            int target = maxQuizzes - maxQuizzes / 10;
+            int toRemove = all.length - target;
+            if (toRemove <= 0) {
+                return;
+            }
+            long cutoff = lastUsed[toRemove - 1];
+            for (Map.Entry<Integer, Holder> e : all) {
+                if (e.getValue().lastUsed <= cutoff && boards.remove(e.getKey(), e.getValue())) {
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+        finally {
+            evicting.set(false);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int quizCount() {
+        return boards.size();
+    }
+
+    int maxQuizzes() {
+        return maxQuizzes;
+    }
+
+    long loadCount() {
+        return loads.get();
+    }
+
+    long evictionCount() {
+        return evictions.get();
+    }
+
+    long updateCount() {
+        return updates.get();
+    }
+
+    long retryCount() {
+        return retries.get();
+    }
+}
@@ -0,0 +1,100 @@
+package se.plushogskolan;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sessions kept in memory only. They are lost when the server restarts.
+//
+// Every session gets the same idle timeout, counted from when it was last used, so the least recently used session is
+// also the one that expires first. That means an access-ordered map is also ordered by expiry, and expired sessions can
+// be cleared out by just looking at the head of the map, without ever going through all of them. The number of sessions
+// is limited too: when it is full, the session that would have expired soonest is thrown out to make room, so a flood
+// of logins can't make the server run out of memory.
+class MemorySessionStore implements SessionStore {
+    private final int maxSessions;
+    private final long idleMillis;
+    // Access-ordered, so iterating starts with the session that expires first.
+    private final LinkedHashMap<String, Session> sessions = new LinkedHashMap<>(64, 0.75f, true);
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    MemorySessionStore(int maxSessions, long idleMillis) {
+        this.maxSessions = maxSessions;
+        this.idleMillis = idleMillis;
+    }
+
+    @Override
+    public Session create(int userId, String username) {
+        long now = System.currentTimeMillis();
+        Session session = new Session(Session.newToken(), userId, username, now + idleMillis, now);
+        put(session);
+        created.incrementAndGet();
+        return session;
+    }
+
+    @Override
+    public synchronized Session get(String token) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (session.expiresAt < now) {
+            sessions.remove(token);
+            expired.incrementAndGet();
+            return null;
+        }
+        session.expiresAt = now + idleMillis;
+        return session;
+    }
+
+    // Add a session that was made somewhere else, e.g. read from the database.
+    synchronized void put(Session session) {
+        sessions.put(session.token, session);
+
+        long now = System.currentTimeMillis();
+        Iterator<Session> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            Session eldest = iterator.next();
+            if (eldest.expiresAt < now) {
+                expired.incrementAndGet();
+            }
+            else if (sessions.size() > maxSessions) {
+                evictions.incrementAndGet();
+            }
+            else {
+                break;
+            }
+            iterator.remove();
+        }
+    }
+
+    @Override
+    public synchronized void delete(String token) {
+        sessions.remove(token);
+    }
+
+    @Override
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    long createdCount() {
+        return created.get();
+    }
+
+    long expiredCount() {
+        return expired.get();
+    }
+
+    long evictionCount() {
+        return evictions.get();
+    }
+}
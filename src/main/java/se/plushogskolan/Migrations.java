@@ -0,0 +1,301 @@
+package se.plushogskolan;
+
+import org.sqlite.SQLiteConnection;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Brings the database schema up to date, without ever throwing away the data that is already there.
+//
+// Each change to the schema is a script in the migrations folder, named after its version number, e.g.
+// "004-answer.sql". The version the database is at is kept in its `user_version` header field, which is 0 for a new
+// database. At startup, the scripts after that version are run in order, all of them in one transaction together with
+// the new version number, so a database is either brought all the way up to date or not changed at all. Each script
+// is run whole by SQLite itself, so statements can contain anything (triggers, comments, blank lines), and it doesn't
+// matter which line endings the file has.
+//
+// Adding an index to a table that already has a lot of rows in it can take a while, and the server works without
+// them, just more slowly. So those are kept in indexes.sql instead, and built one at a time through the writer after
+// the server has started. Indexes that a migration needs itself, or that are on tables it creates, go in the migration.
+// Writes wait while an index is being built (see DatabaseWriter.executeSlow), so /health/ready doesn't report the
+// server ready until they are all done.
+//
+// To change the schema, add a new script with the next number. Never change a script that has been released, since
+// databases that have already run it won't run it again.
+class Migrations {
+    private static final Pattern SCRIPT_NAME = Pattern.compile("(\\d+)-.*\\.sql");
+    private static final Pattern INDEX_NAME = Pattern.compile("(?i)CREATE\\s+INDEX\\s+IF\\s+NOT\\s+EXISTS\\s+(\\w+)");
+
+    // One migration script.
+    static final class Script {
+        final int version;
+        final String name;
+        final String sql;
+
+        Script(int version, String name, String sql) {
+            this.version = version;
+            this.name = name;
+            this.sql = sql;
+        }
+    }
+
+    private final List<Script> scripts;
+    // The CREATE INDEX statements from indexes.sql.
+    private final List<String> indexes;
+
+    // Only written by the thread that runs the migrations or builds the indexes, and read by the health checks.
+    private volatile int version = -1;
+    private volatile int applied;
+    private volatile String buildingIndex;
+    private volatile int indexesBuilt;
+    private volatile boolean indexesDone;
+    private volatile String indexError;
+
+    Migrations(Path folder) throws IOException {
+        List<Script> scripts = new ArrayList<>();
+        try (Stream<Path> files = Files.list(folder)) {
+            for (Path file : files.sorted().collect(Collectors.toList())) {
+                Matcher name = SCRIPT_NAME.matcher(file.getFileName().toString());
+                if (name.matches()) {
+                    scripts.add(new Script(
+                        Integer.parseInt(name.group(1)), file.getFileName().toString(), Files.readString(file)
+                    ));
+                }
+            }
+        }
+        for (int i = 0; i < scripts.size(); i++) {
+            if (scripts.get(i).version != i + 1) {
+                throw new IOException(
+                    "Expected migration " + (i + 1) + " in " + folder + ", found " + scripts.get(i).name
+                );
+            }
+        }
+        this.scripts = scripts;
+
+        // One statement per index, each ending with a semicolon at the end of a line.
+        this.indexes = new ArrayList<>();
+        Path indexFile = folder.resolve("indexes.sql");
+        if (Files.exists(indexFile)) {
+            StringBuilder statement = new StringBuilder();
+            for (String line : Files.readAllLines(indexFile)) {
+                if (line.trim().startsWith("--")) {
+                    continue;
+                }
+                statement.append(line).append('\n');
+                if (line.trim().endsWith(";")) {
+                    indexes.add(statement.toString().trim());
+                    statement.setLength(0);
+                }
+            }
+        }
+    }
+
+    // Run the migrations the database hasn't had yet, in one transaction. Returns the number of migrations run.
+    int migrate(DatabaseWriter writer) throws SQLException {
+        return writer.executeInTransaction(this::migrate);
+    }
+
+    // The same, on a connection that is already in a transaction.
+    int migrate(Connection c) throws SQLException {
+        int current = currentVersion(c);
+        if (current > scripts.size()) {
+            throw new SQLException(
+                "The database is at version " + current + ", but this server only knows about versions up to " +
+                scripts.size() + ". Is it an older version of the server?"
+            );
+        }
+
+        int count = 0;
+        for (Script script : scripts.subList(current, scripts.size())) {
+            System.out.println("Migrating the database: " + script.name);
+            try {
+                c.unwrap(SQLiteConnection.class).getDatabase()._exec(script.sql);
+            }
+            catch (SQLException e) {
+                throw new SQLException("Migration " + script.name + " failed: " + e.getMessage(), e);
+            }
+            count += 1;
+        }
+        if (current != scripts.size() || count > 0) {
+            try (Statement s = c.createStatement()) {
+                // PRAGMA doesn't take parameters, but this is a number.
+                s.executeUpdate("PRAGMA user_version = " + scripts.size());
+            }
+        }
+        version = scripts.size();
+        applied = count;
+        return count;
+    }
+
+    // The version the database is at. Databases made before the migrations had a version of their own are 0 like new
+    // ones, so those are told apart by which tables and columns they have.
+    private static int currentVersion(Connection c) throws SQLException {
+        try (Statement s = c.createStatement(); ResultSet rows = s.executeQuery("PRAGMA user_version")) {
+            rows.next();
+            int version = rows.getInt(1);
+            if (version != 0) {
+                return version;
+            }
+        }
+
+        if (hasTable(c, "session")) {
+            return 6;
+        }
+        if (hasTable(c, "score")) {
+            return 5;
+        }
+        if (hasTable(c, "answer")) {
+            return 4;
+        }
+        if (hasTable(c, "quiz_search")) {
+            return 3;
+        }
+        if (hasColumn(c, "quiz", "question_count")) {
+            return 2;
+        }
+        if (hasTable(c, "user")) {
+            return 1;
+        }
+        return 0;
+    }
+
+    private static boolean hasTable(Connection c, String table) throws SQLException {
+        return has(c, "table", table);
+    }
+
+    private static boolean has(Connection c, String type, String name) throws SQLException {
+        try (PreparedStatement s = c.prepareStatement("SELECT 1 FROM sqlite_master WHERE type = ? AND name = ?")) {
+            s.setString(1, type);
+            s.setString(2, name);
+            try (ResultSet rows = s.executeQuery()) {
+                return rows.next();
+            }
+        }
+    }
+
+    private static boolean hasColumn(Connection c, String table, String column) throws SQLException {
+        try (Statement s = c.createStatement()) {
+            ResultSet rows = s.executeQuery("PRAGMA table_info(" + table + ")");
+            while (rows.next()) {
+                if (rows.getString("name").equals(column)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Build the indexes from indexes.sql that are missing, one at a time, each as its own write so that other writes
+    // get a turn in between. Creating an index that already exists does nothing, so this is quick when they all do.
+    // Reads carry on as usual while an index is being built, but writes wait until it is done.
+    CompletableFuture<Void> buildIndexesInBackground(DatabaseWriter writer) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                for (String index : indexes) {
+                    Matcher name = INDEX_NAME.matcher(index);
+                    buildingIndex = name.find() ? name.group(1) : index;
+                    long start = System.nanoTime();
+                    if (buildIndex(writer, buildingIndex, index)) {
+                        System.out.printf(
+                            "Built index %s in %.1f s%n", buildingIndex, (System.nanoTime() - start) / 1e9
+                        );
+                    }
+                    indexesBuilt += 1;
+                }
+            }
+            catch (SQLException e) {
+                // The server still works, just more slowly. It will try again at the next start.
+                indexError = buildingIndex + ": " + e.getMessage();
+                System.err.println("Could not build index " + indexError);
+            }
+            finally {
+                buildingIndex = null;
+                indexesDone = true;
+            }
+        }, runnable -> {
+            Thread thread = new Thread(runnable, "index-builder");
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    // Returns true if the index was missing and has been created now.
+    private static boolean buildIndex(DatabaseWriter writer, String name, String index) throws SQLException {
+        // The write queue may be full for a moment, so keep trying. Building an index is never urgent.
+        while (true) {
+            try {
+                if (writer.execute(c -> has(c, "index", name))) {
+                    return false;
+                }
+                return writer.executeSlow("building the index " + name, c -> {
+                    try (Statement s = c.createStatement()) {
+                        s.executeUpdate(index);
+                    }
+                    return true;
+                });
+            }
+            catch (DatabaseWriter.BusyException e) {
+                try {
+                    Thread.sleep(100);
+                }
+                catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while building indexes", interrupted);
+                }
+            }
+        }
+    }
+
+    // Build all the indexes straight away instead, e.g. when making a database outside the server for the benchmarks.
+    void createIndexes(Connection c) throws SQLException {
+        try (Statement s = c.createStatement()) {
+            for (String index : indexes) {
+                s.executeUpdate(index);
+            }
+        }
+    }
+
+    // The schema version of the database, once it has been migrated, or -1 before that.
+    int version() {
+        return version;
+    }
+
+    int appliedCount() {
+        return applied;
+    }
+
+    int indexCount() {
+        return indexes.size();
+    }
+
+    int indexesBuilt() {
+        return indexesBuilt;
+    }
+
+    // The index being built right now, or null.
+    String buildingIndex() {
+        return buildingIndex;
+    }
+
+    boolean indexesDone() {
+        return indexesDone;
+    }
+
+    // Why building the indexes failed, or null.
+    String indexError() {
+        return indexError;
+    }
+}
@@ -0,0 +1,107 @@
+package se.plushogskolan;
+
+import org.HdrHistogram.Histogram;
+
+// Builds a page of metrics in the Prometheus text format, e.g.
+//
+//     # HELP db_pool_active Connections currently borrowed from the pool.
+//     # TYPE db_pool_active gauge
+//     db_pool_active 3
+//
+// Labels are given as name/value pairs: `gauge("x", "...", 5, "route", "/play")` gives `x{route="/play"} 5`.
+final class Prometheus {
+    // The quantiles reported for each latency histogram.
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final StringBuilder out = new StringBuilder(16 * 1024);
+    private String family = null;
+
+    Prometheus gauge(String name, String help, double value, String... labels) {
+        return sample("gauge", name, help, value, labels);
+    }
+
+    Prometheus counter(String name, String help, double value, String... labels) {
+        return sample("counter", name, help, value, labels);
+    }
+
+    // A latency histogram as a Prometheus summary, in seconds: the quantiles, plus the total and the count.
+    Prometheus summary(String name, String help, LatencyHistogram latency, String... labels) {
+        header("summary", name, help);
+        Histogram histogram = latency.snapshot();
+        String[] withQuantile = new String[labels.length + 2];
+        System.arraycopy(labels, 0, withQuantile, 0, labels.length);
+        withQuantile[labels.length] = "quantile";
+        for (double quantile : QUANTILES) {
+            withQuantile[labels.length + 1] = Double.toString(quantile);
+            line(name, histogram.getValueAtPercentile(quantile * 100) / 1e6, withQuantile);
+        }
+        line(name + "_sum", latency.totalNanos() / 1e9, labels);
+        line(name + "_count", histogram.getTotalCount(), labels);
+        return this;
+    }
+
+    private Prometheus sample(String type, String name, String help, double value, String[] labels) {
+        header(type, name, help);
+        line(name, value, labels);
+        return this;
+    }
+
+    // The HELP and TYPE lines are only written once for each metric, before its first sample. All samples of a metric
+    // must be written one after another.
+    private void header(String type, String name, String help) {
+        if (!name.equals(family)) {
+            family = name;
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+    }
+
+    private void line(String name, double value, String[] labels) {
+        out.append(name);
+        if (labels.length > 0) {
+            out.append('{');
+            for (int i = 0; i < labels.length; i += 2) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(labels[i]).append("=\"");
+                escape(labels[i + 1]);
+                out.append('"');
+            }
+            out.append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        }
+        else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    // Label values may contain anything, but backslashes, quotes and line breaks must be escaped.
+    private void escape(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+}
@@ -0,0 +1,252 @@
+package se.plushogskolan;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.HdrHistogram.Histogram;
+
+import javax.sql.DataSource;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Timing for every SQL statement the server runs, grouped by the SQL text.
+//
+// Statements are wrapped in a TimedStatement that times the execute calls (executeQuery, executeUpdate, executeBatch
+// and so on). Since the connection pool caches its prepared statements, the wrapping and the lookup of the statement's
+// metrics only happen once per statement and connection, not once per query. Note that for queries the time covers
+// running the statement up to the first row; reading the rest of the rows happens later and is not included.
+//
+// Statements that take longer than the slow threshold are logged, along with the types of their parameters (but never
+// the values, which can be passwords or other private data). For slow statements the query plan is also looked up with
+// EXPLAIN QUERY PLAN, at most once per statement per explain interval, so that full table scans show up in the log. The
+// aggregates for every statement, including the latest plan, can be looked at while the server runs (see `writeJson`).
+//
+// The plan is looked up on a thread of its own, with a connection of its own, and logged along with the slow statement
+// when it is done. The thread that ran the statement, which may well be the writer, goes on without waiting for it.
+// Until there is a connection to explain with (see `explainWith`), slow statements are logged without their plan.
+class QueryMetrics {
+    // The metrics for one SQL statement.
+    static final class Statement {
+        final String sql;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder slow = new LongAdder();
+        final AtomicLong lastExplained = new AtomicLong(Long.MIN_VALUE);
+        // The most recent slow run, and the query plan as of the latest explain.
+        volatile String lastSlowParameters = null;
+        volatile long lastSlowAt = 0;
+        volatile List<String> plan = null;
+        volatile boolean fullScan = false;
+
+        Statement(String sql) {
+            this.sql = sql;
+        }
+    }
+
+    // Slow statements waiting to be explained. If more than this pile up, the rest are logged without their plan.
+    private static final int EXPLAIN_QUEUE_SIZE = 16;
+
+    private final long slowNanos;
+    private final long explainIntervalNanos;
+    private final ConcurrentHashMap<String, Statement> statements = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor explainer;
+    private volatile DataSource explainSource;
+    // Only used on the explainer thread. Opened when it is first needed, and again if it stops working.
+    private Connection explainConnection;
+
+    QueryMetrics(long slowMillis, long explainIntervalSeconds) {
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+        this.explainIntervalNanos = TimeUnit.SECONDS.toNanos(explainIntervalSeconds);
+        this.explainer = new ThreadPoolExecutor(
+            1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(EXPLAIN_QUEUE_SIZE), runnable -> {
+                Thread thread = new Thread(runnable, "query-explainer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+    }
+
+    // Where to get a connection for looking up query plans. A read-only one is enough.
+    void explainWith(DataSource source) {
+        this.explainSource = source;
+    }
+
+    Statement statement(String sql) {
+        return statements.computeIfAbsent(sql, Statement::new);
+    }
+
+    // Wrap a statement so that running it is timed.
+    TimedStatement timed(PreparedStatement statement, String sql) {
+        return new TimedStatement(statement, statement(sql), this, slowNanos);
+    }
+
+    // Wrap a connection so that all statements prepared on it are timed. This is for connections outside the pool,
+    // like the writer's.
+    Connection timed(Connection connection) {
+        return new TimedConnection(connection, this);
+    }
+
+    // Called by a TimedStatement that ran for longer than the slow threshold.
+    void slowStatement(Statement metrics, long elapsed, String parameters) {
+        metrics.slow.increment();
+        metrics.lastSlowParameters = parameters;
+        metrics.lastSlowAt = System.currentTimeMillis();
+
+        String log = "Slow query (" + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms): " + metrics.sql +
+            " [" + parameters + "]";
+
+        // Only one thread gets to explain each statement per interval.
+        long now = System.nanoTime();
+        long last = metrics.lastExplained.get();
+        boolean due = last == Long.MIN_VALUE || now - last >= explainIntervalNanos;
+        if (explainSource != null && due && metrics.lastExplained.compareAndSet(last, now)) {
+            try {
+                explainer.execute(() -> System.err.println(log + explainForLog(metrics)));
+                return;
+            }
+            catch (RejectedExecutionException e) {
+                // Too many to explain right now. Let the next slow run of this statement try again.
+                metrics.lastExplained.compareAndSet(now, last);
+            }
+        }
+        System.err.println(log);
+    }
+
+    // Explain a statement on the explainer thread, and return the plan as indented lines to add to the log.
+    private String explainForLog(Statement metrics) {
+        StringBuilder log = new StringBuilder();
+        try {
+            if (explainConnection == null) {
+                explainConnection = explainSource.getConnection();
+            }
+            explain(explainConnection, metrics);
+            for (String line : metrics.plan) {
+                log.append(System.lineSeparator()).append("    ").append(line);
+            }
+        }
+        catch (SQLException e) {
+            log.append(System.lineSeparator()).append("    (could not explain: ").append(e.getMessage()).append(")");
+            closeExplainConnection();
+        }
+        return log.toString();
+    }
+
+    private void closeExplainConnection() {
+        if (explainConnection != null) {
+            try {
+                explainConnection.close();
+            }
+            catch (SQLException e) {
+                // It is being thrown away anyway.
+            }
+            explainConnection = null;
+        }
+    }
+
+    // Look up the query plan of a statement. The parameters are left unbound, which SQLite treats as NULL; the plan
+    // depends on the indexes that can be used, not on the values.
+    private static void explain(Connection connection, Statement metrics) throws SQLException {
+        List<String> plan = new ArrayList<>();
+        boolean fullScan = false;
+        try (java.sql.Statement explain = connection.createStatement()) {
+            ResultSet rows = explain.executeQuery("EXPLAIN QUERY PLAN " + metrics.sql);
+            // Each row has an ID and the ID of its parent, which we use to indent the plan like a tree.
+            List<Integer> ids = new ArrayList<>();
+            List<Integer> depths = new ArrayList<>();
+            while (rows.next()) {
+                int id = rows.getInt("id");
+                int parent = rows.getInt("parent");
+                int depth = 0;
+                int parentIndex = ids.indexOf(parent);
+                if (parentIndex >= 0) {
+                    depth = depths.get(parentIndex) + 1;
+                }
+                ids.add(id);
+                depths.add(depth);
+
+                String detail = rows.getString("detail");
+                // A SCAN goes through a whole table, as opposed to a SEARCH which uses an index. Scanning a virtual
+                // table (like the full-text index) is how those are always queried, and scanning a subquery only goes
+                // through the rows the subquery gives, so those don't count.
+                if (detail.startsWith("SCAN ") && !detail.contains("VIRTUAL TABLE") && !detail.contains("SUBQUERY")) {
+                    fullScan = true;
+                }
+                plan.add("  ".repeat(depth) + detail);
+            }
+        }
+        metrics.plan = plan;
+        metrics.fullScan = fullScan;
+    }
+
+    void writeTo(Prometheus out) {
+        for (Statement statement : statements.values()) {
+            out.summary(
+                "db_statement_duration_seconds", "Time spent running each SQL statement.", statement.latency,
+                "sql", statement.sql
+            );
+        }
+        for (Statement statement : statements.values()) {
+            out.counter(
+                "db_statement_errors_total", "SQL statements that failed.", statement.errors.sum(), "sql", statement.sql
+            );
+        }
+        for (Statement statement : statements.values()) {
+            out.counter(
+                "db_statement_slow_total", "SQL statements slower than the slow query threshold.",
+                statement.slow.sum(), "sql", statement.sql
+            );
+        }
+    }
+
+    // Write the aggregates for every statement as JSON, the statements with the most total time first.
+    void writeJson(JsonGenerator json) throws IOException {
+        List<Statement> sorted = new ArrayList<>(statements.values());
+        sorted.sort(Comparator.comparingLong((Statement s) -> s.latency.totalNanos()).reversed());
+
+        json.writeStartObject();
+        json.writeNumberField("slow_threshold_ms", TimeUnit.NANOSECONDS.toMillis(slowNanos));
+        json.writeArrayFieldStart("statements");
+        for (Statement statement : sorted) {
+            Histogram histogram = statement.latency.snapshot();
+            json.writeStartObject();
+            json.writeStringField("sql", statement.sql);
+            json.writeNumberField("count", histogram.getTotalCount());
+            json.writeNumberField("errors", statement.errors.sum());
+            json.writeNumberField("slow", statement.slow.sum());
+            json.writeNumberField("total_ms", statement.latency.totalNanos() / 1e6);
+            json.writeNumberField("mean_ms", histogram.getMean() / 1e3);
+            json.writeNumberField("p50_ms", histogram.getValueAtPercentile(50) / 1e3);
+            json.writeNumberField("p99_ms", histogram.getValueAtPercentile(99) / 1e3);
+            json.writeNumberField("max_ms", histogram.getMaxValue() / 1e3);
+            if (statement.lastSlowAt != 0) {
+                json.writeStringField("last_slow_at", Instant.ofEpochMilli(statement.lastSlowAt).toString());
+                json.writeStringField("last_slow_parameters", statement.lastSlowParameters);
+            }
+            List<String> plan = statement.plan;
+            if (plan != null) {
+                json.writeBooleanField("full_scan", statement.fullScan);
+                json.writeArrayFieldStart("plan");
+                for (String line : plan) {
+                    json.writeString(line);
+                }
+                json.writeEndArray();
+            }
+            json.writeEndObject();
+        }
+        json.writeEndArray();
+        json.writeEndObject();
+    }
+}
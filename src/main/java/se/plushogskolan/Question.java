@@ -0,0 +1,27 @@
+package se.plushogskolan;
+
+// A single question in a quiz, with the same fields as the "question" table.
+final class Question {
+    final int number;
+    final String prompt;
+    final String option1;
+    final String option2;
+    final String option3;
+    final String option4;
+    final int correctOption;
+    final String imagePath;
+
+    Question(
+        int number, String prompt, String option1, String option2, String option3, String option4,
+        int correctOption, String imagePath
+    ) {
+        this.number = number;
+        this.prompt = prompt;
+        this.option1 = option1;
+        this.option2 = option2;
+        this.option3 = option3;
+        this.option4 = option4;
+        this.correctOption = correctOption;
+        this.imagePath = imagePath;
+    }
+}
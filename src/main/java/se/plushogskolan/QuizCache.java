@@ -0,0 +1,132 @@
+package se.plushogskolan;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A cache of the JSON for single quizzes, as served by /quiz/:quiz_id. Published quizzes practically never change, but
+// popular ones are fetched over and over again, so we keep the finished JSON bytes around instead of querying and
+// serializing the quiz each time.
+//
+// Each entry also remembers who owns the quiz and whether it is public, so the access check can be done without going
+// to the database, and the correct answers, which are not in the JSON but are needed to score answers. The cache is
+// limited by the total size of the JSON it holds rather than by the number of quizzes, since a quiz with 200 questions
+// takes a lot more room than one with 2. When it is full, the least recently used quizzes are thrown out first.
+class QuizCache {
+    // The cached data for one quiz.
+    static final class Entry {
+        final int quizId;
+        final int userId;
+        final boolean isPublic;
+        final byte[] json;
+        // The number of the correct option for each question, in order.
+        final byte[] answers;
+
+        Entry(int quizId, int userId, boolean isPublic, byte[] json, byte[] answers) {
+            this.quizId = quizId;
+            this.userId = userId;
+            this.isPublic = isPublic;
+            this.json = json;
+            this.answers = answers;
+        }
+
+        // Public quizzes can be seen by everyone, private ones only by their author.
+        boolean isVisibleTo(int userId) {
+            return isPublic || this.userId == userId;
+        }
+
+        int questionCount() {
+            return answers.length;
+        }
+
+        // The number of bytes this entry counts as in the cache.
+        int size() {
+            return json.length + answers.length;
+        }
+    }
+
+    private final long maxBytes;
+    private long bytes = 0;
+    // Access-ordered, so iterating starts with the least recently used entry.
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    QuizCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // Get a cached quiz, or null if it isn't cached.
+    synchronized Entry get(int quizId) {
+        Entry entry = entries.get(quizId);
+        if (entry == null) {
+            misses.incrementAndGet();
+        }
+        else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    synchronized void put(Entry entry) {
+        // A single quiz that is bigger than the whole cache is not worth keeping.
+        if (entry.size() > maxBytes) {
+            return;
+        }
+
+        Entry previous = entries.put(entry.quizId, entry);
+        if (previous != null) {
+            bytes -= previous.size();
+        }
+        bytes += entry.size();
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            bytes -= eldest.size();
+            evictions.incrementAndGet();
+        }
+    }
+
+    // Remove a quiz from the cache. This must be called whenever a quiz or its questions change.
+    synchronized void invalidate(int quizId) {
+        Entry removed = entries.remove(quizId);
+        if (removed != null) {
+            bytes -= removed.size();
+            invalidations.incrementAndGet();
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long sizeInBytes() {
+        return bytes;
+    }
+
+    long maxBytes() {
+        return maxBytes;
+    }
+
+    long hitCount() {
+        return hits.get();
+    }
+
+    long missCount() {
+        return misses.get();
+    }
+
+    long evictionCount() {
+        return evictions.get();
+    }
+
+    long invalidationCount() {
+        return invalidations.get();
+    }
+}
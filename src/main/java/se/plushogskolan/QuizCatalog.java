@@ -0,0 +1,347 @@
+package se.plushogskolan;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The facts about every quiz that the quiz list, the search results and the access checks need: its title, its
+// author, whether it is public and how many questions it has. They are all loaded into memory at startup, so that those
+// pages don't have to ask the database for them on every request.
+//
+// The quizzes are kept in list order (by title, then author, then ID) in plain arrays, one per field, with another
+// array that maps each quiz ID to its position. All of that is wrapped in an immutable Snapshot, so reading is just
+// reading a volatile field, and never waits for anything. Adding quizzes makes a new, bigger copy of the arrays with
+// the new quizzes merged in, and swaps it in. That is slow compared to a read, but quizzes are created far less often
+// than they are listed, and an import adds a whole chunk of them with a single copy.
+//
+// Quizzes are never changed or deleted after they have been created, so adding is all there is to keep up with. A
+// quiz created by another server on the same database never gets added here by this server, so when a quiz can't be
+// found in the catalog, find() looks for it in the database as well, and adds it if it is there.
+class QuizCatalog {
+    // A quiz to add.
+    static final class Quiz {
+        final int id;
+        final int userId;
+        final String title;
+        final String username;
+        final boolean isPublic;
+        final int questionCount;
+
+        Quiz(int id, int userId, String title, String username, boolean isPublic, int questionCount) {
+            this.id = id;
+            this.userId = userId;
+            this.title = title;
+            this.username = username;
+            this.isPublic = isPublic;
+            this.questionCount = questionCount;
+        }
+    }
+
+    // SQLite compares text by its UTF-8 bytes, which is the same as comparing by code point. String.compareTo compares
+    // UTF-16 units instead, which puts some characters outside the BMP in a different place, so use code points here
+    // to keep the list in the same order as the database would.
+    static final Comparator<String> TEXT_ORDER = (a, b) -> {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int x = a.codePointAt(i);
+            int y = b.codePointAt(j);
+            if (x != y) {
+                return Integer.compare(x, y);
+            }
+            i += Character.charCount(x);
+            j += Character.charCount(y);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    };
+
+    private static final Comparator<Quiz> LIST_ORDER = Comparator
+        .comparing((Quiz quiz) -> quiz.title, TEXT_ORDER)
+        .thenComparing(quiz -> quiz.username, TEXT_ORDER)
+        .thenComparingInt(quiz -> quiz.id);
+
+    // All the quizzes at one point in time. Never changed once made.
+    static final class Snapshot {
+        // One entry per quiz, in list order.
+        private final int[] ids;
+        private final int[] userIds;
+        private final String[] titles;
+        private final String[] usernames;
+        private final boolean[] isPublic;
+        private final int[] questionCounts;
+        // The position of each quiz ID in the arrays above, or -1.
+        private final int[] positions;
+        // Counts up by one with every change, starting from 0 when the catalog is loaded.
+        private final long version;
+
+        private Snapshot(
+            int[] ids, int[] userIds, String[] titles, String[] usernames, boolean[] isPublic, int[] questionCounts,
+            long version
+        ) {
+            this.ids = ids;
+            this.userIds = userIds;
+            this.titles = titles;
+            this.usernames = usernames;
+            this.isPublic = isPublic;
+            this.questionCounts = questionCounts;
+            this.version = version;
+
+            int maxId = 0;
+            for (int id : ids) {
+                maxId = Math.max(maxId, id);
+            }
+            this.positions = new int[maxId + 1];
+            Arrays.fill(positions, -1);
+            for (int i = 0; i < ids.length; i++) {
+                positions[ids[i]] = i;
+            }
+        }
+
+        int size() {
+            return ids.length;
+        }
+
+        // Anything made from two snapshots with the same version is the same, so this can be used to tell whether a
+        // page made from an earlier snapshot is still up to date, without making it again.
+        long version() {
+            return version;
+        }
+
+        // The position of a quiz, or -1 if there is no quiz with this ID.
+        int position(int quizId) {
+            return quizId > 0 && quizId < positions.length ? positions[quizId] : -1;
+        }
+
+        // Public quizzes can be seen by everyone, private ones only by their author.
+        boolean isVisibleTo(int position, int userId) {
+            return isPublic[position] || userIds[position] == userId;
+        }
+
+        // Find the quizzes the user can see with between minQuestions and maxQuestions questions, in list order,
+        // starting after the quiz with the ID afterId (or from the start if there is no such quiz). Returns the
+        // positions of at most `limit` quizzes.
+        int[] list(int userId, int minQuestions, int maxQuestions, int afterId, int limit) {
+            int[] found = new int[Math.min(limit, ids.length)];
+            int count = 0;
+            for (int i = position(afterId) + 1; i < ids.length && count < found.length; i++) {
+                if (isVisibleTo(i, userId) && questionCounts[i] >= minQuestions && questionCounts[i] <= maxQuestions) {
+                    found[count++] = i;
+                }
+            }
+            return count == found.length ? found : Arrays.copyOf(found, count);
+        }
+
+        int id(int position) {
+            return ids[position];
+        }
+
+        int userId(int position) {
+            return userIds[position];
+        }
+
+        String title(int position) {
+            return titles[position];
+        }
+
+        String username(int position) {
+            return usernames[position];
+        }
+
+        boolean isPublic(int position) {
+            return isPublic[position];
+        }
+
+        int questionCount(int position) {
+            return questionCounts[position];
+        }
+    }
+
+    private volatile Snapshot snapshot;
+    private final AtomicLong copies = new AtomicLong();
+    private final AtomicLong copyNanos = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private QuizCatalog(Snapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    private static final String SELECT_QUIZZES =
+        "SELECT quiz.id, quiz.user_id, title, username, public, question_count " +
+        "FROM quiz " +
+        "JOIN user ON quiz.user_id = user.id";
+
+    // Load every quiz. The question counts never need to be updated later, since a quiz gets all its questions in the
+    // same transaction it is created in.
+    static QuizCatalog load(Connection c) throws SQLException {
+        List<Quiz> quizzes = new ArrayList<>();
+        // Share one String for each author, instead of having one for each of their quizzes.
+        Map<Integer, String> authors = new HashMap<>();
+        try (
+            Statement s = c.createStatement();
+            ResultSet rows = s.executeQuery(SELECT_QUIZZES)
+        ) {
+            while (rows.next()) {
+                int userId = rows.getInt("user_id");
+                String username = authors.get(userId);
+                if (username == null) {
+                    username = rows.getString("username");
+                    authors.put(userId, username);
+                }
+                quizzes.add(new Quiz(
+                    rows.getInt("id"), userId, rows.getString("title"), username, rows.getBoolean("public"),
+                    rows.getInt("question_count")
+                ));
+            }
+        }
+        quizzes.sort(LIST_ORDER);
+
+        int n = quizzes.size();
+        int[] ids = new int[n];
+        int[] userIds = new int[n];
+        String[] titles = new String[n];
+        String[] usernames = new String[n];
+        boolean[] isPublic = new boolean[n];
+        int[] questionCounts = new int[n];
+        for (int i = 0; i < n; i++) {
+            Quiz quiz = quizzes.get(i);
+            ids[i] = quiz.id;
+            userIds[i] = quiz.userId;
+            titles[i] = quiz.title;
+            usernames[i] = quiz.username;
+            isPublic[i] = quiz.isPublic;
+            questionCounts[i] = quiz.questionCount;
+        }
+        return new QuizCatalog(new Snapshot(ids, userIds, titles, usernames, isPublic, questionCounts, 0));
+    }
+
+    // The current quizzes. Hold on to the snapshot for as long as a request needs it, so that everything it reads is
+    // from the same point in time.
+    Snapshot snapshot() {
+        return snapshot;
+    }
+
+    // A snapshot with the quiz in it, if there is such a quiz at all. If it isn't in the catalog it may have been
+    // created by another server, so it is looked up in the database and added. An ID with no quiz behind it is looked
+    // up every time it is asked for, but that is a single primary key lookup, which is all it cost before the catalog.
+    Snapshot find(Connection c, int quizId) throws SQLException {
+        Snapshot current = snapshot;
+        if (quizId <= 0 || current.position(quizId) >= 0) {
+            return current;
+        }
+
+        misses.incrementAndGet();
+        PreparedStatement s = c.prepareStatement(SELECT_QUIZZES + " WHERE quiz.id = ?");
+        s.setInt(1, quizId);
+        try (ResultSet rows = s.executeQuery()) {
+            if (!rows.next()) {
+                return current;
+            }
+            add(new Quiz(
+                quizId, rows.getInt("user_id"), rows.getString("title"), rows.getString("username"),
+                rows.getBoolean("public"), rows.getInt("question_count")
+            ));
+        }
+        return snapshot;
+    }
+
+    // Add newly created quizzes. Call this after they have been committed. Quizzes that are already in the catalog
+    // (because find() got to them first) are skipped.
+    void add(List<Quiz> added) {
+        if (added.isEmpty()) {
+            return;
+        }
+
+        synchronized (this) {
+            long start = System.nanoTime();
+            Snapshot old = snapshot;
+            List<Quiz> sorted = new ArrayList<>(added.size());
+            for (Quiz quiz : added) {
+                if (old.position(quiz.id) < 0) {
+                    sorted.add(quiz);
+                }
+            }
+            if (sorted.isEmpty()) {
+                return;
+            }
+            sorted.sort(LIST_ORDER);
+            int n = old.size() + sorted.size();
+            int[] ids = new int[n];
+            int[] userIds = new int[n];
+            String[] titles = new String[n];
+            String[] usernames = new String[n];
+            boolean[] isPublic = new boolean[n];
+            int[] questionCounts = new int[n];
+
+            // Merge the two sorted lists.
+            int i = 0;
+            int j = 0;
+            for (int k = 0; k < n; k++) {
+                boolean takeOld = j == sorted.size() || (i < old.size() && compare(old, i, sorted.get(j)) < 0);
+                if (takeOld) {
+                    ids[k] = old.ids[i];
+                    userIds[k] = old.userIds[i];
+                    titles[k] = old.titles[i];
+                    usernames[k] = old.usernames[i];
+                    isPublic[k] = old.isPublic[i];
+                    questionCounts[k] = old.questionCounts[i];
+                    i += 1;
+                }
+                else {
+                    Quiz quiz = sorted.get(j);
+                    ids[k] = quiz.id;
+                    userIds[k] = quiz.userId;
+                    titles[k] = quiz.title;
+                    usernames[k] = quiz.username;
+                    isPublic[k] = quiz.isPublic;
+                    questionCounts[k] = quiz.questionCount;
+                    j += 1;
+                }
+            }
+
+            snapshot = new Snapshot(ids, userIds, titles, usernames, isPublic, questionCounts, old.version + 1);
+            copies.incrementAndGet();
+            copyNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    void add(Quiz quiz) {
+        add(List.of(quiz));
+    }
+
+    private static int compare(Snapshot snapshot, int position, Quiz quiz) {
+        int result = TEXT_ORDER.compare(snapshot.titles[position], quiz.title);
+        if (result == 0) {
+            result = TEXT_ORDER.compare(snapshot.usernames[position], quiz.username);
+        }
+        if (result == 0) {
+            result = Integer.compare(snapshot.ids[position], quiz.id);
+        }
+        return result;
+    }
+
+    int size() {
+        return snapshot.size();
+    }
+
+    long copyCount() {
+        return copies.get();
+    }
+
+    long totalCopyNanos() {
+        return copyNanos.get();
+    }
+
+    // Lookups of quizzes that weren't in the catalog, whether or not they were then found in the database.
+    long missCount() {
+        return misses.get();
+    }
+}
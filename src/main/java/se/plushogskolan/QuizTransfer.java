@@ -0,0 +1,558 @@
+package se.plushogskolan;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bulk import and export of quizzes as NDJSON: one quiz per line, as a JSON object like
+//
+//     {"title": "Capitals", "public": true, "questions": [{"prompt": "What is the capital of Sweden?",
+//      "option_1": "Oslo", "option_2": "Stockholm", "option_3": "Paris", "option_4": "Tehran", "correct_option": 2,
+//      "image_path": "sweden.svg"}]}
+//
+// (but all on one line). The questions look the same as in /quiz/:quiz_id, plus the correct option. Exports also have
+// "id", "author" and "created", which imports ignore, so an export can be imported again as it is. The correct options
+// are only exported for the user's own quizzes, since for everyone else they are the answers; other people's quizzes
+// are exported without them, and can't be imported again.
+//
+// Neither direction ever holds more than a chunk of quizzes in memory, however big the file is. Imports read the
+// request one line at a time and save the quizzes in chunks, each in its own transaction on the writer, so a big
+// import doesn't hold up other writes for long. A line that isn't a valid quiz is skipped and reported (by line number)
+// instead of failing the whole import. Exports walk through the quizzes and their questions with a single query that
+// is read row by row, writing each quiz as soon as its last question has been read.
+class QuizTransfer {
+    // Longer lines are skipped without being read into memory.
+    private static final int MAX_LINE_BYTES = 256 * 1024;
+    private static final int MAX_QUESTIONS = 200;
+    private static final int MAX_TEXT_LENGTH = 1000;
+    // Only this many errors are listed in the result of an import, but all of them are counted.
+    private static final int MAX_REPORTED_ERRORS = 100;
+    // How long to keep trying when the writer's queue is full, before giving up on a chunk.
+    private static final long BUSY_RETRY_MILLIS = 100;
+    private static final int BUSY_RETRIES = 100;
+    // The text fields of a question, in the order they are kept in while it is being read.
+    private static final List<String> QUESTION_TEXT_FIELDS = List.of(
+        "prompt", "option_1", "option_2", "option_3", "option_4", "image_path"
+    );
+
+    // Thrown when another import is already running.
+    static class ImportRunningException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ImportRunningException(String message) {
+            super(message);
+        }
+    }
+
+    // A quiz read from an import, with the line it came from.
+    private static final class ImportedQuiz {
+        final long line;
+        final String title;
+        final boolean isPublic;
+        final List<Question> questions;
+
+        ImportedQuiz(long line, String title, boolean isPublic, List<Question> questions) {
+            this.line = line;
+            this.title = title;
+            this.isPublic = isPublic;
+            this.questions = questions;
+        }
+    }
+
+    // Thrown for a line that isn't a valid quiz.
+    private static class InvalidRecordException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        InvalidRecordException(String message) {
+            super(message);
+        }
+    }
+
+    private final DatabaseWriter writer;
+    private final ConnectionPool db;
+    private final FlagAssets flags;
+    private final QuizCache quizCache;
+    private final QuizCatalog catalog;
+    private final int chunkSize;
+    private final JsonFactory json = new JsonFactory();
+    // Imports go through the single writer anyway, so running two at once would only make both slower.
+    private final Semaphore importing = new Semaphore(1);
+
+    // Metrics.
+    private final AtomicLong linesRead = new AtomicLong();
+    private final AtomicLong quizzesImported = new AtomicLong();
+    private final AtomicLong recordsFailed = new AtomicLong();
+    private final AtomicLong chunksWritten = new AtomicLong();
+    private final AtomicLong quizzesExported = new AtomicLong();
+
+    QuizTransfer(
+        DatabaseWriter writer, ConnectionPool db, FlagAssets flags, QuizCache quizCache, QuizCatalog catalog,
+        int chunkSize
+    ) {
+        this.writer = writer;
+        this.db = db;
+        this.flags = flags;
+        this.quizCache = quizCache;
+        this.catalog = catalog;
+        this.chunkSize = chunkSize;
+    }
+
+    // Import quizzes from NDJSON, owned by the given user, and write a summary as JSON:
+    //
+    //     {"lines": 1002, "imported": 1000, "failed": 2, "errors": [{"line": 17, "error": "..."}, ...]}
+    //
+    // Throws an ImportRunningException if another import is running.
+    void importQuizzes(InputStream in, int userId, String username, OutputStream out) throws IOException {
+        if (!importing.tryAcquire()) {
+            throw new ImportRunningException("Another import is already running, please try again when it has finished.");
+        }
+        try (JsonGenerator result = json.createGenerator(out)) {
+            result.writeStartObject();
+            result.writeArrayFieldStart("errors");
+            long[] counts = runImport(in, userId, username, result);
+            result.writeEndArray();
+            result.writeNumberField("lines", counts[0]);
+            result.writeNumberField("imported", counts[1]);
+            result.writeNumberField("failed", counts[2]);
+            result.writeEndObject();
+        }
+        finally {
+            importing.release();
+        }
+    }
+
+    // Returns the number of lines, imported quizzes and failed records.
+    private long[] runImport(InputStream in, int userId, String username, JsonGenerator result) throws IOException {
+        LineReader lines = new LineReader(in, MAX_LINE_BYTES);
+        List<ImportedQuiz> chunk = new ArrayList<>(chunkSize);
+        long lineNumber = 0;
+        long imported = 0;
+        long[] failed = new long[] { 0 };
+
+        while (lines.next()) {
+            lineNumber += 1;
+            linesRead.incrementAndGet();
+            if (lines.isBlank()) {
+                continue;
+            }
+            try {
+                if (lines.isTooLong()) {
+                    throw new InvalidRecordException("The line is longer than " + MAX_LINE_BYTES + " bytes.");
+                }
+                chunk.add(parseQuiz(lineNumber, lines));
+            }
+            catch (InvalidRecordException e) {
+                reportError(result, failed, lineNumber, e.getMessage());
+                continue;
+            }
+
+            if (chunk.size() == chunkSize) {
+                imported += saveChunk(chunk, userId, username, result, failed);
+                chunk.clear();
+            }
+        }
+        imported += saveChunk(chunk, userId, username, result, failed);
+        return new long[] { lineNumber, imported, failed[0] };
+    }
+
+    private void reportError(JsonGenerator result, long[] failed, long line, String error) throws IOException {
+        failed[0] += 1;
+        recordsFailed.incrementAndGet();
+        if (failed[0] <= MAX_REPORTED_ERRORS) {
+            result.writeStartObject();
+            result.writeNumberField("line", line);
+            result.writeStringField("error", error);
+            result.writeEndObject();
+        }
+    }
+
+    private ImportedQuiz parseQuiz(long line, LineReader lines) throws IOException, InvalidRecordException {
+        try (JsonParser parser = json.createParser(lines.buffer(), 0, lines.length())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new InvalidRecordException("Each line must be a JSON object.");
+            }
+            String title = null;
+            boolean isPublic = false;
+            List<Question> questions = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (field.equals("title")) {
+                    title = text(parser, "title");
+                }
+                else if (field.equals("public")) {
+                    if (value != JsonToken.VALUE_TRUE && value != JsonToken.VALUE_FALSE) {
+                        throw new InvalidRecordException("\"public\" must be true or false.");
+                    }
+                    isPublic = parser.getBooleanValue();
+                }
+                else if (field.equals("questions")) {
+                    questions = parseQuestions(parser);
+                }
+                else {
+                    // Fields we don't know about, like those added by exports, are ignored.
+                    parser.skipChildren();
+                }
+            }
+            if (parser.nextToken() != null) {
+                throw new InvalidRecordException("Each line must contain a single JSON object.");
+            }
+
+            if (title == null || title.isBlank()) {
+                throw new InvalidRecordException("The quiz has no title.");
+            }
+            if (questions == null || questions.isEmpty()) {
+                throw new InvalidRecordException("The quiz has no questions.");
+            }
+            return new ImportedQuiz(line, title, isPublic, questions);
+        }
+        catch (JsonParseException e) {
+            throw new InvalidRecordException("Not valid JSON: " + e.getOriginalMessage());
+        }
+    }
+
+    private List<Question> parseQuestions(JsonParser parser) throws IOException, InvalidRecordException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            throw new InvalidRecordException("\"questions\" must be an array.");
+        }
+        List<Question> questions = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.currentToken() != JsonToken.START_OBJECT) {
+                throw new InvalidRecordException("Each question must be a JSON object.");
+            }
+            int number = questions.size() + 1;
+            if (number > MAX_QUESTIONS) {
+                throw new InvalidRecordException("A quiz can have at most " + MAX_QUESTIONS + " questions.");
+            }
+
+            String[] texts = new String[QUESTION_TEXT_FIELDS.size()];
+            int correctOption = 0;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                int index = QUESTION_TEXT_FIELDS.indexOf(field);
+                if (index >= 0) {
+                    texts[index] = text(parser, "Question " + number + " \"" + field + "\"");
+                }
+                else if (field.equals("correct_option") && parser.currentToken() == JsonToken.VALUE_NUMBER_INT) {
+                    correctOption = parser.getIntValue();
+                }
+                else {
+                    parser.skipChildren();
+                }
+            }
+
+            for (int i = 0; i < 5; i++) {
+                if (texts[i] == null || texts[i].isBlank()) {
+                    throw new InvalidRecordException("Question " + number + " needs a prompt and four options.");
+                }
+            }
+            if (correctOption < 1 || correctOption > 4) {
+                throw new InvalidRecordException("Question " + number + " needs a correct_option from 1 to 4.");
+            }
+            if (flags.get(texts[5]) == null) {
+                throw new InvalidRecordException("Question " + number + " has no flag called \"" + texts[5] + "\".");
+            }
+            questions.add(
+                new Question(number, texts[0], texts[1], texts[2], texts[3], texts[4], correctOption, texts[5])
+            );
+        }
+        return questions;
+    }
+
+    private static String text(JsonParser parser, String what) throws IOException, InvalidRecordException {
+        if (parser.currentToken() != JsonToken.VALUE_STRING) {
+            throw new InvalidRecordException(what + " must be a string.");
+        }
+        String text = parser.getText();
+        if (text.length() > MAX_TEXT_LENGTH) {
+            throw new InvalidRecordException(what + " is longer than " + MAX_TEXT_LENGTH + " characters.");
+        }
+        return text;
+    }
+
+    // Save a chunk of quizzes in one transaction. If it fails, every quiz in it is reported as failed. Returns the
+    // number of quizzes saved.
+    private int saveChunk(List<ImportedQuiz> chunk, int userId, String username, JsonGenerator result, long[] failed)
+        throws IOException
+    {
+        if (chunk.isEmpty()) {
+            return 0;
+        }
+
+        List<Integer> quizIds;
+        try {
+            quizIds = saveWhenNotBusy(chunk, userId);
+        }
+        catch (SQLException e) {
+            for (ImportedQuiz quiz : chunk) {
+                reportError(result, failed, quiz.line, "Could not be saved: " + e.getMessage());
+            }
+            return 0;
+        }
+
+        // Add the whole chunk to the catalog at once, so that it is only copied once per chunk.
+        List<QuizCatalog.Quiz> added = new ArrayList<>(chunk.size());
+        for (int i = 0; i < chunk.size(); i++) {
+            ImportedQuiz quiz = chunk.get(i);
+            int quizId = quizIds.get(i);
+            quizCache.invalidate(quizId);
+            added.add(new QuizCatalog.Quiz(
+                quizId, userId, quiz.title, username, quiz.isPublic, quiz.questions.size()
+            ));
+        }
+        catalog.add(added);
+        chunksWritten.incrementAndGet();
+        quizzesImported.addAndGet(chunk.size());
+        return chunk.size();
+    }
+
+    // An import is a client waiting for a large upload to finish anyway, so instead of giving up as soon as the
+    // writer's queue is full, wait a little and try again.
+    private List<Integer> saveWhenNotBusy(List<ImportedQuiz> chunk, int userId) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return writer.executeInTransaction(c -> insert(c, chunk, userId));
+            }
+            catch (DatabaseWriter.BusyException e) {
+                if (attempt == BUSY_RETRIES) {
+                    throw e;
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(BUSY_RETRY_MILLIS);
+                }
+                catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // The same inserts as when creating a quiz with the form, but with each statement prepared once per chunk.
+    private static List<Integer> insert(Connection c, List<ImportedQuiz> chunk, int userId) throws SQLException {
+        try (
+            PreparedStatement quizStatement = c.prepareStatement(
+                "INSERT INTO quiz (user_id, title, datetime, public) VALUES (?, ?, ?, ?)",
+                Statement.RETURN_GENERATED_KEYS
+            );
+            PreparedStatement questionStatement = c.prepareStatement(
+                "INSERT INTO question " +
+                "(quiz_id, number, prompt, option_1, option_2, option_3, option_4, correct_option, image_path) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)"
+            );
+            PreparedStatement searchStatement = c.prepareStatement(
+                "INSERT INTO quiz_search (rowid, title, questions) VALUES (?, ?, ?)"
+            )
+        ) {
+            List<Integer> quizIds = new ArrayList<>(chunk.size());
+            String now = LocalDateTime.now().toString();
+            for (ImportedQuiz quiz : chunk) {
+                quizStatement.setInt(1, userId);
+                quizStatement.setString(2, quiz.title);
+                quizStatement.setString(3, now);
+                quizStatement.setBoolean(4, quiz.isPublic);
+                quizStatement.executeUpdate();
+                int quizId;
+                try (ResultSet keys = quizStatement.getGeneratedKeys()) {
+                    keys.next();
+                    quizId = keys.getInt(1);
+                }
+                quizIds.add(quizId);
+
+                for (Question question : quiz.questions) {
+                    questionStatement.setInt(1, quizId);
+                    questionStatement.setInt(2, question.number);
+                    questionStatement.setString(3, question.prompt);
+                    questionStatement.setString(4, question.option1);
+                    questionStatement.setString(5, question.option2);
+                    questionStatement.setString(6, question.option3);
+                    questionStatement.setString(7, question.option4);
+                    questionStatement.setInt(8, question.correctOption);
+                    questionStatement.setString(9, question.imagePath);
+                    questionStatement.addBatch();
+                }
+
+                searchStatement.setInt(1, quizId);
+                searchStatement.setString(2, quiz.title);
+                searchStatement.setString(3, AssignmentTwoServer.searchText(quiz.questions));
+                searchStatement.addBatch();
+            }
+            questionStatement.executeBatch();
+            searchStatement.executeBatch();
+            return quizIds;
+        }
+    }
+
+    // Write every quiz the user can see (or only their own) as NDJSON, in ID order.
+    void exportQuizzes(int userId, boolean onlyOwn, OutputStream out) throws SQLException, IOException {
+        try (Connection c = db.getConnection(); JsonGenerator generator = json.createGenerator(out)) {
+            // One row per question, with the quiz repeated on each. The quizzes are read in rowid order and their
+            // questions through the (quiz_id, number) index, so SQLite never has to sort anything or hold the result,
+            // and we only ever need the current row. The unary pluses keep SQLite from using the indexes on user_id
+            // and public instead: an export reads most of the table anyway, and with them the rows would come out in
+            // the wrong order and have to be sorted in a temporary B-tree first.
+            PreparedStatement s = c.prepareStatement(
+                "SELECT quiz.id, quiz.user_id, quiz.title, quiz.public, quiz.datetime, username, " +
+                "prompt, option_1, option_2, option_3, option_4, correct_option, image_path " +
+                "FROM quiz " +
+                "JOIN user ON quiz.user_id = user.id " +
+                "JOIN question ON question.quiz_id = quiz.id " +
+                "WHERE (+quiz.user_id = ? OR (+public = TRUE AND ? = FALSE)) " +
+                "ORDER BY quiz.id, question.number"
+            );
+            s.setInt(1, userId);
+            s.setBoolean(2, onlyOwn);
+
+            int currentQuizId = 0;
+            boolean isOwn = false;
+            try (ResultSet rows = s.executeQuery()) {
+                while (rows.next()) {
+                    int quizId = rows.getInt("id");
+                    if (quizId != currentQuizId) {
+                        if (currentQuizId != 0) {
+                            endQuiz(generator);
+                        }
+                        currentQuizId = quizId;
+                        isOwn = rows.getInt("user_id") == userId;
+                        generator.writeStartObject();
+                        generator.writeNumberField("id", quizId);
+                        generator.writeStringField("title", rows.getString("title"));
+                        generator.writeBooleanField("public", rows.getBoolean("public"));
+                        generator.writeStringField("author", rows.getString("username"));
+                        generator.writeStringField("created", rows.getString("datetime"));
+                        generator.writeArrayFieldStart("questions");
+                    }
+                    generator.writeStartObject();
+                    generator.writeStringField("prompt", rows.getString("prompt"));
+                    generator.writeStringField("option_1", rows.getString("option_1"));
+                    generator.writeStringField("option_2", rows.getString("option_2"));
+                    generator.writeStringField("option_3", rows.getString("option_3"));
+                    generator.writeStringField("option_4", rows.getString("option_4"));
+                    if (isOwn) {
+                        generator.writeNumberField("correct_option", rows.getInt("correct_option"));
+                    }
+                    generator.writeStringField("image_path", rows.getString("image_path"));
+                    generator.writeEndObject();
+                }
+            }
+            if (currentQuizId != 0) {
+                endQuiz(generator);
+            }
+        }
+    }
+
+    private void endQuiz(JsonGenerator generator) throws IOException {
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+        quizzesExported.incrementAndGet();
+    }
+
+    // Reads a stream one line at a time into a reusable buffer. Lines longer than the buffer are skipped to their end
+    // rather than read, and marked as too long.
+    private static final class LineReader {
+        private final InputStream in;
+        private final byte[] line;
+        private final byte[] readBuffer = new byte[8192];
+        private int readPosition = 0;
+        private int readLimit = 0;
+        private int length = 0;
+        private boolean tooLong = false;
+
+        LineReader(InputStream in, int maxLength) {
+            this.in = in;
+            this.line = new byte[maxLength];
+        }
+
+        // Read the next line. Returns false at the end of the stream.
+        boolean next() throws IOException {
+            length = 0;
+            tooLong = false;
+            boolean readAnything = false;
+            while (true) {
+                if (readPosition == readLimit) {
+                    readLimit = in.read(readBuffer);
+                    readPosition = 0;
+                    if (readLimit <= 0) {
+                        readLimit = 0;
+                        return readAnything;
+                    }
+                }
+                byte b = readBuffer[readPosition++];
+                readAnything = true;
+                if (b == '\n') {
+                    return true;
+                }
+                if (length < line.length) {
+                    line[length++] = b;
+                }
+                else {
+                    tooLong = true;
+                }
+            }
+        }
+
+        byte[] buffer() {
+            return line;
+        }
+
+        int length() {
+            return length;
+        }
+
+        boolean isTooLong() {
+            return tooLong;
+        }
+
+        boolean isBlank() {
+            for (int i = 0; i < length; i++) {
+                if (line[i] != ' ' && line[i] != '\t' && line[i] != '\r') {
+                    return false;
+                }
+            }
+            return !tooLong;
+        }
+    }
+
+    long linesReadCount() {
+        return linesRead.get();
+    }
+
+    long importedCount() {
+        return quizzesImported.get();
+    }
+
+    long failedCount() {
+        return recordsFailed.get();
+    }
+
+    long chunkCount() {
+        return chunksWritten.get();
+    }
+
+    long exportedCount() {
+        return quizzesExported.get();
+    }
+
+    boolean isImporting() {
+        return importing.availablePermits() == 0;
+    }
+}
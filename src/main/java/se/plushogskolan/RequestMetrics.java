@@ -0,0 +1,131 @@
+package se.plushogskolan;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.HttpResponseException;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latency, error counts and the number of requests in progress for each route.
+//
+// Each route's handler is wrapped when it is registered, so the route it belongs to is known up front and recording a
+// request is just a few counter updates and a histogram record, without any lookups or allocation.
+class RequestMetrics {
+    // The metrics for one route, e.g. GET /play/:quiz_id.
+    static final class Route {
+        final String method;
+        final String path;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder notModified = new LongAdder();
+        final LongAdder clientErrors = new LongAdder();
+        final LongAdder serverErrors = new LongAdder();
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        Route(String method, String path) {
+            this.method = method;
+            this.path = path;
+        }
+    }
+
+    private final List<Route> routes = new CopyOnWriteArrayList<>();
+
+    // Wrap a handler so that its requests are measured.
+    Handler timed(String method, String path, Handler handler) {
+        Route route = new Route(method, path);
+        routes.add(route);
+        return context -> {
+            long start = System.nanoTime();
+            route.inFlight.incrementAndGet();
+            boolean finished = true;
+            try {
+                handler.handle(context);
+                // A handler that was handed over to another thread (see AsyncHandlers) is only finished when its future
+                // is, so it is measured from there instead.
+                CompletableFuture<?> future = context.resultFuture();
+                if (future != null) {
+                    finished = false;
+                    future.whenComplete((result, e) -> {
+                        if (e == null) {
+                            count(route, context.status());
+                        }
+                        else {
+                            route.serverErrors.increment();
+                        }
+                        finish(route, start);
+                    });
+                }
+                else {
+                    count(route, context.status());
+                }
+            }
+            catch (HttpResponseException e) {
+                count(route, e.getStatus());
+                throw e;
+            }
+            catch (Exception e) {
+                // Exceptions are either turned into a 503 by one of the exception handlers or into a 500 by Javalin.
+                route.serverErrors.increment();
+                throw e;
+            }
+            finally {
+                if (finished) {
+                    finish(route, start);
+                }
+            }
+        };
+    }
+
+    private static void finish(Route route, long start) {
+        route.inFlight.decrementAndGet();
+        route.latency.record(System.nanoTime() - start);
+    }
+
+    private static void count(Route route, int status) {
+        if (status >= 500) {
+            route.serverErrors.increment();
+        }
+        else if (status >= 400) {
+            route.clientErrors.increment();
+        }
+        else if (status == 304) {
+            route.notModified.increment();
+        }
+    }
+
+    void writeTo(Prometheus out) {
+        for (Route route : routes) {
+            out.summary(
+                "http_request_duration_seconds", "Time spent handling requests.", route.latency,
+                "method", route.method, "route", route.path
+            );
+        }
+        for (Route route : routes) {
+            out.counter(
+                "http_request_not_modified_total", "Requests answered with a 304, because the client had the page.",
+                route.notModified.sum(), "method", route.method, "route", route.path
+            );
+        }
+        for (Route route : routes) {
+            out.counter(
+                "http_request_client_errors_total", "Requests answered with a 4xx status.",
+                route.clientErrors.sum(), "method", route.method, "route", route.path
+            );
+        }
+        for (Route route : routes) {
+            out.counter(
+                "http_request_server_errors_total", "Requests answered with a 5xx status or failed with an exception.",
+                route.serverErrors.sum(), "method", route.method, "route", route.path
+            );
+        }
+        for (Route route : routes) {
+            out.gauge(
+                "http_requests_in_flight", "Requests being handled right now.",
+                route.inFlight.get(), "method", route.method, "route", route.path
+            );
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package se.plushogskolan;
+
+import io.javalin.http.Context;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Gzips the pages and the JSON that are made for each request, for clients that accept it.
+//
+// The flags and the static files are compressed once when they are loaded (see FlagAssets and StaticAssets), but a
+// page like /play is different for every user and every filter, so it has to be compressed as it is sent. Setting up
+// a Deflater allocates a fair amount of native memory (which GZIPOutputStream does again for every stream), so the
+// Deflaters, with their output buffers, are kept in a pool and reused instead. The gzip header and trailer are simple
+// enough to write by hand around the raw deflate data.
+//
+// Compressing a tiny response costs more than it saves, since the header and trailer alone are 18 bytes, so nothing
+// smaller than `minBytes` is compressed. A page is written in pieces, so its output is held back until it has either
+// grown past that size, when it starts being compressed, or ended, when it is sent as it is.
+//
+// As with the static files, there is no Brotli: the JDK has no Brotli encoder, and it isn't worth a native dependency.
+class ResponseCompression {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final byte[] GZIP_HEADER = {
+        // Magic number, deflate, no flags, no modification time, no extra flags, unknown OS.
+        0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    // A Deflater with everything else needed to write one gzip stream.
+    private static final class Compressor {
+        final Deflater deflater;
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        Compressor(int level) {
+            // No zlib wrapper, since gzip has its own header and trailer.
+            this.deflater = new Deflater(level, true);
+        }
+    }
+
+    private final int minBytes;
+    private final int level;
+    private final ArrayBlockingQueue<Compressor> pool;
+
+    // Metrics.
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong uncompressed = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+
+    ResponseCompression(int minBytes, int level, int poolSize) {
+        this.minBytes = minBytes;
+        this.level = level;
+        this.pool = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    // The stream to write a response body to. If the client accepts gzip, the body is compressed once it grows past
+    // minBytes. Closing the stream finishes the body, but leaves the response itself open.
+    OutputStream output(Context context) throws IOException {
+        context.header("Vary", "Accept-Encoding");
+        return new BodyOutput(context, context.res.getOutputStream(), HttpCaching.acceptsGzip(context));
+    }
+
+    // Send a response body that is already complete, compressed if the client accepts it and it is big enough.
+    void send(Context context, byte[] body) {
+        context.header("Vary", "Accept-Encoding");
+        if (body.length < minBytes || !HttpCaching.acceptsGzip(context)) {
+            uncompressed.incrementAndGet();
+            context.result(body);
+            return;
+        }
+
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream(body.length / 4 + 64);
+        Compressor compressor = borrow();
+        try {
+            gzipped.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            compressor.crc.update(body, 0, body.length);
+            compressor.deflater.setInput(body, 0, body.length);
+            compressor.deflater.finish();
+            while (!compressor.deflater.finished()) {
+                int length = compressor.deflater.deflate(compressor.buffer);
+                gzipped.write(compressor.buffer, 0, length);
+            }
+            writeTrailer(gzipped, compressor, body.length);
+        }
+        finally {
+            giveBack(compressor);
+        }
+
+        context.header("Content-Encoding", "gzip");
+        context.result(gzipped.toByteArray());
+        count(body.length, gzipped.size());
+    }
+
+    // Writes the body gzipped once it is at least minBytes long, and as it is if it ends before that or the client
+    // doesn't accept gzip.
+    private final class BodyOutput extends OutputStream {
+        private final Context context;
+        private final OutputStream out;
+        private final boolean gzip;
+        // The start of the body, held back until there is enough of it to decide. Only made if it is needed.
+        private byte[] pending;
+        private int pendingLength;
+        // Null until compressing has started.
+        private Compressor compressor;
+        // Bytes written to the stream, and bytes sent on after compressing them.
+        private long length;
+        private long sent;
+        private boolean closed;
+
+        BodyOutput(Context context, OutputStream out, boolean gzip) {
+            this.context = context;
+            this.out = out;
+            this.gzip = gzip;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) throws IOException {
+            if (!gzip) {
+                out.write(bytes, offset, count);
+                return;
+            }
+            if (compressor == null) {
+                if (pendingLength + count < minBytes) {
+                    if (pending == null) {
+                        pending = new byte[minBytes];
+                    }
+                    System.arraycopy(bytes, offset, pending, pendingLength, count);
+                    pendingLength += count;
+                    return;
+                }
+                start();
+            }
+            deflate(bytes, offset, count);
+        }
+
+        // Big enough: switch to gzip, and compress what was held back.
+        private void start() throws IOException {
+            context.header("Content-Encoding", "gzip");
+            compressor = borrow();
+            out.write(GZIP_HEADER);
+            sent += GZIP_HEADER.length;
+            if (pendingLength > 0) {
+                deflate(pending, 0, pendingLength);
+            }
+            pending = null;
+        }
+
+        private void deflate(byte[] bytes, int offset, int count) throws IOException {
+            compressor.crc.update(bytes, offset, count);
+            compressor.deflater.setInput(bytes, offset, count);
+            while (!compressor.deflater.needsInput()) {
+                int written = compressor.deflater.deflate(compressor.buffer);
+                out.write(compressor.buffer, 0, written);
+                sent += written;
+            }
+            length += count;
+        }
+
+        // Only flushes the underlying stream. Flushing the Deflater as well would make it compress worse, and the pages
+        // are only flushed once, when they are done.
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            if (!gzip) {
+                uncompressed.incrementAndGet();
+                out.flush();
+                return;
+            }
+            if (compressor == null) {
+                // Too small to be worth compressing, and now the length is known.
+                uncompressed.incrementAndGet();
+                context.res.setContentLength(pendingLength);
+                if (pendingLength > 0) {
+                    out.write(pending, 0, pendingLength);
+                }
+                out.flush();
+                return;
+            }
+
+            try {
+                compressor.deflater.finish();
+                while (!compressor.deflater.finished()) {
+                    int written = compressor.deflater.deflate(compressor.buffer);
+                    out.write(compressor.buffer, 0, written);
+                    sent += written;
+                }
+                ByteArrayOutputStream trailer = new ByteArrayOutputStream(8);
+                writeTrailer(trailer, compressor, length);
+                trailer.writeTo(out);
+                sent += trailer.size();
+                out.flush();
+            }
+            finally {
+                giveBack(compressor);
+            }
+            count(length, sent);
+        }
+    }
+
+    // The CRC-32 and the length (modulo 2^32) of the uncompressed data, both little-endian.
+    private static void writeTrailer(ByteArrayOutputStream out, Compressor compressor, long length) {
+        long crc = compressor.crc.getValue();
+        for (int i = 0; i < 4; i++) {
+            out.write((int) (crc >> (8 * i)));
+        }
+        for (int i = 0; i < 4; i++) {
+            out.write((int) (length >> (8 * i)));
+        }
+    }
+
+    // Take a Compressor from the pool, or make a new one if they are all in use.
+    private Compressor borrow() {
+        Compressor compressor = pool.poll();
+        if (compressor == null) {
+            created.incrementAndGet();
+            compressor = new Compressor(level);
+        }
+        return compressor;
+    }
+
+    // Put a Compressor back for the next response. If the pool is already full, its native memory is freed now
+    // instead of whenever it is garbage collected. A response that fails halfway never gives its Compressor back, but
+    // the pool just makes a new one.
+    private void giveBack(Compressor compressor) {
+        compressor.deflater.reset();
+        compressor.crc.reset();
+        if (!pool.offer(compressor)) {
+            compressor.deflater.end();
+        }
+    }
+
+    private void count(long in, long out) {
+        compressed.incrementAndGet();
+        bytesIn.addAndGet(in);
+        bytesOut.addAndGet(out);
+    }
+
+    long compressedCount() {
+        return compressed.get();
+    }
+
+    long uncompressedCount() {
+        return uncompressed.get();
+    }
+
+    // The size of the compressed responses before and after compression.
+    long bytesIn() {
+        return bytesIn.get();
+    }
+
+    long bytesOut() {
+        return bytesOut.get();
+    }
+
+    // Compressors made, including the ones that later went into the pool.
+    long createdCount() {
+        return created.get();
+    }
+}
@@ -0,0 +1,61 @@
+package se.plushogskolan;
+
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Base64;
+
+// Where login sessions are kept. A session is identified by a random token, which the browser sends back in the
+// "session" cookie, and stays valid for as long as it keeps being used: each use pushes its expiry forward by the idle
+// timeout.
+//
+// There are two kinds: MemorySessionStore, which is fast but forgets everyone when the server restarts, and
+// SqliteSessionStore, which keeps the sessions in the database (with a MemorySessionStore as a cache in front of it),
+// so that they survive restarts and can be shared by several servers using the same database file.
+interface SessionStore extends AutoCloseable {
+    // One logged in user.
+    final class Session {
+        private static final SecureRandom RANDOM = new SecureRandom();
+
+        final String token;
+        final int userId;
+        final String username;
+        // When the session expires unless it is used again, in milliseconds since 1970.
+        volatile long expiresAt;
+        // When the session was last read from the database, for stores that have one.
+        final long loadedAt;
+        // The latest expiry that has been saved, or queued to be saved, for stores that save them.
+        volatile long savedExpiresAt;
+
+        Session(String token, int userId, String username, long expiresAt, long loadedAt) {
+            this.token = token;
+            this.userId = userId;
+            this.username = username;
+            this.expiresAt = expiresAt;
+            this.loadedAt = loadedAt;
+            this.savedExpiresAt = expiresAt;
+        }
+
+        // A new random token: 128 bits, which is far too many to guess, as 22 URL-safe characters.
+        static String newToken() {
+            byte[] bytes = new byte[16];
+            RANDOM.nextBytes(bytes);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        }
+    }
+
+    // Start a new session for a user who has just logged in or registered.
+    Session create(int userId, String username) throws SQLException;
+
+    // Get the session with this token, and push its expiry forward. Returns null if there is no such session or it has
+    // expired.
+    Session get(String token) throws SQLException;
+
+    // End a session, e.g. when logging out.
+    void delete(String token) throws SQLException;
+
+    // The number of sessions held in memory.
+    int size();
+
+    @Override
+    void close();
+}
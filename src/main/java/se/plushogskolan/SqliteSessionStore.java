@@ -0,0 +1,307 @@
+package se.plushogskolan;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sessions kept in the "session" table, so that they survive restarts, and so that several servers using the same
+// database file share the same logins.
+//
+// A bounded MemorySessionStore in front of the table keeps the sessions in use from having to be read from the database
+// on every request. Since another server may have logged a session out in the meantime, a cached session is read again
+// when it has been in the cache longer than the recheck interval.
+//
+// New sessions and logouts are written straight away, since another server has to see them at once. If the writer is
+// held up for longer than a write may wait (by an index build, say), they are queued for the background thread
+// instead, so that people can still log in and out of this server. The other servers only find out once they have been
+// saved, and a crash before then loses them. Pushing the expiry of a session forward, which happens on every request,
+// is write-behind as well: the new expiry is only queued, at most once per minute for each session, and a background
+// thread saves everything that has been queued in one transaction every little while. At worst, a crash loses a few
+// seconds of expiry extensions, which just means a session expires a little earlier than it would have. Expired
+// sessions are deleted by the same thread.
+//
+// The tokens themselves are never stored, only their SHA-256 hashes, so that someone who gets to read the database
+// can't use it to log in as anyone.
+class SqliteSessionStore implements SessionStore {
+    // An expiry is only queued for saving when it has moved forward at least this much since it was last queued.
+    private static final long SAVE_GRANULARITY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final DatabaseWriter writer;
+    private final ConnectionPool db;
+    private final MemorySessionStore cache;
+    private final long idleMillis;
+    private final long recheckMillis;
+    private final long flushMillis;
+    // New expiries waiting to be saved, by token hash.
+    private final ConcurrentHashMap<String, Long> pendingExpiries = new ConcurrentHashMap<>();
+    // New sessions and logouts that couldn't be written straight away, by token hash.
+    private final ConcurrentHashMap<String, Session> pendingCreates = new ConcurrentHashMap<>();
+    private final Set<String> pendingDeletes = ConcurrentHashMap.newKeySet();
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    // Metrics.
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong expiriesSaved = new AtomicLong();
+    private final AtomicLong purged = new AtomicLong();
+
+    SqliteSessionStore(
+        DatabaseWriter writer, ConnectionPool db, int cacheSize, long idleMillis, long recheckMillis, long flushMillis
+    ) {
+        this.writer = writer;
+        this.db = db;
+        this.cache = new MemorySessionStore(cacheSize, idleMillis);
+        this.idleMillis = idleMillis;
+        this.recheckMillis = recheckMillis;
+        this.flushMillis = flushMillis;
+        this.flusher = new Thread(this::flushLoop, "session-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    @Override
+    public Session create(int userId, String username) throws SQLException {
+        long now = System.currentTimeMillis();
+        Session session = new Session(Session.newToken(), userId, username, now + idleMillis, now);
+        try {
+            writer.execute(c -> {
+                try (PreparedStatement s = c.prepareStatement(INSERT_SESSION)) {
+                    insert(s, session);
+                    return s.executeUpdate();
+                }
+            });
+        }
+        catch (DatabaseWriter.BusyException e) {
+            pendingCreates.put(hash(session.token), session);
+        }
+        cache.put(session);
+        return session;
+    }
+
+    private static final String INSERT_SESSION =
+        "INSERT OR IGNORE INTO session (token_hash, user_id, expires_at) VALUES (?, ?, ?)";
+
+    private static void insert(PreparedStatement s, Session session) throws SQLException {
+        s.setString(1, hash(session.token));
+        s.setInt(2, session.userId);
+        s.setLong(3, session.expiresAt);
+    }
+
+    @Override
+    public Session get(String token) throws SQLException {
+        long now = System.currentTimeMillis();
+        Session session = cache.get(token);
+        if (session == null || now - session.loadedAt > recheckMillis) {
+            // The database doesn't know yet about sessions that are still waiting to be saved.
+            String tokenHash = hash(token);
+            Session unsaved = pendingCreates.get(tokenHash);
+            session = unsaved != null ? unsaved : pendingDeletes.contains(tokenHash) ? null : load(token, now);
+            if (session == null) {
+                cache.delete(token);
+                return null;
+            }
+            cache.put(session);
+        }
+
+        // The cache has already pushed the expiry forward in memory. Queue it for saving if it has moved far enough.
+        session.expiresAt = Math.max(session.expiresAt, now + idleMillis);
+        if (session.expiresAt - session.savedExpiresAt >= SAVE_GRANULARITY_MILLIS) {
+            session.savedExpiresAt = session.expiresAt;
+            pendingExpiries.merge(hash(token), session.expiresAt, Math::max);
+        }
+        return session;
+    }
+
+    private Session load(String token, long now) throws SQLException {
+        loads.incrementAndGet();
+        try (Connection c = db.getConnection()) {
+            PreparedStatement s = c.prepareStatement(
+                "SELECT user_id, username, expires_at FROM session " +
+                "JOIN user ON user.id = session.user_id " +
+                "WHERE token_hash = ? AND expires_at >= ?"
+            );
+            s.setString(1, hash(token));
+            s.setLong(2, now);
+            try (ResultSet rows = s.executeQuery()) {
+                if (!rows.next()) {
+                    return null;
+                }
+                return new Session(
+                    token, rows.getInt("user_id"), rows.getString("username"), rows.getLong("expires_at"), now
+                );
+            }
+        }
+    }
+
+    @Override
+    public void delete(String token) throws SQLException {
+        String tokenHash = hash(token);
+        cache.delete(token);
+        pendingExpiries.remove(tokenHash);
+        if (pendingCreates.remove(tokenHash) != null) {
+            // Not saved yet, but the flusher may be saving it right now, so it has to delete it too.
+            pendingDeletes.add(tokenHash);
+            return;
+        }
+        try {
+            writer.execute(c -> {
+                try (PreparedStatement s = c.prepareStatement(DELETE_SESSION)) {
+                    s.setString(1, tokenHash);
+                    return s.executeUpdate();
+                }
+            });
+        }
+        catch (DatabaseWriter.BusyException e) {
+            pendingDeletes.add(tokenHash);
+        }
+    }
+
+    private static final String DELETE_SESSION = "DELETE FROM session WHERE token_hash = ?";
+
+    private void flushLoop() {
+        while (running) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(flushMillis);
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+            flush();
+        }
+        flush();
+    }
+
+    // Save the queued sessions, logouts and expiries, and delete the expired sessions, all in one transaction. If the
+    // writer is too busy, everything is tried again next time. The queued sessions and logouts are only taken off their
+    // queues once they have been saved, so that get() keeps seeing them until the database does.
+    private void flush() {
+        Map<String, Session> creates = new HashMap<>(pendingCreates);
+        List<String> deletes = new ArrayList<>(pendingDeletes);
+        Map<String, Long> batch = new HashMap<>();
+        for (String tokenHash : pendingExpiries.keySet()) {
+            Long expiresAt = pendingExpiries.remove(tokenHash);
+            if (expiresAt != null) {
+                batch.put(tokenHash, expiresAt);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        try {
+            int deleted = writer.executeInTransaction(c -> {
+                if (!creates.isEmpty()) {
+                    try (PreparedStatement s = c.prepareStatement(INSERT_SESSION)) {
+                        for (Session session : creates.values()) {
+                            insert(s, session);
+                            s.addBatch();
+                        }
+                        s.executeBatch();
+                    }
+                }
+                if (!deletes.isEmpty()) {
+                    try (PreparedStatement s = c.prepareStatement(DELETE_SESSION)) {
+                        for (String tokenHash : deletes) {
+                            s.setString(1, tokenHash);
+                            s.addBatch();
+                        }
+                        s.executeBatch();
+                    }
+                }
+
+                try (PreparedStatement s1 = c.prepareStatement(
+                    "UPDATE session SET expires_at = max(expires_at, ?) WHERE token_hash = ?"
+                )) {
+                    for (Map.Entry<String, Long> entry : batch.entrySet()) {
+                        s1.setLong(1, entry.getValue());
+                        s1.setString(2, entry.getKey());
+                        s1.addBatch();
+                    }
+                    s1.executeBatch();
+                }
+
+                try (PreparedStatement s2 = c.prepareStatement("DELETE FROM session WHERE expires_at < ?")) {
+                    s2.setLong(1, now);
+                    return s2.executeUpdate();
+                }
+            });
+            creates.forEach(pendingCreates::remove);
+            pendingDeletes.removeAll(deletes);
+            expiriesSaved.addAndGet(batch.size());
+            purged.addAndGet(deleted);
+        }
+        catch (DatabaseWriter.BusyException e) {
+            for (Map.Entry<String, Long> entry : batch.entrySet()) {
+                pendingExpiries.merge(entry.getKey(), entry.getValue(), Math::max);
+            }
+        }
+        catch (SQLException e) {
+            // The sessions still work; they may just expire a little earlier than they should.
+            System.err.println("Could not save " + batch.size() + " session expiries: " + e);
+            if (!creates.isEmpty() || !deletes.isEmpty()) {
+                System.err.println(
+                    "Could not save " + creates.size() + " new sessions and " + deletes.size() + " logouts: " + e
+                );
+            }
+        }
+    }
+
+    private static String hash(String token) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+
+    @Override
+    public int size() {
+        return cache.size();
+    }
+
+    // Stop the flusher, after saving the expiries that are still queued.
+    @Override
+    public void close() {
+        running = false;
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    int pendingCount() {
+        return pendingExpiries.size();
+    }
+
+    // New sessions and logouts waiting to be saved.
+    int unsavedCount() {
+        return pendingCreates.size() + pendingDeletes.size();
+    }
+
+    long loadCount() {
+        return loads.get();
+    }
+
+    long savedCount() {
+        return expiriesSaved.get();
+    }
+
+    long purgedCount() {
+        return purged.get();
+    }
+}
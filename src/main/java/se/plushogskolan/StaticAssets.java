@@ -0,0 +1,157 @@
+package se.plushogskolan;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// The files in the "static" folder (the JavaScript, the CSS and the background image), prepared once at startup and
+// then served from memory.
+//
+// Each file gets a fingerprinted URL with a hash of its content in it, like /assets/main.3f2a9c1b04d7e655.css. Since
+// the URL changes whenever the file does, browsers can be told to keep these forever and never even ask whether they
+// have changed. The pages link to the fingerprinted URLs (see HtmlPage), and so does the CSS, whose references to other
+// files, like `url("map.jpg")`, are rewritten before the CSS itself is hashed. The files are also still served under
+// their plain names, like /main.css, but those have to be checked with the server (with their ETag) before being used.
+//
+// Text files are also gzipped once here, rather than on every request. As with the flags (see FlagAssets), there are
+// no Brotli variants, since the JDK has no Brotli encoder.
+class StaticAssets {
+    // The content type of each kind of file, by extension.
+    private static final Map<String, String> CONTENT_TYPES = Map.of(
+        "css", "text/css; charset=UTF-8",
+        "js", "text/javascript; charset=UTF-8",
+        "html", "text/html; charset=UTF-8",
+        "svg", "image/svg+xml; charset=UTF-8",
+        "json", "application/json",
+        "jpg", "image/jpeg",
+        "jpeg", "image/jpeg",
+        "png", "image/png",
+        "ico", "image/x-icon",
+        "woff2", "font/woff2"
+    );
+    private static final Pattern CSS_URL = Pattern.compile("url\\(\\s*(['\"]?)([^'\")]+)\\1\\s*\\)");
+
+    // One file.
+    static final class Asset {
+        final String name;
+        // E.g. "/assets/main.3f2a9c1b04d7e655.css".
+        final String url;
+        final String contentType;
+        final byte[] content;
+        // Null if the file is not worth gzipping.
+        final byte[] gzipped;
+        final String etag;
+        final String gzippedEtag;
+
+        Asset(String name, byte[] content) {
+            String hash = HttpCaching.hash(content);
+            int dot = name.lastIndexOf('.');
+            String extension = dot < 0 ? "" : name.substring(dot + 1).toLowerCase();
+            this.name = name;
+            this.url = dot < 0
+                ? "/assets/" + name + "." + hash
+                : "/assets/" + name.substring(0, dot) + "." + hash + name.substring(dot);
+            this.contentType = CONTENT_TYPES.getOrDefault(extension, "application/octet-stream");
+            this.content = content;
+            byte[] gzipped = isText(contentType) ? HttpCaching.gzip(content) : null;
+            this.gzipped = gzipped != null && gzipped.length < content.length ? gzipped : null;
+            this.etag = "\"" + hash + "\"";
+            this.gzippedEtag = "\"" + hash + "-gz\"";
+        }
+
+        // Text formats are worth compressing. Images like JPEG are already compressed.
+        private static boolean isText(String contentType) {
+            return contentType.startsWith("text/") || contentType.startsWith("image/svg+xml") ||
+                contentType.startsWith("application/json");
+        }
+    }
+
+    // By plain name, e.g. "main.css".
+    private final Map<String, Asset> byName;
+    // By fingerprinted URL.
+    private final Map<String, Asset> byUrl;
+
+    StaticAssets(Path folder) throws IOException {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(folder)) {
+            for (Path path : paths) {
+                if (Files.isRegularFile(path)) {
+                    files.put(path.getFileName().toString(), Files.readAllBytes(path));
+                }
+            }
+        }
+
+        // Everything but the CSS first, since the CSS needs to know the URLs of the other files.
+        Map<String, Asset> byName = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            if (!file.getKey().endsWith(".css")) {
+                byName.put(file.getKey(), new Asset(file.getKey(), file.getValue()));
+            }
+        }
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            if (file.getKey().endsWith(".css")) {
+                String css = new String(file.getValue(), StandardCharsets.UTF_8);
+                byte[] rewritten = withFingerprintedUrls(css, byName).getBytes(StandardCharsets.UTF_8);
+                byName.put(file.getKey(), new Asset(file.getKey(), rewritten));
+            }
+        }
+
+        Map<String, Asset> byUrl = new LinkedHashMap<>();
+        for (Asset asset : byName.values()) {
+            byUrl.put(asset.url, asset);
+        }
+        this.byName = Collections.unmodifiableMap(byName);
+        this.byUrl = Collections.unmodifiableMap(byUrl);
+    }
+
+    // Replace `url(map.jpg)` with `url(/assets/map.0123456789abcdef.jpg)`, for the files we know about. Anything else,
+    // like a full URL or a data: URL, is left as it is.
+    private static String withFingerprintedUrls(String css, Map<String, Asset> assets) {
+        Matcher matcher = CSS_URL.matcher(css);
+        StringBuilder result = new StringBuilder();
+        while (matcher.find()) {
+            String reference = matcher.group(2).trim();
+            Asset asset = assets.get(reference.startsWith("/") ? reference.substring(1) : reference);
+            String replacement = asset == null ? matcher.group() : "url(\"" + asset.url + "\")";
+            matcher.appendReplacement(result, Matcher.quoteReplacement(replacement));
+        }
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    // Get a file by its plain name, e.g. "main.css".
+    Asset byName(String name) {
+        return byName.get(name);
+    }
+
+    // Get a file by its fingerprinted URL.
+    Asset byUrl(String url) {
+        return byUrl.get(url);
+    }
+
+    // The fingerprinted URL of a file, or its plain URL if there is no such file.
+    String url(String name) {
+        Asset asset = byName.get(name);
+        return asset == null ? "/" + name : asset.url;
+    }
+
+    Collection<Asset> all() {
+        return byName.values();
+    }
+
+    long sizeInBytes() {
+        long bytes = 0;
+        for (Asset asset : byName.values()) {
+            bytes += asset.content.length + (asset.gzipped == null ? 0 : asset.gzipped.length);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,593 @@
+package se.plushogskolan;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.Comment;
+import javax.xml.stream.events.DTD;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.ProcessingInstruction;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// A chain of changes made to an SVG file, like recoloring it or making it smaller, for serving variants of the flags.
+//
+// The file is streamed through the pipeline with StAX rather than parsed into a tree: each XML event (a start tag, some
+// text, an end tag and so on) is passed through the stages in order, and each stage can pass it on as it is, change
+// it, replace it with other events or drop it. What comes out of the last stage is written straight to the output. So
+// a stage only ever looks at one event at a time, and adding a new kind of change is just adding a new Stage.
+//
+// Running a pipeline still takes some time, so the results are cached (see FlagVariantCache). The `key` of a pipeline
+// describes exactly what it does, for use in the cache key.
+final class SvgPipeline {
+    // Receives the events coming out of a stage.
+    interface Sink {
+        void accept(XMLEvent event) throws XMLStreamException;
+    }
+
+    // One kind of change.
+    interface Stage {
+        // A short description of the change, e.g. "width:120", which is the same for stages doing the same thing.
+        String key();
+
+        // Make the filter for one run through a file, which passes its output to `next`. Filters can keep track of
+        // where they are in the file, so each run gets new ones.
+        Sink filter(Sink next);
+    }
+
+    static final String SVG_NAMESPACE = "http://www.w3.org/2000/svg";
+    static final String XLINK_NAMESPACE = "http://www.w3.org/1999/xlink";
+    // The widest variant that can be asked for.
+    private static final int MAX_WIDTH = 2048;
+    private static final int MAX_RECOLORS = 16;
+
+    // Many of the flags have a DOCTYPE pointing at the SVG DTD on w3.org. It is never loaded, and neither are any other
+    // external entities, so reading a flag never makes a network request or reads another file.
+    private static final XMLInputFactory INPUT = XMLInputFactory.newFactory();
+    static {
+        INPUT.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+    private static final XMLOutputFactory OUTPUT = XMLOutputFactory.newFactory();
+    // Event factories remember the location of the last event they made, so they can't be shared between threads.
+    private static final ThreadLocal<XMLEventFactory> EVENTS = ThreadLocal.withInitial(XMLEventFactory::newFactory);
+
+    private final List<Stage> stages;
+    private final String key;
+
+    SvgPipeline(List<Stage> stages) {
+        this.stages = List.copyOf(stages);
+        StringBuilder key = new StringBuilder();
+        for (Stage stage : stages) {
+            if (key.length() > 0) {
+                key.append(',');
+            }
+            key.append(stage.key());
+        }
+        this.key = key.toString();
+    }
+
+    // Make a pipeline from the query parameters of a request, e.g. `?width=120&grayscale&minify`. The stages always run
+    // in the same order, whatever order the parameters come in, so equal requests get equal keys. Throws an
+    // IllegalArgumentException with a message for the user if a parameter is not valid.
+    //
+    // - `strip` leaves out metadata and anything added by editors (see StripMetadata).
+    // - `recolor=ed2939:000000,fff:333` replaces colors, given as hex codes without the "#".
+    // - `grayscale` makes the flag gray.
+    // - `width=120` sets the size of the flag, keeping its shape.
+    // - `minify` leaves out comments and whitespace.
+    static SvgPipeline fromParameters(Function<String, String> parameters) {
+        List<Stage> stages = new ArrayList<>();
+        if (parameters.apply("strip") != null) {
+            stages.add(new StripMetadata());
+        }
+        String recolor = parameters.apply("recolor");
+        if (recolor != null) {
+            stages.add(Recolor.parse(recolor));
+        }
+        if (parameters.apply("grayscale") != null) {
+            stages.add(new Recolor("grayscale", SvgPipeline::gray));
+        }
+        String width = parameters.apply("width");
+        if (width != null) {
+            int pixels;
+            try {
+                pixels = Integer.parseInt(width);
+            }
+            catch (NumberFormatException e) {
+                pixels = 0;
+            }
+            if (pixels < 1 || pixels > MAX_WIDTH) {
+                throw new IllegalArgumentException("The width must be a number from 1 to " + MAX_WIDTH + ".");
+            }
+            stages.add(new Resize(pixels));
+        }
+        if (parameters.apply("minify") != null) {
+            stages.add(new Minify());
+        }
+        return new SvgPipeline(stages);
+    }
+
+    boolean isEmpty() {
+        return stages.isEmpty();
+    }
+
+    String key() {
+        return key;
+    }
+
+    // Run an SVG file through the pipeline. Throws an XMLStreamException if the file is not valid XML, or if one of the
+    // stages can't do its job on this file.
+    byte[] apply(byte[] svg) throws XMLStreamException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(svg.length);
+        XMLEventReader reader = INPUT.createXMLEventReader(new ByteArrayInputStream(svg));
+        XMLStreamWriter writer = OUTPUT.createXMLStreamWriter(out, "UTF-8");
+        try {
+            // Connect the stages from the end, so that each one passes its events on to the one after it.
+            WriterSink end = new WriterSink(writer);
+            Sink sink = end;
+            for (int i = stages.size() - 1; i >= 0; i--) {
+                sink = stages.get(i).filter(sink);
+            }
+            while (reader.hasNext()) {
+                sink.accept(reader.nextEvent());
+            }
+            end.flush();
+        }
+        finally {
+            reader.close();
+            writer.close();
+        }
+        return out.toByteArray();
+    }
+
+    // Writes the events that come out of the last stage. An element without any content is written as `<rect/>` rather
+    // than `<rect></rect>`, which takes waiting with each start tag until we know what comes after it.
+    private static final class WriterSink implements Sink {
+        private final XMLStreamWriter writer;
+        private StartElement pending = null;
+
+        WriterSink(XMLStreamWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void accept(XMLEvent event) throws XMLStreamException {
+            if (pending != null) {
+                StartElement element = pending;
+                pending = null;
+                if (event.isEndElement()) {
+                    QName name = element.getName();
+                    writer.writeEmptyElement(name.getPrefix(), name.getLocalPart(), name.getNamespaceURI());
+                    writeNamespacesAndAttributes(element);
+                    return;
+                }
+                QName name = element.getName();
+                writer.writeStartElement(name.getPrefix(), name.getLocalPart(), name.getNamespaceURI());
+                writeNamespacesAndAttributes(element);
+            }
+
+            switch (event.getEventType()) {
+                case XMLEvent.START_ELEMENT:
+                    pending = event.asStartElement();
+                    break;
+                case XMLEvent.END_ELEMENT:
+                    writer.writeEndElement();
+                    break;
+                case XMLEvent.CHARACTERS:
+                case XMLEvent.CDATA:
+                case XMLEvent.SPACE:
+                    Characters characters = event.asCharacters();
+                    if (characters.isCData()) {
+                        writer.writeCData(characters.getData());
+                    }
+                    else {
+                        writer.writeCharacters(characters.getData());
+                    }
+                    break;
+                case XMLEvent.COMMENT:
+                    writer.writeComment(((Comment) event).getText());
+                    break;
+                case XMLEvent.PROCESSING_INSTRUCTION:
+                    ProcessingInstruction instruction = (ProcessingInstruction) event;
+                    writer.writeProcessingInstruction(instruction.getTarget(), instruction.getData());
+                    break;
+                case XMLEvent.DTD:
+                    writer.writeDTD(((DTD) event).getDocumentTypeDeclaration());
+                    break;
+                case XMLEvent.START_DOCUMENT:
+                    writer.writeStartDocument("UTF-8", "1.0");
+                    break;
+                case XMLEvent.END_DOCUMENT:
+                    writer.writeEndDocument();
+                    break;
+                default:
+                    // Entity references can't happen, since entities are never declared (the DTD isn't loaded).
+                    break;
+            }
+        }
+
+        private void writeNamespacesAndAttributes(StartElement element) throws XMLStreamException {
+            Iterator<Namespace> namespaces = element.getNamespaces();
+            while (namespaces.hasNext()) {
+                Namespace namespace = namespaces.next();
+                if (namespace.isDefaultNamespaceDeclaration()) {
+                    writer.writeDefaultNamespace(namespace.getNamespaceURI());
+                }
+                else {
+                    writer.writeNamespace(namespace.getPrefix(), namespace.getNamespaceURI());
+                }
+            }
+            Iterator<Attribute> attributes = element.getAttributes();
+            while (attributes.hasNext()) {
+                Attribute attribute = attributes.next();
+                QName name = attribute.getName();
+                if (name.getPrefix().isEmpty()) {
+                    writer.writeAttribute(name.getLocalPart(), attribute.getValue());
+                }
+                else {
+                    writer.writeAttribute(
+                        name.getPrefix(), name.getNamespaceURI(), name.getLocalPart(), attribute.getValue()
+                    );
+                }
+            }
+        }
+
+        void flush() throws XMLStreamException {
+            writer.flush();
+        }
+    }
+
+    // Leaves out everything that isn't needed to draw the flag: the DOCTYPE, <title>, <desc> and <metadata>, and all
+    // the elements, attributes and namespace declarations that editors like Inkscape add in their own namespaces.
+    static final class StripMetadata implements Stage {
+        private static final Set<String> METADATA_ELEMENTS = Set.of("title", "desc", "metadata");
+        private static final Set<String> KEPT_NAMESPACES = Set.of(
+            SVG_NAMESPACE, XLINK_NAMESPACE, XMLConstants.XML_NS_URI
+        );
+
+        @Override
+        public String key() {
+            return "strip";
+        }
+
+        @Override
+        public Sink filter(Sink next) {
+            return new Sink() {
+                // While above 0, we are inside an element that is being left out.
+                private int skipping = 0;
+
+                @Override
+                public void accept(XMLEvent event) throws XMLStreamException {
+                    if (event.isStartElement()) {
+                        StartElement element = event.asStartElement();
+                        QName name = element.getName();
+                        if (skipping > 0 || !SVG_NAMESPACE.equals(name.getNamespaceURI()) ||
+                            METADATA_ELEMENTS.contains(name.getLocalPart())) {
+                            skipping += 1;
+                            return;
+                        }
+                        next.accept(stripped(element));
+                    }
+                    else if (event.isEndElement()) {
+                        if (skipping > 0) {
+                            skipping -= 1;
+                            return;
+                        }
+                        next.accept(event);
+                    }
+                    else if (skipping == 0 && event.getEventType() != XMLEvent.DTD) {
+                        next.accept(event);
+                    }
+                }
+            };
+        }
+
+        private static StartElement stripped(StartElement element) {
+            List<Attribute> attributes = new ArrayList<>();
+            Iterator<Attribute> all = element.getAttributes();
+            while (all.hasNext()) {
+                Attribute attribute = all.next();
+                String namespace = attribute.getName().getNamespaceURI();
+                if (namespace.isEmpty() || KEPT_NAMESPACES.contains(namespace)) {
+                    attributes.add(attribute);
+                }
+            }
+            List<Namespace> namespaces = new ArrayList<>();
+            Iterator<Namespace> declared = element.getNamespaces();
+            while (declared.hasNext()) {
+                Namespace namespace = declared.next();
+                if (KEPT_NAMESPACES.contains(namespace.getNamespaceURI())) {
+                    namespaces.add(namespace);
+                }
+            }
+            return startElement(element.getName(), attributes, namespaces);
+        }
+    }
+
+    // Leaves out comments, processing instructions, the DOCTYPE, the XML declaration and the whitespace between
+    // elements. Whitespace inside <text> is kept, since there it is part of what is shown.
+    static final class Minify implements Stage {
+        @Override
+        public String key() {
+            return "minify";
+        }
+
+        @Override
+        public Sink filter(Sink next) {
+            return new Sink() {
+                private int insideText = 0;
+
+                @Override
+                public void accept(XMLEvent event) throws XMLStreamException {
+                    switch (event.getEventType()) {
+                        case XMLEvent.COMMENT:
+                        case XMLEvent.PROCESSING_INSTRUCTION:
+                        case XMLEvent.DTD:
+                        case XMLEvent.START_DOCUMENT:
+                            return;
+                        case XMLEvent.START_ELEMENT:
+                            if (insideText > 0 || event.asStartElement().getName().getLocalPart().equals("text")) {
+                                insideText += 1;
+                            }
+                            break;
+                        case XMLEvent.END_ELEMENT:
+                            if (insideText > 0) {
+                                insideText -= 1;
+                            }
+                            break;
+                        case XMLEvent.CHARACTERS:
+                        case XMLEvent.SPACE:
+                            if (insideText == 0 && event.asCharacters().isWhiteSpace()) {
+                                return;
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                    next.accept(event);
+                }
+            };
+        }
+    }
+
+    // Replaces colors in the attributes that set a color (fill, stroke and so on) and in `style` attributes. Colors
+    // are given to the function as six lowercase hex digits, e.g. "ff0000" (three-digit colors are expanded first).
+    // Named colors are only understood when they are the whole attribute value, and only the basic CSS ones. Shapes
+    // without a fill are drawn black by default, which isn't written anywhere in the file, so that black stays black.
+    static final class Recolor implements Stage {
+        private static final Set<String> COLOR_ATTRIBUTES = Set.of(
+            "fill", "stroke", "color", "stop-color", "flood-color", "lighting-color"
+        );
+        private static final Pattern HEX_COLOR = Pattern.compile("#([0-9a-fA-F]{6}|[0-9a-fA-F]{3})(?![0-9a-fA-F])");
+        private static final Map<String, String> NAMED_COLORS = Map.ofEntries(
+            Map.entry("black", "000000"), Map.entry("silver", "c0c0c0"), Map.entry("gray", "808080"),
+            Map.entry("white", "ffffff"), Map.entry("maroon", "800000"), Map.entry("red", "ff0000"),
+            Map.entry("purple", "800080"), Map.entry("fuchsia", "ff00ff"), Map.entry("green", "008000"),
+            Map.entry("lime", "00ff00"), Map.entry("olive", "808000"), Map.entry("yellow", "ffff00"),
+            Map.entry("navy", "000080"), Map.entry("blue", "0000ff"), Map.entry("teal", "008080"),
+            Map.entry("aqua", "00ffff")
+        );
+
+        private final String key;
+        private final Function<String, String> recolor;
+
+        Recolor(String key, Function<String, String> recolor) {
+            this.key = key;
+            this.recolor = recolor;
+        }
+
+        // E.g. "ed2939:000000,fff:333".
+        static Recolor parse(String parameter) {
+            Map<String, String> colors = new TreeMap<>();
+            for (String pair : parameter.split(",")) {
+                String[] fromTo = pair.split(":");
+                if (fromTo.length != 2 || !isHex(fromTo[0]) || !isHex(fromTo[1])) {
+                    throw new IllegalArgumentException(
+                        "Colors to replace must be given as e.g. `recolor=ed2939:000000,fff:333`."
+                    );
+                }
+                colors.put(normalized(fromTo[0]), normalized(fromTo[1]));
+            }
+            if (colors.size() > MAX_RECOLORS) {
+                throw new IllegalArgumentException("At most " + MAX_RECOLORS + " colors can be replaced.");
+            }
+
+            StringBuilder key = new StringBuilder("recolor:");
+            for (Map.Entry<String, String> entry : colors.entrySet()) {
+                if (key.length() > "recolor:".length()) {
+                    key.append(';');
+                }
+                key.append(entry.getKey()).append('=').append(entry.getValue());
+            }
+            return new Recolor(key.toString(), color -> colors.getOrDefault(color, color));
+        }
+
+        private static boolean isHex(String color) {
+            return color.matches("[0-9a-fA-F]{6}|[0-9a-fA-F]{3}");
+        }
+
+        private static String normalized(String hex) {
+            hex = hex.toLowerCase();
+            if (hex.length() == 3) {
+                char r = hex.charAt(0);
+                char g = hex.charAt(1);
+                char b = hex.charAt(2);
+                return "" + r + r + g + g + b + b;
+            }
+            return hex;
+        }
+
+        @Override
+        public String key() {
+            return key;
+        }
+
+        @Override
+        public Sink filter(Sink next) {
+            return event -> {
+                if (event.isStartElement()) {
+                    event = recolored(event.asStartElement());
+                }
+                next.accept(event);
+            };
+        }
+
+        private StartElement recolored(StartElement element) {
+            List<Attribute> attributes = new ArrayList<>();
+            boolean changed = false;
+            Iterator<Attribute> all = element.getAttributes();
+            while (all.hasNext()) {
+                Attribute attribute = all.next();
+                String name = attribute.getName().getLocalPart();
+                String value = attribute.getValue();
+                String updated = value;
+                if (COLOR_ATTRIBUTES.contains(name)) {
+                    String named = NAMED_COLORS.get(value.trim().toLowerCase());
+                    updated = named != null ? "#" + recolor.apply(named) : replaceHexColors(value);
+                }
+                else if (name.equals("style")) {
+                    updated = replaceHexColors(value);
+                }
+
+                if (updated.equals(value)) {
+                    attributes.add(attribute);
+                }
+                else {
+                    attributes.add(attribute(attribute.getName(), updated));
+                    changed = true;
+                }
+            }
+            return changed ? startElement(element.getName(), attributes, element.getNamespaces()) : element;
+        }
+
+        private String replaceHexColors(String value) {
+            Matcher matcher = HEX_COLOR.matcher(value);
+            StringBuilder result = new StringBuilder();
+            while (matcher.find()) {
+                matcher.appendReplacement(result, "#" + recolor.apply(normalized(matcher.group(1))));
+            }
+            matcher.appendTail(result);
+            return result.toString();
+        }
+    }
+
+    // The same brightness in gray, using the usual weights for how bright red, green and blue look.
+    private static String gray(String hex) {
+        int rgb = Integer.parseInt(hex, 16);
+        int gray = (int) Math.round(
+            0.299 * ((rgb >> 16) & 0xff) + 0.587 * ((rgb >> 8) & 0xff) + 0.114 * (rgb & 0xff)
+        );
+        return String.format("%02x%02x%02x", gray, gray, gray);
+    }
+
+    // Sets the width of the flag, and the height to match its shape. The flag is scaled to fit by giving it a viewBox
+    // if it doesn't already have one.
+    static final class Resize implements Stage {
+        private final int width;
+
+        Resize(int width) {
+            this.width = width;
+        }
+
+        @Override
+        public String key() {
+            return "width:" + width;
+        }
+
+        @Override
+        public Sink filter(Sink next) {
+            return new Sink() {
+                private boolean root = true;
+
+                @Override
+                public void accept(XMLEvent event) throws XMLStreamException {
+                    if (root && event.isStartElement()) {
+                        root = false;
+                        event = resized(event.asStartElement());
+                    }
+                    next.accept(event);
+                }
+            };
+        }
+
+        private StartElement resized(StartElement element) throws XMLStreamException {
+            String viewBox = viewBox(element);
+            String[] parts = viewBox.trim().split("[\\s,]+");
+            double viewBoxWidth;
+            double viewBoxHeight;
+            try {
+                viewBoxWidth = Double.parseDouble(parts[2]);
+                viewBoxHeight = Double.parseDouble(parts[3]);
+            }
+            catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new XMLStreamException("The viewBox \"" + viewBox + "\" is not four numbers");
+            }
+            if (viewBoxWidth <= 0 || viewBoxHeight <= 0) {
+                throw new XMLStreamException("The viewBox \"" + viewBox + "\" is empty");
+            }
+            long height = Math.max(1, Math.round(width * viewBoxHeight / viewBoxWidth));
+
+            List<Attribute> attributes = new ArrayList<>();
+            Iterator<Attribute> all = element.getAttributes();
+            while (all.hasNext()) {
+                Attribute attribute = all.next();
+                String name = attribute.getName().getLocalPart();
+                if (!attribute.getName().getPrefix().isEmpty() ||
+                    !(name.equals("width") || name.equals("height") || name.equals("viewBox"))) {
+                    attributes.add(attribute);
+                }
+            }
+            attributes.add(attribute(new QName("width"), Integer.toString(width)));
+            attributes.add(attribute(new QName("height"), Long.toString(height)));
+            attributes.add(attribute(new QName("viewBox"), viewBox));
+            return startElement(element.getName(), attributes, element.getNamespaces());
+        }
+    }
+
+    // The viewBox of an <svg> element, or one made from its width and height if it doesn't have one.
+    static String viewBox(StartElement svg) throws XMLStreamException {
+        Attribute viewBox = svg.getAttributeByName(new QName("viewBox"));
+        if (viewBox != null) {
+            return viewBox.getValue();
+        }
+        Attribute width = svg.getAttributeByName(new QName("width"));
+        Attribute height = svg.getAttributeByName(new QName("height"));
+        if (width == null || height == null) {
+            throw new XMLStreamException("The <svg> element has neither a viewBox nor a width and height");
+        }
+        return "0 0 " + width.getValue().replace("px", "").trim() + " " + height.getValue().replace("px", "").trim();
+    }
+
+    static StartElement startElement(QName name, List<Attribute> attributes, Iterator<Namespace> namespaces) {
+        return EVENTS.get().createStartElement(
+            name.getPrefix(), name.getNamespaceURI(), name.getLocalPart(), attributes.iterator(), namespaces
+        );
+    }
+
+    static StartElement startElement(QName name, List<Attribute> attributes, List<Namespace> namespaces) {
+        return startElement(name, attributes, namespaces.iterator());
+    }
+
+    static Attribute attribute(QName name, String value) {
+        return EVENTS.get().createAttribute(name, value);
+    }
+}
@@ -0,0 +1,705 @@
+package se.plushogskolan;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Calendar;
+
+// A prepared statement that times its execute calls for QueryMetrics, and remembers the types of its parameters for
+// the slow query log.
+//
+// This is written out by hand instead of being a reflection proxy, since a proxy boxes the arguments of every call
+// into a new array and goes through Method.invoke. Here binding a parameter is a couple of array stores and running
+// the statement is two calls to System.nanoTime, with nothing allocated on the way. Everything that is not an execute
+// or a parameter setter is handed straight to the wrapped statement.
+//
+// Only the execute calls without SQL are timed. The ones that take SQL run some other statement than this one (and
+// are not allowed on a prepared statement anyway), so they are passed on as they are.
+//
+// A statement is only used by one thread at a time, so the parameter types can be kept in plain fields.
+final class TimedStatement implements PreparedStatement {
+    private final PreparedStatement statement;
+    private final QueryMetrics.Statement metrics;
+    private final QueryMetrics queryMetrics;
+    private final long slowNanos;
+    // The type of each bound parameter (e.g. "string" or "int") and, for strings, the length. Only the types are kept,
+    // not the values.
+    private String[] parameterTypes = new String[8];
+    private int[] parameterLengths = new int[8];
+    // The ResultSet of the latest query, so that it can be closed in `reset` if whoever ran the query didn't.
+    private ResultSet results;
+
+    TimedStatement(
+        PreparedStatement statement, QueryMetrics.Statement metrics, QueryMetrics queryMetrics, long slowNanos
+    ) {
+        this.statement = statement;
+        this.metrics = metrics;
+        this.queryMetrics = queryMetrics;
+        this.slowNanos = slowNanos;
+    }
+
+    // Close the ResultSet of the latest query and unbind the parameters. Closing the ResultSet resets the statement,
+    // so that it no longer holds on to a read transaction. The connection pool calls this on every statement it handed
+    // out when the connection is given back.
+    void reset() throws SQLException {
+        if (results != null) {
+            results.close();
+            results = null;
+        }
+        clearParameters();
+    }
+
+    private void finished(long start) {
+        long elapsed = System.nanoTime() - start;
+        metrics.latency.record(elapsed);
+        if (elapsed >= slowNanos) {
+            queryMetrics.slowStatement(metrics, elapsed, describeParameters());
+        }
+    }
+
+    private void remember(int index, String type) {
+        if (index >= parameterTypes.length) {
+            parameterTypes = Arrays.copyOf(parameterTypes, index * 2);
+            parameterLengths = Arrays.copyOf(parameterLengths, index * 2);
+        }
+        parameterTypes[index] = type;
+        parameterLengths[index] = -1;
+    }
+
+    private void rememberString(int index, String value) {
+        remember(index, value == null ? "null" : "string");
+        if (value != null) {
+            parameterLengths[index] = value.length();
+        }
+    }
+
+    // E.g. `1=string(9 chars), 2=int`.
+    private String describeParameters() {
+        StringBuilder description = new StringBuilder();
+        for (int i = 1; i < parameterTypes.length; i++) {
+            if (parameterTypes[i] == null) {
+                continue;
+            }
+            if (description.length() > 0) {
+                description.append(", ");
+            }
+            description.append(i).append('=').append(parameterTypes[i]);
+            if (parameterLengths[i] >= 0) {
+                description.append('(').append(parameterLengths[i]).append(" chars)");
+            }
+        }
+        return description.toString();
+    }
+
+    // Running the statement, which is timed.
+
+    @Override
+    public boolean execute() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return statement.execute();
+        }
+        catch (SQLException | RuntimeException e) {
+            metrics.errors.increment();
+            throw e;
+        }
+        finally {
+            finished(start);
+        }
+    }
+
+    @Override
+    public ResultSet executeQuery() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            results = statement.executeQuery();
+            return results;
+        }
+        catch (SQLException | RuntimeException e) {
+            metrics.errors.increment();
+            throw e;
+        }
+        finally {
+            finished(start);
+        }
+    }
+
+    @Override
+    public int executeUpdate() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return statement.executeUpdate();
+        }
+        catch (SQLException | RuntimeException e) {
+            metrics.errors.increment();
+            throw e;
+        }
+        finally {
+            finished(start);
+        }
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return statement.executeBatch();
+        }
+        catch (SQLException | RuntimeException e) {
+            metrics.errors.increment();
+            throw e;
+        }
+        finally {
+            finished(start);
+        }
+    }
+
+    // Binding parameters, which remembers their types.
+
+    @Override
+    public void setArray(int index, Array value) throws SQLException {
+        remember(index, value == null ? "null" : "array");
+        statement.setArray(index, value);
+    }
+
+    @Override
+    public void setAsciiStream(int index, InputStream value, int length) throws SQLException {
+        remember(index, value == null ? "null" : "asciistream");
+        statement.setAsciiStream(index, value, length);
+    }
+
+    @Override
+    public void setAsciiStream(int index, InputStream value, long length) throws SQLException {
+        remember(index, value == null ? "null" : "asciistream");
+        statement.setAsciiStream(index, value, length);
+    }
+
+    @Override
+    public void setAsciiStream(int index, InputStream value) throws SQLException {
+        remember(index, value == null ? "null" : "asciistream");
+        statement.setAsciiStream(index, value);
+    }
+
+    @Override
+    public void setBigDecimal(int index, BigDecimal value) throws SQLException {
+        remember(index, value == null ? "null" : "bigdecimal");
+        statement.setBigDecimal(index, value);
+    }
+
+    @Override
+    public void setBinaryStream(int index, InputStream value, int length) throws SQLException {
+        remember(index, value == null ? "null" : "binarystream");
+        statement.setBinaryStream(index, value, length);
+    }
+
+    @Override
+    public void setBinaryStream(int index, InputStream value, long length) throws SQLException {
+        remember(index, value == null ? "null" : "binarystream");
+        statement.setBinaryStream(index, value, length);
+    }
+
+    @Override
+    public void setBinaryStream(int index, InputStream value) throws SQLException {
+        remember(index, value == null ? "null" : "binarystream");
+        statement.setBinaryStream(index, value);
+    }
+
+    @Override
+    public void setBlob(int index, InputStream value, long length) throws SQLException {
+        remember(index, value == null ? "null" : "blob");
+        statement.setBlob(index, value, length);
+    }
+
+    @Override
+    public void setBlob(int index, InputStream value) throws SQLException {
+        remember(index, value == null ? "null" : "blob");
+        statement.setBlob(index, value);
+    }
+
+    @Override
+    public void setBlob(int index, Blob value) throws SQLException {
+        remember(index, value == null ? "null" : "blob");
+        statement.setBlob(index, value);
+    }
+
+    @Override
+    public void setBoolean(int index, boolean value) throws SQLException {
+        remember(index, "boolean");
+        statement.setBoolean(index, value);
+    }
+
+    @Override
+    public void setByte(int index, byte value) throws SQLException {
+        remember(index, "byte");
+        statement.setByte(index, value);
+    }
+
+    @Override
+    public void setBytes(int index, byte[] value) throws SQLException {
+        remember(index, value == null ? "null" : "bytes");
+        statement.setBytes(index, value);
+    }
+
+    @Override
+    public void setCharacterStream(int index, Reader value, int length) throws SQLException {
+        remember(index, value == null ? "null" : "characterstream");
+        statement.setCharacterStream(index, value, length);
+    }
+
+    @Override
+    public void setCharacterStream(int index, Reader value, long length) throws SQLException {
+        remember(index, value == null ? "null" : "characterstream");
+        statement.setCharacterStream(index, value, length);
+    }
+
+    @Override
+    public void setCharacterStream(int index, Reader value) throws SQLException {
+        remember(index, value == null ? "null" : "characterstream");
+        statement.setCharacterStream(index, value);
+    }
+
+    @Override
+    public void setClob(int index, Reader value, long length) throws SQLException {
+        remember(index, value == null ? "null" : "clob");
+        statement.setClob(index, value, length);
+    }
+
+    @Override
+    public void setClob(int index, Reader value) throws SQLException {
+        remember(index, value == null ? "null" : "clob");
+        statement.setClob(index, value);
+    }
+
+    @Override
+    public void setClob(int index, Clob value) throws SQLException {
+        remember(index, value == null ? "null" : "clob");
+        statement.setClob(index, value);
+    }
+
+    @Override
+    public void setDate(int index, Date value, Calendar calendar) throws SQLException {
+        remember(index, value == null ? "null" : "date");
+        statement.setDate(index, value, calendar);
+    }
+
+    @Override
+    public void setDate(int index, Date value) throws SQLException {
+        remember(index, value == null ? "null" : "date");
+        statement.setDate(index, value);
+    }
+
+    @Override
+    public void setDouble(int index, double value) throws SQLException {
+        remember(index, "double");
+        statement.setDouble(index, value);
+    }
+
+    @Override
+    public void setFloat(int index, float value) throws SQLException {
+        remember(index, "float");
+        statement.setFloat(index, value);
+    }
+
+    @Override
+    public void setInt(int index, int value) throws SQLException {
+        remember(index, "int");
+        statement.setInt(index, value);
+    }
+
+    @Override
+    public void setLong(int index, long value) throws SQLException {
+        remember(index, "long");
+        statement.setLong(index, value);
+    }
+
+    @Override
+    public void setNCharacterStream(int index, Reader value, long length) throws SQLException {
+        remember(index, value == null ? "null" : "ncharacterstream");
+        statement.setNCharacterStream(index, value, length);
+    }
+
+    @Override
+    public void setNCharacterStream(int index, Reader value) throws SQLException {
+        remember(index, value == null ? "null" : "ncharacterstream");
+        statement.setNCharacterStream(index, value);
+    }
+
+    @Override
+    public void setNClob(int index, Reader value, long length) throws SQLException {
+        remember(index, value == null ? "null" : "nclob");
+        statement.setNClob(index, value, length);
+    }
+
+    @Override
+    public void setNClob(int index, Reader value) throws SQLException {
+        remember(index, value == null ? "null" : "nclob");
+        statement.setNClob(index, value);
+    }
+
+    @Override
+    public void setNClob(int index, NClob value) throws SQLException {
+        remember(index, value == null ? "null" : "nclob");
+        statement.setNClob(index, value);
+    }
+
+    @Override
+    public void setNString(int index, String value) throws SQLException {
+        rememberString(index, value);
+        statement.setNString(index, value);
+    }
+
+    @Override
+    public void setNull(int index, int sqlType, String typeName) throws SQLException {
+        remember(index, "null");
+        statement.setNull(index, sqlType, typeName);
+    }
+
+    @Override
+    public void setNull(int index, int sqlType) throws SQLException {
+        remember(index, "null");
+        statement.setNull(index, sqlType);
+    }
+
+    @Override
+    public void setObject(int index, Object value, int targetSqlType, int scaleOrLength) throws SQLException {
+        remember(index, value == null ? "null" : "object");
+        statement.setObject(index, value, targetSqlType, scaleOrLength);
+    }
+
+    @Override
+    public void setObject(int index, Object value, int targetSqlType) throws SQLException {
+        remember(index, value == null ? "null" : "object");
+        statement.setObject(index, value, targetSqlType);
+    }
+
+    @Override
+    public void setObject(int index, Object value) throws SQLException {
+        remember(index, value == null ? "null" : "object");
+        statement.setObject(index, value);
+    }
+
+    @Override
+    public void setRef(int index, Ref value) throws SQLException {
+        remember(index, value == null ? "null" : "ref");
+        statement.setRef(index, value);
+    }
+
+    @Override
+    public void setRowId(int index, RowId value) throws SQLException {
+        remember(index, value == null ? "null" : "rowid");
+        statement.setRowId(index, value);
+    }
+
+    @Override
+    public void setSQLXML(int index, SQLXML value) throws SQLException {
+        remember(index, value == null ? "null" : "sqlxml");
+        statement.setSQLXML(index, value);
+    }
+
+    @Override
+    public void setShort(int index, short value) throws SQLException {
+        remember(index, "short");
+        statement.setShort(index, value);
+    }
+
+    @Override
+    public void setString(int index, String value) throws SQLException {
+        rememberString(index, value);
+        statement.setString(index, value);
+    }
+
+    @Override
+    public void setTime(int index, Time value, Calendar calendar) throws SQLException {
+        remember(index, value == null ? "null" : "time");
+        statement.setTime(index, value, calendar);
+    }
+
+    @Override
+    public void setTime(int index, Time value) throws SQLException {
+        remember(index, value == null ? "null" : "time");
+        statement.setTime(index, value);
+    }
+
+    @Override
+    public void setTimestamp(int index, Timestamp value, Calendar calendar) throws SQLException {
+        remember(index, value == null ? "null" : "timestamp");
+        statement.setTimestamp(index, value, calendar);
+    }
+
+    @Override
+    public void setTimestamp(int index, Timestamp value) throws SQLException {
+        remember(index, value == null ? "null" : "timestamp");
+        statement.setTimestamp(index, value);
+    }
+
+    @Override
+    public void setURL(int index, URL value) throws SQLException {
+        remember(index, value == null ? "null" : "url");
+        statement.setURL(index, value);
+    }
+
+    @Override
+    @Deprecated
+    public void setUnicodeStream(int index, InputStream value, int length) throws SQLException {
+        remember(index, value == null ? "null" : "unicodestream");
+        statement.setUnicodeStream(index, value, length);
+    }
+
+    // Everything else, which is just passed on.
+
+    @Override
+    public void addBatch() throws SQLException {
+        statement.addBatch();
+    }
+
+    @Override
+    public void clearParameters() throws SQLException {
+        Arrays.fill(parameterTypes, null);
+        statement.clearParameters();
+    }
+
+    @Override
+    public ResultSetMetaData getMetaData() throws SQLException {
+        return statement.getMetaData();
+    }
+
+    @Override
+    public ParameterMetaData getParameterMetaData() throws SQLException {
+        return statement.getParameterMetaData();
+    }
+
+    @Override
+    public void addBatch(String sql) throws SQLException {
+        statement.addBatch(sql);
+    }
+
+    @Override
+    public void cancel() throws SQLException {
+        statement.cancel();
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        statement.clearBatch();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        statement.clearWarnings();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        statement.close();
+    }
+
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        statement.closeOnCompletion();
+    }
+
+    @Override
+    public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        return statement.execute(sql, columnIndexes);
+    }
+
+    @Override
+    public boolean execute(String sql, String[] columnNames) throws SQLException {
+        return statement.execute(sql, columnNames);
+    }
+
+    @Override
+    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+        return statement.execute(sql, autoGeneratedKeys);
+    }
+
+    @Override
+    public boolean execute(String sql) throws SQLException {
+        return statement.execute(sql);
+    }
+
+    @Override
+    public ResultSet executeQuery(String sql) throws SQLException {
+        return statement.executeQuery(sql);
+    }
+
+    @Override
+    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        return statement.executeUpdate(sql, columnIndexes);
+    }
+
+    @Override
+    public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+        return statement.executeUpdate(sql, columnNames);
+    }
+
+    @Override
+    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        return statement.executeUpdate(sql, autoGeneratedKeys);
+    }
+
+    @Override
+    public int executeUpdate(String sql) throws SQLException {
+        return statement.executeUpdate(sql);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return statement.getConnection();
+    }
+
+    @Override
+    public int getFetchDirection() throws SQLException {
+        return statement.getFetchDirection();
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        return statement.getFetchSize();
+    }
+
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        return statement.getGeneratedKeys();
+    }
+
+    @Override
+    public int getMaxFieldSize() throws SQLException {
+        return statement.getMaxFieldSize();
+    }
+
+    @Override
+    public int getMaxRows() throws SQLException {
+        return statement.getMaxRows();
+    }
+
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        return statement.getMoreResults();
+    }
+
+    @Override
+    public boolean getMoreResults(int current) throws SQLException {
+        return statement.getMoreResults(current);
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        return statement.getQueryTimeout();
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        results = statement.getResultSet();
+        return results;
+    }
+
+    @Override
+    public int getResultSetConcurrency() throws SQLException {
+        return statement.getResultSetConcurrency();
+    }
+
+    @Override
+    public int getResultSetHoldability() throws SQLException {
+        return statement.getResultSetHoldability();
+    }
+
+    @Override
+    public int getResultSetType() throws SQLException {
+        return statement.getResultSetType();
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        return statement.getUpdateCount();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return statement.getWarnings();
+    }
+
+    @Override
+    public boolean isCloseOnCompletion() throws SQLException {
+        return statement.isCloseOnCompletion();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return statement.isClosed();
+    }
+
+    @Override
+    public boolean isPoolable() throws SQLException {
+        return statement.isPoolable();
+    }
+
+    @Override
+    public void setCursorName(String name) throws SQLException {
+        statement.setCursorName(name);
+    }
+
+    @Override
+    public void setEscapeProcessing(boolean enable) throws SQLException {
+        statement.setEscapeProcessing(enable);
+    }
+
+    @Override
+    public void setFetchDirection(int direction) throws SQLException {
+        statement.setFetchDirection(direction);
+    }
+
+    @Override
+    public void setFetchSize(int rows) throws SQLException {
+        statement.setFetchSize(rows);
+    }
+
+    @Override
+    public void setMaxFieldSize(int max) throws SQLException {
+        statement.setMaxFieldSize(max);
+    }
+
+    @Override
+    public void setMaxRows(int max) throws SQLException {
+        statement.setMaxRows(max);
+    }
+
+    @Override
+    public void setPoolable(boolean poolable) throws SQLException {
+        statement.setPoolable(poolable);
+    }
+
+    @Override
+    public void setQueryTimeout(int seconds) throws SQLException {
+        statement.setQueryTimeout(seconds);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return statement.isWrapperFor(iface);
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return statement.unwrap(iface);
+    }
+}
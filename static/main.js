@@ -1,5 +1,5 @@
-// If we are on a quiz page.
-if (location.pathname.match('^/play/')) {
+// If we are on a quiz page (but not its leaderboard).
+if (location.pathname.match('^/play/[^/]+$')) {
     // The ID is everything after the second slash.
     const quizId = location.pathname.split('/')[2];
     startQuiz(quizId);
@@ -9,9 +9,9 @@ else if (location.pathname.match('^/create')) {
     enableAddQuestionButton();
 }
 
-// Download the JSON quiz data from the server and then show the quiz.
+// Download the JSON quiz data and the flags from the server and then show the quiz.
 async function startQuiz(id) {
-    const response = await fetch('/quiz/' + id);
+    const [response] = await Promise.all([fetch('/quiz/' + id), loadFlagSprite()]);
     if (!response.ok) {
         const main = document.querySelector('main');
         const p = document.createElement('p');
@@ -21,14 +21,39 @@ async function startQuiz(id) {
     }
 
     const quiz = await response.json();
-    showQuiz(quiz);
+    showQuiz(id, quiz);
+}
+
+// All the flags are in a single SVG "sprite" file with one <symbol> per flag, so we download that once (the browser
+// caches it) and add it to the page. Each question then shows its flag with a <use> element pointing at the symbol.
+async function loadFlagSprite() {
+    const container = document.querySelector('#flag-sprite');
+    const response = await fetch(container.dataset.url);
+    if (response.ok) {
+        container.innerHTML = await response.text();
+    }
+}
+
+// The HTML for a flag, given its file name. The symbol IDs are made the same way as on the server (see FlagSprite),
+// e.g. "flag-sweden" for "sweden.svg". If the flag is not in the sprite, fall back to downloading it on its own.
+function flagImage(name) {
+    const id = 'flag-' + name.replace(/\.svg$/, '').replace(/[^A-Za-z0-9_-]/g, '_');
+    const symbol = document.getElementById(id);
+    if (!symbol) {
+        return '<img src="/flag?name=' + name + '">';
+    }
+    return '<svg class="flag-image" role="img" viewBox="' + symbol.getAttribute('viewBox') + '">' +
+        '<use href="#' + id + '"/>' +
+    '</svg>';
 }
 
 // Show the quiz downloaded from the server.
-function showQuiz(quiz) {
+function showQuiz(quizId, quiz) {
     const main = document.querySelector('main');
     main.className = 'quiz';
     let score = 0;
+    // The number of the option the user chose for each question, which is sent to the server at the end.
+    const chosen = [];
 
     // Create a <section> for each question, then show/hide each section based on the users's current position in the
     // quiz. Each section will contain its own question buttons, "Next Question" button, and so on, so we are not
@@ -53,17 +78,18 @@ function showQuiz(quiz) {
         questionNode.innerHTML =
             '<h1 class="quiz-title">Quiz: ' + quiz.title + (quiz.public ? '' : ' [private]') + '</h1>' +
             '<figure class="flag">' +
-                '<img src="/flag?name=' + question.image_path + '">' +
+                flagImage(question.image_path) +
             '</figure>' +
             '<h2 class="prompt">' + question.prompt + '</h2>'
 
         // This part requires some more complicated logic so let's accept defeat and use DOM methods for this. :(
-        // What we are doing is creating the individual question buttons. For clarity, the result will look something
-        // like this:
+        // What we are doing is creating the individual question buttons. The server doesn't tell us which option is
+        // correct until the question has been answered, so they all start out the same. For clarity, the result will
+        // look something like this once the user has answered:
         //
         // <div class="options">
         //     <button type="button" class="incorrect">Alice</button>
-        //     <button type="button" class="incorrect">Bob</button>
+        //     <button type="button" class="incorrect guess">Bob</button>
         //     <button type="button" class="correct">Carol</button>
         //     <button type="button" class="incorrect">Dave</button>
         // </div>
@@ -74,12 +100,6 @@ function showQuiz(quiz) {
             const button = document.createElement('button');
             button.type = 'button';
             button.textContent = question['option_' + number];
-            if (number === question.correct_option) {
-                button.className = 'correct';
-            }
-            else {
-                button.className = 'incorrect';
-            }
             return button;
         });
 
@@ -89,16 +109,35 @@ function showQuiz(quiz) {
             options.append(button);
 
             // Make it interactive.
-            button.onclick = () => {
+            button.onclick = async () => {
+                // Disable all the option buttons so the user cannot change their guess while we wait for the server.
+                buttons.forEach(b => b.disabled = true);
+
+                // Send the answer to the server, which checks it and tells us which option was correct.
+                const response = await fetch('/quiz/' + quizId + '/answer', {
+                    method: 'POST',
+                    body: new URLSearchParams({ question: questionIndex + 1, option: buttonIndex + 1 }),
+                });
+                if (!response.ok) {
+                    // The server is busy or something went wrong, so let the user try again.
+                    buttons.forEach(b => b.disabled = false);
+                    return;
+                }
+                const result = await response.json();
+
+                chosen[questionIndex] = buttonIndex + 1;
+
                 // If this button is the correct option, increase the score by one.
-                if (buttonIndex + 1 === question.correct_option) {
+                if (result.correct) {
                     score += 1;
                 }
 
-                // Add a .guess class so we can highlight it, and also disable all the option buttons so the user cannot
-                // change their guess.
+                // Mark the correct and incorrect options, and add a .guess class to the chosen one so we can
+                // highlight it.
+                buttons.forEach((b, index) => {
+                    b.className = index + 1 === result.correct_option ? 'correct' : 'incorrect';
+                });
                 button.classList.add('guess');
-                buttons.forEach(b => b.disabled = true);
 
                 // Finally, enable the "Next Question" button.
                 next.disabled = false;
@@ -120,7 +159,7 @@ function showQuiz(quiz) {
         questionNode.appendChild(next);
 
         // Make it interactive.
-        next.onclick = event => {
+        next.onclick = async event => {
             // Hide all of the question <section> tags except the next one.
             questionNodes.forEach((node, nodeIndex) => {
                 if (nodeIndex === questionIndex + 1) {
@@ -131,9 +170,29 @@ function showQuiz(quiz) {
                 }
             });
 
-            // If this is actually the last "Next Question" button, show the result instead.
+            // If this is actually the last "Next Question" button, show the result instead, and save it on the server.
+            // The server counts the score itself from the chosen options and tells us our place on the leaderboard.
             if (questionIndex === quiz.questions.length - 1) {
                 main.innerHTML = '<p class="result big">Your score: ' + score + ' / ' + quiz.questions.length + '</p>';
+
+                const response = await fetch('/quiz/' + quizId + '/score', {
+                    method: 'POST',
+                    body: new URLSearchParams({ answers: chosen.join(',') }),
+                });
+                const p = document.createElement('p');
+                p.className = 'result';
+                if (response.ok) {
+                    const result = await response.json();
+                    p.textContent = result.place > 0 ? 'You are number ' + result.place + ' on the leaderboard! ' : '';
+                }
+                else {
+                    p.textContent = 'Your score could not be saved. ';
+                }
+                const link = document.createElement('a');
+                link.href = '/play/' + quizId + '/leaderboard';
+                link.textContent = 'See the leaderboard';
+                p.append(link);
+                main.append(p);
             }
         };
     });